@@ -0,0 +1,394 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime.jetty9;
+
+import com.google.apphosting.vmruntime.VmApiProxyTransport;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.PushPromiseFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.Promise;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link VmApiProxyTransport} multiplexing all API calls of an instance over a few long-lived
+ * HTTP/2 cleartext (h2c) connections to the API proxy.
+ *
+ * <p>Each API call is sent as its own HTTP/2 stream carrying the same headers and
+ * {@code RemoteApiPb} body as the HTTP/1.1 transport, so the API proxy needs no other changes than
+ * accepting h2c with prior knowledge.
+ *
+ * <p>Each connection is opened by the first call that finds its slot empty or closed; the calls
+ * arriving while it connects wait for the same connection without blocking their thread. The
+ * timeout of a call bounds the whole exchange, from waiting for the connection to the last byte
+ * of the response.
+ *
+ */
+class VmApiProxyHttp2Transport implements VmApiProxyTransport {
+  private static final Logger logger = Logger.getLogger(VmApiProxyHttp2Transport.class.getName());
+
+  // Number of HTTP/2 connections the calls are spread over.
+  static final int DEFAULT_SESSION_COUNT = 2;
+  // Timeout for establishing a new HTTP/2 connection.
+  static final long CONNECT_TIMEOUT_MS = 5000;
+  // Close connections that did not carry any stream for this long.
+  static final long SESSION_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+  private final HTTP2Client client;
+  private final String host;
+  private final int port;
+  private final Slot[] slots;
+  private final AtomicInteger nextSlot = new AtomicInteger();
+
+  /**
+   * Creates and starts a new HTTP/2 transport.
+   *
+   * @param server The host:port of the API proxy.
+   * @param sessionCount The number of connections to spread the calls over.
+   * @throws Exception If the underlying HTTP/2 client could not be started.
+   */
+  VmApiProxyHttp2Transport(String server, int sessionCount) throws Exception {
+    int separator = server.lastIndexOf(':');
+    this.host = server.substring(0, separator);
+    this.port = Integer.parseInt(server.substring(separator + 1));
+    this.slots = new Slot[sessionCount];
+    for (int i = 0; i < sessionCount; i++) {
+      slots[i] = new Slot();
+    }
+    this.client = new HTTP2Client();
+    client.setSelectors(1);
+    client.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    client.setIdleTimeout(SESSION_IDLE_TIMEOUT_MS);
+    client.start();
+  }
+
+  @Override
+  public Future<HttpResponse> execute(
+      HttpPost request, int timeoutMs, FutureCallback<HttpResponse> callback) {
+    final Exchange exchange = new Exchange(callback, timeoutMs);
+    final byte[] body;
+    try {
+      body = EntityUtils.toByteArray(request.getEntity());
+    } catch (IOException e) {
+      exchange.failed(e);
+      return exchange;
+    }
+    HttpFields fields = new HttpFields();
+    for (Header header : request.getAllHeaders()) {
+      fields.add(header.getName(), header.getValue());
+    }
+    HttpEntity entity = request.getEntity();
+    if (entity.getContentType() != null) {
+      fields.put(HttpHeader.CONTENT_TYPE, entity.getContentType().getValue());
+    }
+    fields.putLongField(HttpHeader.CONTENT_LENGTH, body.length);
+    final MetaData.Request metaData = new MetaData.Request(
+        "POST", new HttpURI(request.getURI().toString()), HttpVersion.HTTP_2, fields);
+    exchange.startTimeout(client.getScheduler());
+    Slot slot = slots[(nextSlot.getAndIncrement() & Integer.MAX_VALUE) % slots.length];
+    slot.getSession(new Promise<Session>() {
+      @Override
+      public void succeeded(Session session) {
+        if (exchange.isDone()) {
+          return;
+        }
+        session.newStream(new HeadersFrame(metaData, null, false), new Promise<Stream>() {
+          @Override
+          public void succeeded(Stream stream) {
+            exchange.started(stream);
+            stream.data(new DataFrame(stream.getId(), ByteBuffer.wrap(body), true),
+                new Callback() {
+                  @Override
+                  public void succeeded() {
+                  }
+
+                  @Override
+                  public void failed(Throwable x) {
+                    exchange.abort(x);
+                  }
+                });
+          }
+
+          @Override
+          public void failed(Throwable x) {
+            exchange.failed(x);
+          }
+        }, exchange);
+      }
+
+      @Override
+      public void failed(Throwable x) {
+        exchange.failed(
+            new IOException("Unable to connect to the API proxy at " + host + ":" + port, x));
+      }
+    });
+    return exchange;
+  }
+
+  @Override
+  public void closeIdleConnections(long idleTime, TimeUnit unit) {
+    // Sessions are long lived by design, the HTTP2Client closes them after SESSION_IDLE_TIMEOUT_MS.
+  }
+
+  @Override
+  public void shutdown() {
+    try {
+      client.stop();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Error shutting down the HTTP/2 API transport.", e);
+    }
+  }
+
+  /**
+   * A connection slot holding an open session, or the callers waiting for the session it is
+   * connecting.
+   */
+  private class Slot implements Promise<Session> {
+    private Session session;
+    // The callers waiting for the connection in progress, null if the slot is not connecting.
+    private List<Promise<Session>> waiters;
+
+    /**
+     * Passes the open session of the slot to {@code promise}, connecting a new one unless another
+     * caller is already connecting it.
+     */
+    void getSession(Promise<Session> promise) {
+      Session current;
+      synchronized (this) {
+        current = session;
+        if (current == null || current.isClosed()) {
+          current = null;
+          if (waiters != null) {
+            waiters.add(promise);
+            return;
+          }
+          waiters = new ArrayList<>();
+          waiters.add(promise);
+        }
+      }
+      if (current != null) {
+        promise.succeeded(current);
+        return;
+      }
+      client.connect(new InetSocketAddress(host, port), new Session.Listener.Adapter(), this);
+    }
+
+    @Override
+    public void succeeded(Session connected) {
+      List<Promise<Session>> connecting;
+      synchronized (this) {
+        session = connected;
+        connecting = waiters;
+        waiters = null;
+      }
+      for (Promise<Session> waiter : connecting) {
+        waiter.succeeded(connected);
+      }
+    }
+
+    @Override
+    public void failed(Throwable x) {
+      List<Promise<Session>> connecting;
+      synchronized (this) {
+        connecting = waiters;
+        waiters = null;
+      }
+      for (Promise<Session> waiter : connecting) {
+        waiter.failed(x);
+      }
+    }
+  }
+
+  /**
+   * A single API call, mapped to one HTTP/2 stream. The response body is buffered before the
+   * callback is notified.
+   */
+  private static class Exchange extends BasicFuture<HttpResponse> implements Stream.Listener {
+    private final int timeoutMs;
+    private volatile Stream stream;
+    private volatile Scheduler.Task timeout;
+    private int status;
+    private ByteArrayOutputStream content;
+
+    Exchange(FutureCallback<HttpResponse> callback, int timeoutMs) {
+      super(callback);
+      this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Fails the exchange once its timeout passed, whichever step it is at.
+     */
+    void startTimeout(Scheduler scheduler) {
+      timeout = scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          abort(new SocketTimeoutException("API call timed out after " + timeoutMs + " ms"));
+        }
+      }, timeoutMs, TimeUnit.MILLISECONDS);
+      if (isDone()) {
+        timeout.cancel();
+      }
+    }
+
+    void started(Stream stream) {
+      stream.setIdleTimeout(timeoutMs);
+      this.stream = stream;
+      if (isDone()) {
+        reset();
+      }
+    }
+
+    void failed(Throwable x) {
+      failed(x instanceof Exception ? (Exception) x : new IOException(x));
+    }
+
+    /**
+     * Fails the exchange and resets its stream.
+     */
+    void abort(Throwable x) {
+      failed(x);
+      reset();
+    }
+
+    @Override
+    public boolean completed(HttpResponse result) {
+      cancelTimeout();
+      return super.completed(result);
+    }
+
+    @Override
+    public boolean failed(Exception x) {
+      cancelTimeout();
+      return super.failed(x);
+    }
+
+    private void cancelTimeout() {
+      Scheduler.Task current = timeout;
+      if (current != null) {
+        current.cancel();
+      }
+    }
+
+    private void reset() {
+      Stream current = stream;
+      if (current != null && !current.isClosed()) {
+        current.reset(
+            new ResetFrame(current.getId(), ErrorCode.CANCEL_STREAM_ERROR.code), Callback.NOOP);
+      }
+    }
+
+    private void complete() {
+      BasicHttpResponse response =
+          new BasicHttpResponse(org.apache.http.HttpVersion.HTTP_1_1, status, null);
+      response.setEntity(new ByteArrayEntity(
+          content == null ? new byte[0] : content.toByteArray()));
+      completed(response);
+    }
+
+    @Override
+    public void onHeaders(Stream stream, HeadersFrame frame) {
+      MetaData metaData = frame.getMetaData();
+      if (metaData.isResponse()) {
+        status = ((MetaData.Response) metaData).getStatus();
+        long contentLength =
+            metaData.getFields().getLongField(HttpHeader.CONTENT_LENGTH.asString());
+        content = new ByteArrayOutputStream(
+            contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : 4096);
+      }
+      if (frame.isEndStream()) {
+        complete();
+      }
+    }
+
+    @Override
+    public Stream.Listener onPush(Stream stream, PushPromiseFrame frame) {
+      return null;
+    }
+
+    @Override
+    public void onData(Stream stream, DataFrame frame, Callback callback) {
+      ByteBuffer data = frame.getData();
+      if (content == null) {
+        content = new ByteArrayOutputStream(Math.max(data.remaining(), 4096));
+      }
+      if (data.hasArray()) {
+        content.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      } else {
+        byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        content.write(copy, 0, copy.length);
+      }
+      callback.succeeded();
+      if (frame.isEndStream()) {
+        complete();
+      }
+    }
+
+    @Override
+    public void onReset(Stream stream, ResetFrame frame) {
+      failed(new IOException("API call stream reset: " + ErrorCode.from(frame.getError())));
+    }
+
+    @Override
+    public void onTimeout(Stream stream, Throwable x) {
+      abort(new SocketTimeoutException("API call timed out after " + timeoutMs + " ms"));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        cancelTimeout();
+        reset();
+      }
+      return cancelled;
+    }
+  }
+}
@@ -60,6 +60,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.DispatcherType;
@@ -75,6 +76,10 @@ public class VmRuntimeWebAppContext
   extends WebAppContext implements VmRuntimeTrustedAddressChecker {
   private static final Logger logger = Logger.getLogger(VmRuntimeWebAppContext.class.getName());
 
+  // If set to true, API calls are multiplexed over HTTP/2 cleartext connections to the API proxy.
+  static final String HTTP2_API_TRANSPORT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.http2Transport";
+
   // It's undesirable to have the user app override classes provided by us.
   // So we mark them as Jetty system classes, which cannot be overridden.
   private static final String[] SYSTEM_CLASSES = {
@@ -148,6 +153,21 @@ public class VmRuntimeWebAppContext
     }
     super.doStart();
   }
+
+  /**
+   * Installs the API call interceptors listed in the
+   * {@value VmApiProxyDelegate#INTERCEPTORS_PROPERTY} system property, loaded by the web
+   * application class loader, before the servlets are initialized.
+   */
+  @Override
+  protected void startContext() throws Exception {
+    if (ApiProxy.getDelegate() instanceof VmApiProxyDelegate) {
+      ((VmApiProxyDelegate) ApiProxy.getDelegate()).setInterceptors(
+          VmApiProxyDelegate.createInterceptors(
+              System.getProperty(VmApiProxyDelegate.INTERCEPTORS_PROPERTY), getClassLoader()));
+    }
+    super.startContext();
+  }
   /**
    * Creates a List of SessionStores based on the configuration in the provided AppEngineWebXml.
    *
@@ -204,7 +224,25 @@ public class VmRuntimeWebAppContext
     setAttribute("org.eclipse.jetty.server.webapp.ContainerIncludeJarPattern", ".*\\.jar");
     metadataCache = new VmMetadataCache();
     wallclockTimer = new VmTimer();
-    ApiProxy.setDelegate(new VmApiProxyDelegate());
+  }
+
+  /**
+   * Creates the delegate for API calls, using the HTTP/2 transport if it is enabled and the API
+   * server is not reached through a Unix domain socket. Called once the system properties of
+   * appengine-web.xml are installed, so they can configure the delegate.
+   */
+  private static VmApiProxyDelegate createApiProxyDelegate() {
+    if (Boolean.getBoolean(HTTP2_API_TRANSPORT_PROPERTY)
+        && VmRuntimeUtils.getApiSocketPath() == null) {
+      try {
+        return new VmApiProxyDelegate(new VmApiProxyHttp2Transport(
+            VmRuntimeUtils.getApiServerAddress(), VmApiProxyHttp2Transport.DEFAULT_SESSION_COUNT));
+      } catch (Exception e) {
+        logger.log(Level.WARNING,
+            "Unable to create the HTTP/2 API transport, falling back to HTTP/1.1.", e);
+      }
+    }
+    return new VmApiProxyDelegate();
   }
 
   /**
@@ -212,7 +250,7 @@ public class VmRuntimeWebAppContext
    *
    * This method initializes the WebAppContext by setting the context path and application folder.
    * It will also parse the appengine-web.xml file provided to set System Properties and session
-   * manager accordingly.
+   * manager accordingly, and then create the delegate for API calls.
    *
    * @param appengineWebXmlFile The appengine-web.xml file path (relative to appDir).
    * @throws AppEngineConfigException If there was a problem finding or parsing the
@@ -241,6 +279,7 @@ public class VmRuntimeWebAppContext
       appEngineWebXml = appEngineWebXmlReader.readAppEngineWebXml();
     }
     VmRuntimeUtils.installSystemProperties(defaultEnvironment, appEngineWebXml);
+    ApiProxy.setDelegate(createApiProxyDelegate());
     VmRuntimeLogHandler.init();
     VmRuntimeFileLogHandler.init();
 
@@ -318,6 +357,8 @@ public class VmRuntimeWebAppContext
             new HttpServletResponseAdapter(wrappedResponse))) {
           logger.warning("Timed out or interrupted while waiting for async API calls to complete.");
         }
+        // Report the API calls of the request before its logs are flushed.
+        VmRuntimeUtils.reportApiCalls(response, requestSpecificEnvironment);
         if (!response.isCommitted()) {
           // Flush and set the flush count header so the appserver knows when all logs are in.
           VmRuntimeUtils.flushLogsAndAddHeader(response, requestSpecificEnvironment);
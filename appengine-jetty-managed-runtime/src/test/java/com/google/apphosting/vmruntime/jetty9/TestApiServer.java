@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime.jetty9;
+
+import com.google.appengine.repackaged.com.google.common.io.ByteStreams;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stand-in for the API proxy. Accepts API calls over HTTP/1.1 and HTTP/2 cleartext (h2c) and
+ * answers each call by echoing the request payload back, optionally after a fixed delay or one
+ * byte at a time.
+ *
+ */
+public class TestApiServer {
+  private final Server server;
+  private final ServerConnector http1Connector;
+  private final ServerConnector http2Connector;
+  private final AtomicInteger calls = new AtomicInteger();
+  private final AtomicInteger http2Connections = new AtomicInteger();
+  private volatile long delayMs;
+  private volatile long trickleMs;
+
+  public TestApiServer() {
+    server = new Server(new QueuedThreadPool(200));
+    HttpConfiguration config = new HttpConfiguration();
+    http1Connector = new ServerConnector(server, new HttpConnectionFactory(config));
+    http2Connector = new ServerConnector(server, new HTTP2CServerConnectionFactory(config));
+    http2Connector.addBean(new Connection.Listener.Adapter() {
+      @Override
+      public void onOpened(Connection connection) {
+        http2Connections.incrementAndGet();
+      }
+    });
+    server.addConnector(http1Connector);
+    server.addConnector(http2Connector);
+    server.setHandler(new EchoHandler());
+  }
+
+  public void start() throws Exception {
+    server.start();
+  }
+
+  public void stop() throws Exception {
+    server.stop();
+  }
+
+  /**
+   * Returns the host:port of the HTTP/1.1 connector.
+   */
+  public String getHttp1Address() {
+    return "localhost:" + http1Connector.getLocalPort();
+  }
+
+  /**
+   * Returns the host:port of the h2c connector.
+   */
+  public String getHttp2Address() {
+    return "localhost:" + http2Connector.getLocalPort();
+  }
+
+  /**
+   * Sets the time each call is held before it is answered.
+   */
+  public void setDelayMs(long delayMs) {
+    this.delayMs = delayMs;
+  }
+
+  /**
+   * Sets the pause before each byte of the responses, 0 to write them at once.
+   */
+  public void setTrickleMs(long trickleMs) {
+    this.trickleMs = trickleMs;
+  }
+
+  /**
+   * Returns the number of h2c connections opened so far.
+   */
+  public int getHttp2ConnectionCount() {
+    return http2Connections.get();
+  }
+
+  /**
+   * Returns the number of API calls served so far.
+   */
+  public int getCallCount() {
+    return calls.get();
+  }
+
+  private class EchoHandler extends AbstractHandler {
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request,
+        HttpServletResponse response) throws IOException {
+      baseRequest.setHandled(true);
+      RemoteApiPb.Request apiRequest = new RemoteApiPb.Request();
+      if (!apiRequest.parseFrom(ByteStreams.toByteArray(request.getInputStream()))) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unparsable API request");
+        return;
+      }
+      calls.incrementAndGet();
+      if (delayMs > 0) {
+        try {
+          Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      RemoteApiPb.Response apiResponse = new RemoteApiPb.Response();
+      apiResponse.setResponseAsBytes(apiRequest.getRequestAsBytes());
+      byte[] body = apiResponse.toByteArray();
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("application/octet-stream");
+      response.setContentLength(body.length);
+      if (trickleMs == 0) {
+        response.getOutputStream().write(body);
+        return;
+      }
+      for (byte b : body) {
+        try {
+          Thread.sleep(trickleMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        response.getOutputStream().write(b);
+        response.getOutputStream().flush();
+      }
+    }
+  }
+}
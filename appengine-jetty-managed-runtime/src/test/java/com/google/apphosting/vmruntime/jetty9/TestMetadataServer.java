@@ -35,16 +35,22 @@ public class TestMetadataServer implements Runnable {
 
   private static final String PATH_PREFIX = "/computeMetadata/v1/instance/";
   private final int metadataPort;
+  private final ServerSocket serverSocket;
   private HashMap<String, String> responses = new HashMap<String, String>();
   private boolean run = true;
 
   /**
-   * Constructor.
+   * Constructor. Binds to the port right away, so requests made before the server thread runs
+   * wait for it rather than being refused.
    *
    * @param metadataPort The port the server should bind to.
+   * @throws IOException If the server could not bind to the port.
    */
-  public TestMetadataServer(int metadataPort) {
+  public TestMetadataServer(int metadataPort) throws IOException {
     this.metadataPort = metadataPort;
+    logger.fine("TRYING TO Listen for metadata requests at port: " + metadataPort);
+    serverSocket = new ServerSocket(metadataPort);
+    logger.fine("Listening for metadata requests at port: " + metadataPort);
   }
 
   /**
@@ -62,11 +68,7 @@ public class TestMetadataServer implements Runnable {
    */
   @Override
   public void run() {
-    ServerSocket serverSocket = null;
     try {
-      logger.fine("TRYING TO Listen for metadata requests at port: " + metadataPort);
-      serverSocket = new ServerSocket(metadataPort);
-      logger.fine("Listening for metadata requests at port: " + metadataPort);
       while (run) {
         final Socket clientSocket = serverSocket.accept();
         BufferedWriter responseWriter = null;
@@ -110,11 +112,8 @@ public class TestMetadataServer implements Runnable {
       logger.log(Level.WARNING, "Exception in TestMetadataServer: ", e);
     } finally {
       try {
-        if (serverSocket != null) {
-          serverSocket.close();
-          logger.fine("CLOSING metadata requests at port: " + metadataPort);
-
-        }
+        serverSocket.close();
+        logger.fine("CLOSING metadata requests at port: " + metadataPort);
       } catch (IOException e) {
         logger.log(Level.WARNING, "got Exception when closing the server socket.", e);
       }
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime.jetty9;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+import com.google.apphosting.vmruntime.VmApiProxyDelegate;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+import com.google.apphosting.vmruntime.VmMetadataCache;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Tests API calls through {@link VmApiProxyHttp2Transport} against a stand-in API proxy.
+ *
+ */
+public class VmApiProxyHttp2TransportTest extends TestCase {
+  private static final Logger logger =
+      Logger.getLogger(VmApiProxyHttp2TransportTest.class.getName());
+  private static final int THREADS = 16;
+  private static final int CALLS_PER_THREAD = 50;
+
+  private TestApiServer apiServer;
+  private VmApiProxyHttp2Transport transport;
+  private VmApiProxyDelegate delegate;
+  private VmApiProxyDelegate http1Delegate;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    apiServer = new TestApiServer();
+    apiServer.start();
+    transport = new VmApiProxyHttp2Transport(
+        apiServer.getHttp2Address(), VmApiProxyHttp2Transport.DEFAULT_SESSION_COUNT);
+    delegate = new VmApiProxyDelegate(transport);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delegate.shutdown();
+    if (http1Delegate != null) {
+      http1Delegate.shutdown();
+    }
+    apiServer.stop();
+    super.tearDown();
+  }
+
+  private static VmApiProxyEnvironment createEnvironment(String server) {
+    Map<String, String> envMap = new HashMap<>();
+    envMap.put("GAE_LONG_APP_ID", "test-app");
+    envMap.put("GAE_PARTITION", "s");
+    envMap.put("GAE_MODULE_NAME", "default");
+    envMap.put("GAE_MODULE_VERSION", "v1");
+    envMap.put("GAE_MINOR_VERSION", "1");
+    envMap.put("GAE_MODULE_INSTANCE", "0");
+    envMap.put("GAE_AFFINITY", "false");
+    envMap.put("GAE_APPENGINE_HOSTNAME", "test-app.appspot.com");
+    envMap.put("USE_MVM_AGENT", "false");
+    return VmApiProxyEnvironment.createDefaultContext(
+        envMap, new VmMetadataCache(), server, null, null, "");
+  }
+
+  private HttpPost createRequest(byte[] payload) {
+    RemoteApiPb.Request request = new RemoteApiPb.Request();
+    request.setServiceName("memcache");
+    request.setMethod("Get");
+    request.setRequestAsBytes(payload);
+    HttpPost post = new HttpPost("http://" + apiServer.getHttp2Address() + "/rpc_http");
+    post.setEntity(new ByteArrayEntity(request.toByteArray()));
+    return post;
+  }
+
+  public void testSyncCall() throws Exception {
+    VmApiProxyEnvironment environment = createEnvironment(apiServer.getHttp2Address());
+    byte[] payload = new byte[] {1, 2, 3, 4};
+    byte[] result = delegate.makeSyncCall(environment, "datastore_v3", "Get", payload);
+    assertTrue(Arrays.equals(payload, result));
+    assertEquals(1, apiServer.getCallCount());
+  }
+
+  public void testConcurrentAsyncCalls() throws Exception {
+    apiServer.setDelayMs(50);
+    VmApiProxyEnvironment environment = createEnvironment(apiServer.getHttp2Address());
+    List<Future<byte[]>> futures = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      futures.add(delegate.makeAsyncCall(
+          environment, "memcache", "Get", new byte[] {(byte) i}, new ApiProxy.ApiConfig()));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      assertTrue(Arrays.equals(new byte[] {(byte) i}, futures.get(i).get()));
+    }
+    assertEquals(50, apiServer.getCallCount());
+  }
+
+  public void testConnectsOncePerSlot() throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<HttpResponse>> futures =
+        Collections.synchronizedList(new ArrayList<Future<HttpResponse>>());
+    Thread[] callers = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      callers[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          futures.add(transport.execute(createRequest(new byte[] {1}), 5000, null));
+        }
+      });
+      callers[t].start();
+    }
+    start.countDown();
+    for (Thread caller : callers) {
+      caller.join();
+    }
+    for (Future<HttpResponse> future : futures) {
+      assertEquals(200, future.get().getStatusLine().getStatusCode());
+    }
+    assertEquals(THREADS, futures.size());
+    assertTrue(
+        apiServer.getHttp2ConnectionCount() <= VmApiProxyHttp2Transport.DEFAULT_SESSION_COUNT);
+  }
+
+  public void testTimeoutBoundsSlowResponses() throws Exception {
+    // Each byte arrives well within the timeout, the whole response does not.
+    apiServer.setTrickleMs(100);
+    long startNanos = System.nanoTime();
+    Future<HttpResponse> future = transport.execute(createRequest(new byte[32]), 500, null);
+    try {
+      future.get();
+      fail("Expected a SocketTimeoutException");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof SocketTimeoutException);
+    }
+    assertTrue((System.nanoTime() - startNanos) / 1000000 < 2000);
+  }
+
+  /**
+   * Runs the same concurrent load through the pooled HTTP/1.1 client and the multiplexed h2c
+   * transport, checking that every call succeeds. The timings are logged for comparison only,
+   * they are too noisy on shared test machines to assert which transport is faster.
+   */
+  public void testThroughputComparedToHttp1() throws Exception {
+    apiServer.setDelayMs(5);
+    http1Delegate = new VmApiProxyDelegate();
+    logger.info("HTTP/1.1: "
+        + runLoad(http1Delegate, createEnvironment(apiServer.getHttp1Address())));
+    logger.info("h2c: " + runLoad(delegate, createEnvironment(apiServer.getHttp2Address())));
+    assertEquals(2 * THREADS * CALLS_PER_THREAD, apiServer.getCallCount());
+  }
+
+  private static String runLoad(final VmApiProxyDelegate delegate,
+      final VmApiProxyEnvironment environment) throws Exception {
+    final long[] latencies = new long[THREADS * CALLS_PER_THREAD];
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    Thread[] workers = new Thread[THREADS];
+    long start = System.nanoTime();
+    for (int t = 0; t < THREADS; t++) {
+      final int offset = t * CALLS_PER_THREAD;
+      workers[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < CALLS_PER_THREAD; i++) {
+              byte[] payload = new byte[] {(byte) i};
+              long callStart = System.nanoTime();
+              byte[] result = delegate.makeSyncCall(environment, "memcache", "Get", payload);
+              latencies[offset + i] = System.nanoTime() - callStart;
+              assertTrue(Arrays.equals(payload, result));
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      });
+      workers[t].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    if (!failures.isEmpty()) {
+      AssertionFailedError error = new AssertionFailedError(
+          failures.size() + " of " + THREADS + " threads failed");
+      error.initCause(failures.get(0));
+      throw error;
+    }
+    long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+    Arrays.sort(latencies);
+    long p99Micros = latencies[(int) (latencies.length * 0.99) - 1] / 1000;
+    return latencies.length * 1000 / elapsedMs + " calls/s, p99 " + p99Micros + " us";
+  }
+}
@@ -179,6 +179,28 @@ public class VmRuntimeJettyKitchenSinkTest extends VmRuntimeTestBase {
     assertEquals("ok", lines[0].trim());
   }
 
+  /**
+   * Test that the metrics servlet was loaded and responds in the Prometheus text format.
+   *
+   * @throws Exception
+   */
+  public void testMetrics() throws Exception {
+    String[] lines = fetchUrl(createUrl("/_ah/metrics"));
+    assertTrue(Arrays.asList(lines).contains(
+        "# TYPE appengine_api_call_latency_seconds histogram"));
+  }
+
+  /**
+   * Test that the metrics are not served to untrusted addresses.
+   *
+   * @throws Exception
+   */
+  public void testMetricsFromUntrustedAddress() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) createUrl("/_ah/metrics").openConnection();
+    connection.setRequestProperty(VmApiProxyEnvironment.REAL_IP_HEADER, "123.123.123.123");
+    assertEquals(HttpURLConnection.HTTP_FORBIDDEN, connection.getResponseCode());
+  }
+
     public void testAsyncRequests_WaitUntilDone() throws Exception {
     long sleepTime = 2000;
     FakeableVmApiProxyDelegate fakeApiProxy = new FakeableVmApiProxyDelegate();
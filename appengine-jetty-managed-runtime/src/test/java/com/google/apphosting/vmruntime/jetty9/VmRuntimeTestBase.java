@@ -147,7 +147,7 @@ public  class VmRuntimeTestBase extends TestCase {
    * Stub out the metadata cache so that any requests for metadata will be mocked locally and not
    * served from the metadata server (which only is available when running in an actual VM).
    */
-  private void stubMetadataRequests() {
+  private void stubMetadataRequests() throws IOException {
     int metadataPort = me.alexpanov.net.FreePortFinder.findFreeLocalPort();
     System.setProperty("metadata_server", "127.0.0.1:" + metadataPort);
     metadataServer = new TestMetadataServer(metadataPort);
@@ -30,6 +30,7 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.apphosting.vmruntime.VmApiProxyDelegate;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -122,10 +123,15 @@ public class DatastoreSessionStore implements SessionStore {
 
   @Override
   public void saveSession(String key, SessionData data) throws Retryable {
+    Entity entity = createEntityForSession(key, data);
+    // A put with a complete key, which the API delegate may safely send again.
+    boolean previousIdempotentCalls = VmApiProxyDelegate.setIdempotentCalls(true);
     try {
-      datastore.put(createEntityForSession(key, data));
+      datastore.put(entity);
     } catch (DatastoreTimeoutException e) {
       throw new Retryable(e);
+    } finally {
+      VmApiProxyDelegate.setIdempotentCalls(previousIdempotentCalls);
     }
   }
 
@@ -24,6 +24,7 @@ import com.google.appengine.api.memcache.ErrorHandlers;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.VmApiProxyDelegate;
 
 import java.util.Map;
 import java.util.logging.Level;
@@ -61,10 +62,15 @@ public class MemcacheSessionStore implements SessionStore {
 
   @Override
   public void saveSession(String key, SessionData data) throws Retryable {
+    byte[] sessionBytes = serialize(data);
+    // An unconditional set, which the API delegate may safely send again.
+    boolean previousIdempotentCalls = VmApiProxyDelegate.setIdempotentCalls(true);
     try {
-      memcache.put(key, serialize(data));
+      memcache.put(key, sessionBytes);
     } catch (ApiProxy.ApiDeadlineExceededException e) {
       throw new Retryable(e);
+    } finally {
+      VmApiProxyDelegate.setIdempotentCalls(previousIdempotentCalls);
     }
   }
 
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.utils.servlet;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.vmruntime.ApiCallMetrics;
+import com.google.apphosting.vmruntime.VmApiProxyEnvironment;
+import com.google.apphosting.vmruntime.VmRequestUtils;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * {@code VmMetricsServlet} responds with the API call metrics of the VM Runtime
+ * in the Prometheus text format.
+ *
+ * This handler should be mapped to /_ah/metrics on VM Runtimes so the metrics
+ * can be scraped. The metrics are only served to trusted addresses, such as a
+ * scraper on the VM itself. The /_ah/ paths are exempt from the security
+ * constraints of the app, so the servlet checks the address itself.
+ *
+ */
+public class VmMetricsServlet extends HttpServlet {
+
+  @Override
+  public void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!isTrustedRequest(request)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("UTF-8");
+    ApiCallMetrics.getInstance().writePrometheusText(response.getWriter());
+  }
+
+  private static boolean isTrustedRequest(HttpServletRequest request) {
+    // Requests forwarded by the appserver carry the address of the original client.
+    String remoteAddr = request.getHeader(VmApiProxyEnvironment.REAL_IP_HEADER);
+    if (remoteAddr == null) {
+      remoteAddr = request.getRemoteAddr();
+    }
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    boolean isDevMode = environment instanceof VmApiProxyEnvironment
+        && "dev".equals(((VmApiProxyEnvironment) environment).getPartition());
+    return VmRequestUtils.isTrustedRemoteAddr(isDevMode, remoteAddr);
+  }
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Per API method circuit breakers, keyed by package and method name.
+ *
+ * <p>Each circuit tracks the outcome and latency of the last {@link #WINDOW_SIZE} calls. Once at
+ * least {@link #MIN_CALLS} calls were seen and half of them failed, the circuit opens and calls
+ * fail fast for {@code openDurationMs}. The circuit then lets a single probe call through and
+ * closes again if it succeeds. Each admitted call holds a ticket of the state it was admitted
+ * under, so calls still in flight when the circuit opens or closes cannot act as the probe. The
+ * observed latencies also give an adaptive timeout, so calls to a degraded backend do not all
+ * wait for the full default timeout.
+ *
+ */
+class ApiCallCircuitBreaker {
+  private static final Logger logger = Logger.getLogger(ApiCallCircuitBreaker.class.getName());
+
+  // Number of recent calls each circuit keeps statistics for.
+  static final int WINDOW_SIZE = 50;
+  // Minimum number of calls in the window before the circuit can open or adapt its timeout.
+  static final int MIN_CALLS = 20;
+  // Fraction of failed calls in the window that opens the circuit.
+  static final double FAILURE_RATE_THRESHOLD = 0.5;
+  // Time an open circuit rejects calls before it lets a probe through.
+  static final long DEFAULT_OPEN_DURATION_MS = 5000;
+  // The adaptive timeout is this multiple of the 99th percentile latency of successful calls.
+  static final int TIMEOUT_LATENCY_MULTIPLIER = 4;
+  // Lower bound of the adaptive timeout.
+  static final int MIN_ADAPTIVE_TIMEOUT_MS = 1000;
+
+  private final long openDurationMs;
+  private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+  ApiCallCircuitBreaker(long openDurationMs) {
+    this.openDurationMs = openDurationMs;
+  }
+
+  /**
+   * Returns the circuit of an API method, creating it on first use.
+   */
+  Circuit getCircuit(String packageName, String methodName) {
+    String key = packageName + "." + methodName;
+    Circuit circuit = circuits.get(key);
+    if (circuit == null) {
+      Circuit newCircuit = new Circuit(key);
+      circuit = circuits.putIfAbsent(key, newCircuit);
+      if (circuit == null) {
+        circuit = newCircuit;
+      }
+    }
+    return circuit;
+  }
+
+  /**
+   * Returns true if {@code failure} indicates a problem with the API backend rather than with the
+   * call itself. Only those failures count towards opening a circuit. A call that ran out of
+   * {@link #isOutOfRequestTime the time left to its request} does not count; one that ran out of
+   * the adaptive timeout does, as a slow backend.
+   *
+   * @param deadlineClamped True if the timeout of the call was clamped to the deadline of its
+   *        request.
+   */
+  static boolean isBackendFailure(Throwable failure, boolean deadlineClamped) {
+    if (isOutOfRequestTime(failure, deadlineClamped)) {
+      return false;
+    }
+    return !(failure instanceof ApiProxy.ApplicationException
+        || failure instanceof ApiProxy.ArgumentException
+        || failure instanceof ApiProxy.CallNotFoundException
+        || failure instanceof ApiProxy.RequestTooLargeException
+        || failure instanceof ApiProxy.ResponseTooLargeException
+        || failure instanceof ApiProxy.OverQuotaException
+        || failure instanceof ApiProxy.CapabilityDisabledException
+        || failure instanceof ApiProxy.FeatureNotEnabledException
+        || failure instanceof ApiProxy.CancelledException);
+  }
+
+  /**
+   * Returns true if {@code failure} is the deadline of a call whose timeout was clamped to the
+   * deadline of its request. It ran out of time because of the caller, which tells nothing about
+   * the backend, so its outcome is {@link Circuit#skip skipped}.
+   *
+   * @param deadlineClamped True if the timeout of the call was clamped to the deadline of its
+   *        request.
+   */
+  static boolean isOutOfRequestTime(Throwable failure, boolean deadlineClamped) {
+    return deadlineClamped && failure instanceof ApiProxy.ApiDeadlineExceededException;
+  }
+
+  /**
+   * Circuit of a single API method.
+   */
+  class Circuit {
+    // Returned by admit() for a call that must fail fast.
+    static final long REJECTED = -1;
+
+    private final String name;
+    private final long[] latenciesMs = new long[WINDOW_SIZE];
+    private final boolean[] failed = new boolean[WINDOW_SIZE];
+    private int next;
+    private int count;
+    private int failures;
+    private boolean open;
+    private long openedAtMs;
+    private boolean probeInFlight;
+    private long probeStartedAtMs;
+    private int adaptiveTimeoutMs;
+    private int samplesSinceTimeoutUpdate;
+    // Incremented whenever the circuit opens, closes or admits a probe. The outcome of a call is
+    // only recorded while the generation it was admitted under is current.
+    private long generation;
+
+    Circuit(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Admits a call if it may be sent. While the circuit is open only a single probe call is
+     * admitted once {@code openDurationMs} have passed; a probe that never reports back is
+     * replaced after another {@code openDurationMs}.
+     *
+     * @return The ticket to pass to {@link #record} with the outcome of the call, or
+     *         {@link #REJECTED} if the call must fail fast.
+     */
+    synchronized long admit() {
+      if (!open) {
+        return generation;
+      }
+      long now = System.currentTimeMillis();
+      if (now - openedAtMs < openDurationMs) {
+        return REJECTED;
+      }
+      if (probeInFlight && now - probeStartedAtMs < openDurationMs) {
+        return REJECTED;
+      }
+      probeInFlight = true;
+      probeStartedAtMs = now;
+      return ++generation;
+    }
+
+    synchronized boolean isOpen() {
+      return open;
+    }
+
+    /**
+     * Records the outcome of a call admitted by {@link #admit}. Outcomes of calls admitted before
+     * the circuit last opened or closed, and of replaced probes, are ignored.
+     *
+     * @param ticket The ticket returned by {@link #admit} for the call.
+     */
+    synchronized void record(long ticket, boolean success, long latencyMs) {
+      if (ticket != generation) {
+        return;
+      }
+      if (open) {
+        // Only the current probe holds the generation of an open circuit.
+        probeInFlight = false;
+        if (success) {
+          logger.info("Closing the circuit of API " + name + " after a successful probe.");
+          open = false;
+          generation++;
+          reset();
+        } else {
+          openedAtMs = System.currentTimeMillis();
+          return;
+        }
+      }
+      if (count == WINDOW_SIZE) {
+        if (failed[next]) {
+          failures--;
+        }
+      } else {
+        count++;
+      }
+      latenciesMs[next] = latencyMs;
+      failed[next] = !success;
+      if (!success) {
+        failures++;
+      }
+      next = (next + 1) % WINDOW_SIZE;
+
+      if (count >= MIN_CALLS && failures >= count * FAILURE_RATE_THRESHOLD) {
+        logger.warning("Opening the circuit of API " + name + ": " + failures + " of the last "
+            + count + " calls failed.");
+        open = true;
+        generation++;
+        openedAtMs = System.currentTimeMillis();
+        return;
+      }
+      if (success && ++samplesSinceTimeoutUpdate >= MIN_CALLS / 2) {
+        samplesSinceTimeoutUpdate = 0;
+        updateAdaptiveTimeout();
+      }
+    }
+
+    /**
+     * Releases the ticket of a call admitted by {@link #admit} whose outcome tells nothing about
+     * the backend, without recording it as a success, a failure or a latency sample. A skipped
+     * probe lets the next call through as the probe.
+     *
+     * @param ticket The ticket returned by {@link #admit} for the call.
+     */
+    synchronized void skip(long ticket) {
+      if (open && ticket == generation) {
+        probeInFlight = false;
+      }
+    }
+
+    private void reset() {
+      next = 0;
+      count = 0;
+      failures = 0;
+      adaptiveTimeoutMs = 0;
+      samplesSinceTimeoutUpdate = 0;
+    }
+
+    private void updateAdaptiveTimeout() {
+      long[] successful = new long[count - failures];
+      int i = 0;
+      for (int j = 0; j < count; j++) {
+        if (!failed[j]) {
+          successful[i++] = latenciesMs[j];
+        }
+      }
+      if (successful.length < MIN_CALLS) {
+        adaptiveTimeoutMs = 0;
+        return;
+      }
+      Arrays.sort(successful);
+      long p99 = successful[(int) Math.ceil(successful.length * 0.99) - 1];
+      adaptiveTimeoutMs = (int) Math.min(Integer.MAX_VALUE,
+          Math.max(MIN_ADAPTIVE_TIMEOUT_MS, p99 * TIMEOUT_LATENCY_MULTIPLIER));
+    }
+
+    /**
+     * Returns the timeout to use instead of the default {@code timeoutMs}, derived from the
+     * latency of recent successful calls. Never exceeds {@code timeoutMs}.
+     */
+    synchronized int adaptTimeout(int timeoutMs) {
+      if (adaptiveTimeoutMs == 0) {
+        return timeoutMs;
+      }
+      return Math.min(timeoutMs, adaptiveTimeoutMs);
+    }
+  }
+}
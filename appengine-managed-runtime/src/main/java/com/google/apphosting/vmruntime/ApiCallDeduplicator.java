@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.RPCFailedException;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Joins identical API calls made while the first of them is still in flight onto its result.
+ *
+ * <p>When many requests read the same hot key at once, for example on a cache stampede, only the
+ * first call goes to the API server and the other callers, whatever their environment, receive a
+ * copy of its response or its failure. Only calls to the configured read methods are joined.
+ *
+ * <p>Joined callers wait no longer than their own timeout. Failures specific to the first call,
+ * which ran out of its own deadline or was cancelled, are not shared: the joined callers make the
+ * call again instead, one of them in turn being joined by the others.
+ *
+ */
+class ApiCallDeduplicator {
+  private final Set<String> methods;
+  private final ApiCallMetrics metrics;
+  private final ConcurrentMap<ApiCallKey, SettableFuture<byte[]>> inFlight =
+      new ConcurrentHashMap<>();
+
+  /**
+   * @param methods The {@code package.method} pairs whose calls may be joined.
+   * @param metrics Counts the joined calls.
+   */
+  ApiCallDeduplicator(Set<String> methods, ApiCallMetrics metrics) {
+    this.methods = Collections.unmodifiableSet(new HashSet<>(methods));
+    this.metrics = metrics;
+  }
+
+  /**
+   * Creates a deduplicator for a comma separated list of {@code package.method} pairs.
+   *
+   * @return The deduplicator, or null if the list is null or empty.
+   */
+  static ApiCallDeduplicator fromList(String methodList, ApiCallMetrics metrics) {
+    if (methodList == null || methodList.trim().isEmpty()) {
+      return null;
+    }
+    Set<String> methods = new HashSet<>();
+    for (String method : methodList.split(",")) {
+      if (!method.trim().isEmpty()) {
+        methods.add(method.trim());
+      }
+    }
+    return new ApiCallDeduplicator(methods, metrics);
+  }
+
+  boolean isDeduplicated(String packageName, String methodName) {
+    return methods.contains(packageName + "." + methodName);
+  }
+
+  /**
+   * Runs {@code loader} unless an identical call is already in flight, in which case its result
+   * is awaited instead.
+   *
+   * @param timeoutMs The longest time the caller waits for the result of a joined call.
+   * @return The response of the call, a copy of it for the joined callers.
+   */
+  byte[] run(ApiCallKey key, long timeoutMs, Loader loader) {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    while (true) {
+      SettableFuture<byte[]> pending = SettableFuture.create();
+      SettableFuture<byte[]> first = inFlight.putIfAbsent(key, pending);
+      if (first == null) {
+        return load(key, pending, loader);
+      }
+      byte[] response = await(first, key, deadlineNanos);
+      if (response != null) {
+        metrics.recordDeduplicatedCall(key.packageName, key.methodName);
+        return response.clone();
+      }
+      // The first call failed on its own, make the call again.
+    }
+  }
+
+  private byte[] load(ApiCallKey key, SettableFuture<byte[]> pending, Loader loader) {
+    try {
+      byte[] response = loader.load();
+      pending.set(response);
+      return response;
+    } catch (RuntimeException | Error e) {
+      pending.setException(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, pending);
+    }
+  }
+
+  /**
+   * Waits for the result of a joined call until {@code deadlineNanos}.
+   *
+   * @return The response, or null if the call failed in a way specific to its caller.
+   */
+  private byte[] await(SettableFuture<byte[]> pending, ApiCallKey key, long deadlineNanos) {
+    try {
+      return pending.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (isCallerFailure(cause)) {
+        return null;
+      }
+      metrics.recordDeduplicatedCall(key.packageName, key.methodName);
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RPCFailedException(key.packageName, key.methodName);
+    } catch (TimeoutException e) {
+      throw new ApiProxy.ApiDeadlineExceededException(key.packageName, key.methodName);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiProxy.CancelledException(key.packageName, key.methodName);
+    }
+  }
+
+  /**
+   * Returns true if a call failed because of the deadline, interruption or cancellation of its
+   * caller, rather than because of the API server.
+   */
+  private static boolean isCallerFailure(Throwable failure) {
+    return failure instanceof ApiProxy.ApiDeadlineExceededException
+        || failure instanceof ApiProxy.CancelledException
+        || failure instanceof CancellationException;
+  }
+
+  /**
+   * Makes the upstream call.
+   */
+  interface Loader {
+    byte[] load();
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedging policy for idempotent API reads.
+ *
+ * <p>A call to one of the configured {@code package.method} pairs that has not answered after the
+ * 95th percentile latency observed for that method is sent a second time, and the first response
+ * wins. A hedge is only sent for every {@link #CALLS_PER_HEDGE} calls to hedged methods, so hedges
+ * stay below a tenth of the calls and cannot amplify the load on a backend that is down. Calls are
+ * never hedged before {@link #MIN_HEDGE_DELAY_NANOS}, hedging methods answering faster would only
+ * duplicate them.
+ *
+ */
+class ApiCallHedger {
+  // Number of recent latencies kept per method.
+  static final int WINDOW_SIZE = 100;
+  // Minimum number of latencies observed before a method is hedged.
+  static final int MIN_SAMPLES = 20;
+  // Number of calls to hedged methods that earn one hedge.
+  static final int CALLS_PER_HEDGE = 10;
+  // Maximum number of hedges that can be saved up.
+  static final int MAX_SAVED_HEDGES = 10;
+  // Minimum time a call runs before it is hedged.
+  static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final Set<String> methods;
+  private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+  // Hedge budget, in calls.
+  private int budget;
+
+  /**
+   * @param methods The {@code package.method} pairs that may be hedged.
+   */
+  ApiCallHedger(Set<String> methods) {
+    this.methods = Collections.unmodifiableSet(new HashSet<>(methods));
+  }
+
+  /**
+   * Creates a hedger for a comma separated list of {@code package.method} pairs.
+   *
+   * @return The hedger, or null if the list is null or empty.
+   */
+  static ApiCallHedger fromList(String methodList) {
+    if (methodList == null || methodList.trim().isEmpty()) {
+      return null;
+    }
+    Set<String> methods = new HashSet<>();
+    for (String method : methodList.split(",")) {
+      if (!method.trim().isEmpty()) {
+        methods.add(method.trim());
+      }
+    }
+    return new ApiCallHedger(methods);
+  }
+
+  boolean isHedged(String packageName, String methodName) {
+    return methods.contains(packageName + "." + methodName);
+  }
+
+  /**
+   * Returns the time in nanoseconds after which a call should be hedged, or -1 if too few calls of
+   * the method were observed yet. Also credits the hedge budget for the call.
+   */
+  long startCall(String packageName, String methodName) {
+    synchronized (this) {
+      budget = Math.min(MAX_SAVED_HEDGES * CALLS_PER_HEDGE, budget + 1);
+    }
+    LatencyWindow window = latencies.get(packageName + "." + methodName);
+    long p95Nanos = window == null ? -1 : window.getP95();
+    return p95Nanos < 0 ? -1 : Math.max(MIN_HEDGE_DELAY_NANOS, p95Nanos);
+  }
+
+  /**
+   * Takes one hedge from the budget.
+   *
+   * @return false if the budget is exhausted and the call must not be hedged.
+   */
+  synchronized boolean tryAcquireHedge() {
+    if (budget < CALLS_PER_HEDGE) {
+      return false;
+    }
+    budget -= CALLS_PER_HEDGE;
+    return true;
+  }
+
+  /**
+   * Records the latency of a successful call of a hedged method, in nanoseconds.
+   */
+  void record(String packageName, String methodName, long latencyNanos) {
+    String key = packageName + "." + methodName;
+    LatencyWindow window = latencies.get(key);
+    if (window == null) {
+      LatencyWindow newWindow = new LatencyWindow();
+      window = latencies.putIfAbsent(key, newWindow);
+      if (window == null) {
+        window = newWindow;
+      }
+    }
+    window.add(latencyNanos);
+  }
+
+  /**
+   * The latencies of the last {@link #WINDOW_SIZE} calls of a method.
+   */
+  private static class LatencyWindow {
+    private final long[] latenciesNanos = new long[WINDOW_SIZE];
+    private int next;
+    private int count;
+    private volatile long p95 = -1;
+
+    synchronized void add(long latencyNanos) {
+      latenciesNanos[next] = latencyNanos;
+      next = (next + 1) % WINDOW_SIZE;
+      if (count < WINDOW_SIZE) {
+        count++;
+      }
+      // Sorting the window on every call is wasteful, refresh the percentile every few samples.
+      if (count >= MIN_SAMPLES && next % 10 == 0) {
+        long[] sorted = Arrays.copyOf(latenciesNanos, count);
+        Arrays.sort(sorted);
+        p95 = sorted[(int) Math.ceil(count * 0.95) - 1];
+      }
+    }
+
+    long getP95() {
+      return p95;
+    }
+  }
+}
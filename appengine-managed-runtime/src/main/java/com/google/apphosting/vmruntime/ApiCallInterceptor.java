@@ -0,0 +1,67 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+
+import java.util.concurrent.Future;
+
+/**
+ * Wraps the API calls made through a {@link VmApiProxyDelegate}.
+ *
+ * <p>Interceptors are installed with {@link VmApiProxyDelegate#setInterceptors} or listed in the
+ * {@value VmApiProxyDelegate#INTERCEPTORS_PROPERTY} system property, for example in the
+ * {@code system-properties} of appengine-web.xml. The first interceptor sees each call first. An
+ * interceptor may change the call, answer it itself, or pass it on to the {@link Chain}, which
+ * ends with the calls made by the delegate. A chain is built once when the interceptors are
+ * installed, so passing a call on allocates nothing.
+ *
+ * <p>Interceptors are shared by all the requests and must be thread safe.
+ *
+ */
+public interface ApiCallInterceptor {
+
+  /**
+   * Intercepts a sync API call.
+   *
+   * @param next The rest of the chain.
+   * @return The response payload.
+   */
+  byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName,
+      byte[] requestData, Chain next);
+
+  /**
+   * Intercepts an async API call. Must not block.
+   *
+   * @param apiConfig The config of the call, may be null.
+   * @param next The rest of the chain.
+   * @return The future response payload.
+   */
+  Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, ApiConfig apiConfig, Chain next);
+
+  /**
+   * The interceptors following an interceptor, then the delegate.
+   */
+  interface Chain {
+    byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName, String methodName,
+        byte[] requestData);
+
+    Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName,
+        String methodName, byte[] requestData, ApiConfig apiConfig);
+  }
+}
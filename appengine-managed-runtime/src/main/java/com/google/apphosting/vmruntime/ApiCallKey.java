@@ -0,0 +1,58 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.Arrays;
+
+/**
+ * Identifies identical API calls: same package, method and request bytes.
+ *
+ * <p>The request bytes carry the namespace of the call, so calls of different namespaces never
+ * share a key.
+ *
+ */
+class ApiCallKey {
+  final String packageName;
+  final String methodName;
+  private final byte[] requestData;
+  private final int hashCode;
+
+  ApiCallKey(String packageName, String methodName, byte[] requestData) {
+    this.packageName = packageName;
+    this.methodName = methodName;
+    this.requestData = requestData.clone();
+    this.hashCode = 31 * (31 * packageName.hashCode() + methodName.hashCode())
+        + Arrays.hashCode(requestData);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof ApiCallKey)) {
+      return false;
+    }
+    ApiCallKey key = (ApiCallKey) other;
+    return hashCode == key.hashCode
+        && packageName.equals(key.packageName)
+        && methodName.equals(key.methodName)
+        && Arrays.equals(requestData, key.requestData);
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.repackaged.com.google.common.util.concurrent.Futures;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.ListenableFuture;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.http.client.HttpClient;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded set of threads and HTTP connections reserved for some API calls.
+ *
+ * <p>Calls in a lane neither wait for the executor, the connections nor the per request
+ * semaphores used by the other API calls, and the other calls cannot use the resources of the
+ * lane. Each thread of the lane makes one blocking call at a time, so the lane needs as many
+ * connections as threads. When all threads are busy calls queue up to a fixed capacity, beyond
+ * which they fail with a {@link RejectedExecutionException}.
+ *
+ */
+class ApiCallLane {
+  // Idle threads of the lane terminate after this many seconds.
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  final HttpClient httpclient;
+  private final ThreadPoolExecutor executor;
+  private final ApiCallMetrics metrics;
+
+  /**
+   * @param name Prefix of the thread names.
+   * @param httpclient The client used for the calls of the lane, with at least {@code threads}
+   *        connections.
+   * @param threads The maximum number of concurrent calls.
+   * @param queueCapacity The maximum number of calls waiting for a thread.
+   * @param metrics Records the time calls wait for a thread.
+   */
+  ApiCallLane(String name, HttpClient httpclient, int threads, int queueCapacity,
+      ApiCallMetrics metrics) {
+    this.httpclient = httpclient;
+    this.metrics = metrics;
+    this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity),
+        new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Runs a call on a thread of the lane.
+   *
+   * @return The future result of the call, failed with a {@link RejectedExecutionException} if the
+   *         queue of the lane is full.
+   */
+  ListenableFuture<byte[]> submit(final String packageName, final String methodName,
+      final Callable<byte[]> call) {
+    final long queuedNanos = System.nanoTime();
+    ListenableFutureTask<byte[]> task = ListenableFutureTask.create(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        metrics.recordQueueWait(packageName, methodName, System.nanoTime() - queuedNanos);
+        return call.call();
+      }
+    });
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return task;
+  }
+
+  /**
+   * Closes the connections of the lane that have been idle for longer than {@code idleTime}.
+   */
+  void closeIdleConnections(long idleTime, TimeUnit unit) {
+    httpclient.getConnectionManager().closeExpiredConnections();
+    httpclient.getConnectionManager().closeIdleConnections(idleTime, unit);
+  }
+
+  /**
+   * Stops the threads of the lane once the queued calls ran and closes its connections.
+   */
+  void shutdown() {
+    executor.shutdown();
+    httpclient.getConnectionManager().shutdown();
+  }
+}
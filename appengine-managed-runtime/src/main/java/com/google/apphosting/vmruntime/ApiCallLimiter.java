@@ -0,0 +1,359 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Instance wide limit on the number of API calls in flight, adapted to the observed API latency.
+ *
+ * <p>The limit grows by one for each window of calls completing within {@link #LATENCY_TOLERANCE}
+ * times the baseline latency of their method, and shrinks by {@link #BACKOFF_RATIO} when a call is
+ * slower, by at least {@link #MIN_SLOWDOWN_NANOS}, or fails in the API server (additive increase,
+ * multiplicative decrease). It shrinks at most once per round trip: calls started before the last
+ * decrease do not decrease it again. The baseline of a method is its lowest latency, drifting
+ * slowly upwards so that it follows a lasting change.
+ *
+ * <p>Calls over the limit wait in a queue ordered either fairly, taking turns between the
+ * requests, or by the earliest deadline of their request first.
+ *
+ */
+class ApiCallLimiter {
+  private static final Logger logger = Logger.getLogger(ApiCallLimiter.class.getName());
+
+  /**
+   * The order in which waiting calls are admitted.
+   */
+  enum Ordering {
+    // Round robin between the requests, first come first served within a request.
+    FAIR,
+    // Calls of the request with the least remaining time first.
+    DEADLINE
+  }
+
+  static final int INITIAL_LIMIT = 20;
+  static final int MIN_LIMIT = 1;
+  // Factor applied to the limit when the API server is overloaded.
+  static final double BACKOFF_RATIO = 0.9;
+  // Calls slower than this many times the baseline latency of their method signal overload.
+  static final double LATENCY_TOLERANCE = 2.0;
+  // Calls less than this much slower than the baseline never signal overload, so that the noise
+  // of very fast methods does not shrink the limit.
+  static final long MIN_SLOWDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  // The baseline latency drifts up by 1/2^BASELINE_DRIFT_SHIFT of itself with each call.
+  private static final int BASELINE_DRIFT_SHIFT = 10;
+
+  private final int maxLimit;
+  private final Ordering ordering;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // The following fields are guarded by lock.
+  private double limit;
+  private int inFlight;
+  private long lastDecreaseNanos = System.nanoTime();
+  private long sequence;
+  private int queued;
+  // Waiting calls by request environment, in turn order, for FAIR ordering.
+  private final Map<Object, ArrayDeque<Waiter>> fairQueues = new LinkedHashMap<>();
+  // Waiting calls for DEADLINE ordering.
+  private final PriorityQueue<Waiter> deadlineQueue = new PriorityQueue<>();
+
+  private final AtomicLong timeouts = new AtomicLong();
+  // Package name to method name to baseline latency.
+  private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> baselines =
+      new ConcurrentHashMap<>();
+
+  /**
+   * @param maxLimit The highest limit, the size of the HTTP connection pool.
+   * @param ordering The order of the waiting calls.
+   */
+  ApiCallLimiter(int maxLimit, Ordering ordering) {
+    this.maxLimit = maxLimit;
+    this.ordering = ordering;
+    this.limit = Math.min(INITIAL_LIMIT, maxLimit);
+  }
+
+  /**
+   * Parses the ordering of a limiter, {@code fair} or {@code deadline}.
+   *
+   * @return The limiter, or null if {@code ordering} is null or empty and calls are not limited.
+   */
+  static ApiCallLimiter parse(String ordering, int maxLimit) {
+    if (ordering == null || ordering.trim().isEmpty()) {
+      return null;
+    }
+    try {
+      return new ApiCallLimiter(
+          maxLimit, Ordering.valueOf(ordering.trim().toUpperCase(Locale.US)));
+    } catch (IllegalArgumentException e) {
+      logger.warning("Ignoring invalid API concurrency limiter ordering: " + ordering);
+      return null;
+    }
+  }
+
+  /**
+   * A call waiting for the limiter.
+   */
+  private class Waiter implements Comparable<Waiter> {
+    private final Object request;
+    private final long deadlineNanos;
+    private final long sequenceNumber;
+    private final Condition admitted = lock.newCondition();
+    private boolean isAdmitted;
+
+    Waiter(Object request, long deadlineNanos, long sequenceNumber) {
+      this.request = request;
+      this.deadlineNanos = deadlineNanos;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public int compareTo(Waiter other) {
+      long difference = deadlineNanos - other.deadlineNanos;
+      if (difference == 0) {
+        difference = sequenceNumber - other.sequenceNumber;
+      }
+      return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+    }
+  }
+
+  /**
+   * Waits until the call may start.
+   *
+   * @param environment The environment of the request making the call.
+   * @param maxWaitMs The maximum time to wait.
+   * @return The start time of the call, to pass to {@link #release}.
+   * @throws ApiProxyException If the call waited too long or the thread was interrupted.
+   */
+  long acquire(VmApiProxyEnvironment environment, long maxWaitMs) throws ApiProxyException {
+    lock.lock();
+    try {
+      if (queued == 0 && inFlight < (int) limit) {
+        inFlight++;
+        return System.nanoTime();
+      }
+      // Requests without a deadline report Long.MAX_VALUE, which must not overflow.
+      long remainingMillis =
+          Math.min(environment.getRemainingMillis(), VmRuntimeUtils.ONE_DAY_IN_MILLIS);
+      Waiter waiter = new Waiter(environment,
+          System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainingMillis), sequence++);
+      enqueue(waiter);
+      long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+      try {
+        while (!waiter.isAdmitted) {
+          if (remainingNanos <= 0) {
+            remove(waiter);
+            timeouts.incrementAndGet();
+            throw new ApiProxyException("Timed out while waiting for the API concurrency limit.");
+          }
+          remainingNanos = waiter.admitted.awaitNanos(remainingNanos);
+        }
+      } catch (InterruptedException e) {
+        if (waiter.isAdmitted) {
+          releaseLocked();
+        } else {
+          remove(waiter);
+        }
+        // Keep the interrupt visible to the caller, the exception does not carry it.
+        Thread.currentThread().interrupt();
+        throw new ApiProxyException(
+            "Thread interrupted while waiting for the API concurrency limit.");
+      }
+      return System.nanoTime();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adapts the limit to the outcome of a call and lets the next waiting call start.
+   *
+   * @param startNanos The start time returned by {@link #acquire}.
+   * @param overloaded True if the call failed because the API server is overloaded.
+   */
+  void release(String packageName, String methodName, long startNanos, boolean overloaded) {
+    long now = System.nanoTime();
+    long latencyNanos = now - startNanos;
+    AtomicLong baseline = getBaseline(packageName, methodName);
+    long baselineNanos = baseline.get();
+    if (latencyNanos < baselineNanos) {
+      baseline.set(latencyNanos);
+    } else {
+      baseline.set(baselineNanos + (baselineNanos >> BASELINE_DRIFT_SHIFT) + 1);
+    }
+    boolean slow = latencyNanos > LATENCY_TOLERANCE * baselineNanos
+        && latencyNanos - baselineNanos > MIN_SLOWDOWN_NANOS;
+    lock.lock();
+    try {
+      if (overloaded || slow) {
+        if (startNanos - lastDecreaseNanos > 0) {
+          limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+          lastDecreaseNanos = now;
+        }
+      } else if (inFlight >= (int) limit) {
+        // Only grow a limit which is actually used.
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+      releaseLocked();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Lets the next waiting call start without adapting the limit, for a call whose outcome says
+   * nothing about the load of the API server.
+   */
+  void releaseUnmeasured() {
+    lock.lock();
+    try {
+      releaseLocked();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private AtomicLong getBaseline(String packageName, String methodName) {
+    ConcurrentMap<String, AtomicLong> methods = baselines.get(packageName);
+    if (methods == null) {
+      ConcurrentMap<String, AtomicLong> newMethods = new ConcurrentHashMap<>();
+      methods = baselines.putIfAbsent(packageName, newMethods);
+      if (methods == null) {
+        methods = newMethods;
+      }
+    }
+    AtomicLong baseline = methods.get(methodName);
+    if (baseline == null) {
+      AtomicLong newBaseline = new AtomicLong(Long.MAX_VALUE / 2);
+      baseline = methods.putIfAbsent(methodName, newBaseline);
+      if (baseline == null) {
+        baseline = newBaseline;
+      }
+    }
+    return baseline;
+  }
+
+  private void releaseLocked() {
+    inFlight--;
+    while (queued > 0 && inFlight < (int) limit) {
+      Waiter waiter = dequeue();
+      waiter.isAdmitted = true;
+      inFlight++;
+      waiter.admitted.signal();
+    }
+  }
+
+  private void enqueue(Waiter waiter) {
+    queued++;
+    if (ordering == Ordering.DEADLINE) {
+      deadlineQueue.add(waiter);
+      return;
+    }
+    ArrayDeque<Waiter> requestQueue = fairQueues.get(waiter.request);
+    if (requestQueue == null) {
+      requestQueue = new ArrayDeque<>();
+      fairQueues.put(waiter.request, requestQueue);
+    }
+    requestQueue.add(waiter);
+  }
+
+  private Waiter dequeue() {
+    queued--;
+    if (ordering == Ordering.DEADLINE) {
+      return deadlineQueue.poll();
+    }
+    Iterator<Map.Entry<Object, ArrayDeque<Waiter>>> turns = fairQueues.entrySet().iterator();
+    Map.Entry<Object, ArrayDeque<Waiter>> turn = turns.next();
+    Waiter waiter = turn.getValue().poll();
+    turns.remove();
+    if (!turn.getValue().isEmpty()) {
+      // The request takes its next turn after the other waiting requests.
+      fairQueues.put(turn.getKey(), turn.getValue());
+    }
+    return waiter;
+  }
+
+  private void remove(Waiter waiter) {
+    queued--;
+    if (ordering == Ordering.DEADLINE) {
+      deadlineQueue.remove(waiter);
+      return;
+    }
+    ArrayDeque<Waiter> requestQueue = fairQueues.get(waiter.request);
+    requestQueue.remove(waiter);
+    if (requestQueue.isEmpty()) {
+      fairQueues.remove(waiter.request);
+    }
+  }
+
+  /**
+   * Returns the current limit.
+   */
+  int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of calls in flight.
+   */
+  int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of calls waiting.
+   */
+  int getQueued() {
+    lock.lock();
+    try {
+      return queued;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of calls which timed out waiting.
+   */
+  long getTimeouts() {
+    return timeouts.get();
+  }
+}
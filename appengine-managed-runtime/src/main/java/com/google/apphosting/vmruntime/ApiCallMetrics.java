@@ -0,0 +1,351 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms, call counts, errors and payload sizes of API calls, per API method.
+ *
+ * <p>Recording a successful call only updates atomic counters of the method, looked up without
+ * building a key, so it neither locks nor allocates once the method has been seen. The metrics
+ * are exported in the Prometheus text format by {@link #writePrometheusText}, along with the hit
+ * and miss counters of the {@link ApiResponseCache}, the calls saved by the
+ * {@link ApiCallDeduplicator}, the queueing time of the calls made in an {@link ApiCallLane}, the
+ * state of the {@link ApiCallLimiter} and the queue of the {@link AsyncFileLogHandler}.
+ *
+ */
+public class ApiCallMetrics {
+  // Upper bounds of the latency histogram buckets, in milliseconds. An implicit last bucket counts
+  // the calls slower than the last bound.
+  static final long[] BUCKET_BOUNDS_MS =
+      {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000};
+
+  private static final ApiCallMetrics INSTANCE = new ApiCallMetrics();
+
+  // Package name to method name to metrics.
+  private final ConcurrentMap<String, ConcurrentMap<String, MethodMetrics>> metrics =
+      new ConcurrentHashMap<>();
+
+  // The instance wide concurrency limiter, if any.
+  private volatile ApiCallLimiter limiter;
+
+  // The asynchronous log file handler, if any.
+  private volatile AsyncFileLogHandler logHandler;
+
+  /**
+   * Returns the metrics recorded by all the API delegates of this runtime.
+   */
+  public static ApiCallMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records a completed API call.
+   *
+   * @param requestBytes The size of the request payload.
+   * @param responseBytes The size of the response payload, ignored if the call failed.
+   * @param failure The exception the call failed with, or null if it succeeded.
+   * @param latencyNanos The duration of the call.
+   */
+  void record(String packageName, String methodName, int requestBytes, int responseBytes,
+      Throwable failure, long latencyNanos) {
+    MethodMetrics method = getMethodMetrics(packageName, methodName);
+    long latencyMicros = latencyNanos / 1000;
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MS.length && latencyMicros > BUCKET_BOUNDS_MS[bucket] * 1000) {
+      bucket++;
+    }
+    method.buckets.incrementAndGet(bucket);
+    method.latencyMicrosSum.addAndGet(latencyMicros);
+    method.requestBytes.addAndGet(requestBytes);
+    if (failure == null) {
+      method.responseBytes.addAndGet(responseBytes);
+    } else {
+      method.countError(errorCode(failure));
+    }
+  }
+
+  /**
+   * Records a lookup in the response cache.
+   */
+  void recordCacheLookup(String packageName, String methodName, boolean hit) {
+    MethodMetrics method = getMethodMetrics(packageName, methodName);
+    if (hit) {
+      method.cacheHits.incrementAndGet();
+    } else {
+      method.cacheMisses.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records a call joined onto an identical call in flight instead of reaching the API server.
+   */
+  void recordDeduplicatedCall(String packageName, String methodName) {
+    getMethodMetrics(packageName, methodName).deduplicatedCalls.incrementAndGet();
+  }
+
+  /**
+   * Records the time a call waited for a thread of its {@link ApiCallLane}.
+   */
+  void recordQueueWait(String packageName, String methodName, long waitNanos) {
+    MethodMetrics method = getMethodMetrics(packageName, methodName);
+    method.queuedCalls.incrementAndGet();
+    method.queueWaitMicrosSum.addAndGet(waitNanos / 1000);
+  }
+
+  /**
+   * Sets the concurrency limiter whose state is exported.
+   */
+  void setLimiter(ApiCallLimiter limiter) {
+    this.limiter = limiter;
+  }
+
+  /**
+   * Sets the asynchronous log file handler whose queue is exported.
+   */
+  void setLogHandler(AsyncFileLogHandler logHandler) {
+    this.logHandler = logHandler;
+  }
+
+  private MethodMetrics getMethodMetrics(String packageName, String methodName) {
+    ConcurrentMap<String, MethodMetrics> methods = metrics.get(packageName);
+    if (methods == null) {
+      ConcurrentMap<String, MethodMetrics> newMethods = new ConcurrentHashMap<>();
+      methods = metrics.putIfAbsent(packageName, newMethods);
+      if (methods == null) {
+        methods = newMethods;
+      }
+    }
+    MethodMetrics method = methods.get(methodName);
+    if (method == null) {
+      MethodMetrics newMethod = new MethodMetrics();
+      method = methods.putIfAbsent(methodName, newMethod);
+      if (method == null) {
+        method = newMethod;
+      }
+    }
+    return method;
+  }
+
+  /**
+   * Returns the error code label of a failed call: the application error code for application
+   * errors, the exception type otherwise.
+   */
+  static String errorCode(Throwable failure) {
+    if (failure instanceof ApiProxy.ApplicationException) {
+      return "APPLICATION_ERROR_" + ((ApiProxy.ApplicationException) failure).getApplicationError();
+    }
+    return failure.getClass().getSimpleName();
+  }
+
+  /**
+   * Writes the metrics in the Prometheus text exposition format.
+   */
+  public void writePrometheusText(Writer out) throws IOException {
+    Map<String, MethodMetrics> sorted = new TreeMap<>();
+    for (Map.Entry<String, ConcurrentMap<String, MethodMetrics>> packageEntry
+        : metrics.entrySet()) {
+      for (Map.Entry<String, MethodMetrics> methodEntry : packageEntry.getValue().entrySet()) {
+        sorted.put("package=\"" + escape(packageEntry.getKey()) + "\",method=\""
+            + escape(methodEntry.getKey()) + "\"", methodEntry.getValue());
+      }
+    }
+
+    out.write("# HELP appengine_api_call_latency_seconds Latency of API calls.\n");
+    out.write("# TYPE appengine_api_call_latency_seconds histogram\n");
+    for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+      String labels = entry.getKey();
+      MethodMetrics method = entry.getValue();
+      long count = 0;
+      for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+        count += method.buckets.get(i);
+        out.write("appengine_api_call_latency_seconds_bucket{" + labels + ",le=\""
+            + BUCKET_BOUNDS_MS[i] / 1000.0 + "\"} " + count + "\n");
+      }
+      count += method.buckets.get(BUCKET_BOUNDS_MS.length);
+      out.write("appengine_api_call_latency_seconds_bucket{" + labels + ",le=\"+Inf\"} " + count
+          + "\n");
+      out.write("appengine_api_call_latency_seconds_sum{" + labels + "} "
+          + method.latencyMicrosSum.get() / 1000000.0 + "\n");
+      out.write("appengine_api_call_latency_seconds_count{" + labels + "} " + count + "\n");
+    }
+
+    out.write("# HELP appengine_api_call_errors_total Failed API calls, by error code.\n");
+    out.write("# TYPE appengine_api_call_errors_total counter\n");
+    for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+      for (Map.Entry<String, AtomicLong> error
+          : new TreeMap<>(entry.getValue().errors).entrySet()) {
+        out.write("appengine_api_call_errors_total{" + entry.getKey() + ",code=\""
+            + escape(error.getKey()) + "\"} " + error.getValue().get() + "\n");
+      }
+    }
+
+    out.write("# HELP appengine_api_request_bytes_total Size of API call requests.\n");
+    out.write("# TYPE appengine_api_request_bytes_total counter\n");
+    for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+      out.write("appengine_api_request_bytes_total{" + entry.getKey() + "} "
+          + entry.getValue().requestBytes.get() + "\n");
+    }
+
+    out.write("# HELP appengine_api_response_bytes_total Size of successful API call responses.\n");
+    out.write("# TYPE appengine_api_response_bytes_total counter\n");
+    for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+      out.write("appengine_api_response_bytes_total{" + entry.getKey() + "} "
+          + entry.getValue().responseBytes.get() + "\n");
+    }
+
+    writeCacheCounters(out, sorted);
+
+    out.write("# HELP appengine_api_deduplicated_calls_total API calls joined onto an identical"
+        + " call in flight.\n");
+    out.write("# TYPE appengine_api_deduplicated_calls_total counter\n");
+    for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+      long deduplicatedCalls = entry.getValue().deduplicatedCalls.get();
+      if (deduplicatedCalls > 0) {
+        out.write("appengine_api_deduplicated_calls_total{" + entry.getKey() + "} "
+            + deduplicatedCalls + "\n");
+      }
+    }
+
+    out.write("# HELP appengine_api_queue_wait_seconds Time API calls waited for a thread of their"
+        + " lane.\n");
+    out.write("# TYPE appengine_api_queue_wait_seconds summary\n");
+    for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+      MethodMetrics method = entry.getValue();
+      if (method.queuedCalls.get() > 0) {
+        out.write("appengine_api_queue_wait_seconds_sum{" + entry.getKey() + "} "
+            + method.queueWaitMicrosSum.get() / 1000000.0 + "\n");
+        out.write("appengine_api_queue_wait_seconds_count{" + entry.getKey() + "} "
+            + method.queuedCalls.get() + "\n");
+      }
+    }
+
+    ApiCallLimiter limiter = this.limiter;
+    if (limiter != null) {
+      writeLimiterState(out, limiter);
+    }
+    AsyncFileLogHandler logHandler = this.logHandler;
+    if (logHandler != null) {
+      writeLogQueueState(out, logHandler);
+    }
+  }
+
+  /**
+   * Writes the state of the instance wide concurrency limiter.
+   */
+  private static void writeLimiterState(Writer out, ApiCallLimiter limiter) throws IOException {
+    out.write("# HELP appengine_api_concurrency_limit Adaptive limit of the API calls in"
+        + " flight.\n");
+    out.write("# TYPE appengine_api_concurrency_limit gauge\n");
+    out.write("appengine_api_concurrency_limit " + limiter.getLimit() + "\n");
+    out.write("# HELP appengine_api_calls_in_flight API calls in flight.\n");
+    out.write("# TYPE appengine_api_calls_in_flight gauge\n");
+    out.write("appengine_api_calls_in_flight " + limiter.getInFlight() + "\n");
+    out.write("# HELP appengine_api_calls_queued API calls waiting for the concurrency limit.\n");
+    out.write("# TYPE appengine_api_calls_queued gauge\n");
+    out.write("appengine_api_calls_queued " + limiter.getQueued() + "\n");
+    out.write("# HELP appengine_api_limiter_timeouts_total API calls which timed out waiting for"
+        + " the concurrency limit.\n");
+    out.write("# TYPE appengine_api_limiter_timeouts_total counter\n");
+    out.write("appengine_api_limiter_timeouts_total " + limiter.getTimeouts() + "\n");
+  }
+
+  /**
+   * Writes the state of the queue of the asynchronous log file handler.
+   */
+  private static void writeLogQueueState(Writer out, AsyncFileLogHandler logHandler)
+      throws IOException {
+    out.write("# HELP appengine_log_queue_depth Log records waiting to be written.\n");
+    out.write("# TYPE appengine_log_queue_depth gauge\n");
+    out.write("appengine_log_queue_depth " + logHandler.getQueueDepth() + "\n");
+    out.write("# HELP appengine_log_queue_max_depth Highest number of log records which waited to"
+        + " be written at once.\n");
+    out.write("# TYPE appengine_log_queue_max_depth gauge\n");
+    out.write("appengine_log_queue_max_depth " + logHandler.getMaxQueueDepth() + "\n");
+    out.write("# HELP appengine_log_records_dropped_total Log records dropped because the log"
+        + " queue was full.\n");
+    out.write("# TYPE appengine_log_records_dropped_total counter\n");
+    out.write("appengine_log_records_dropped_total " + logHandler.getDroppedCount() + "\n");
+  }
+
+  /**
+   * Writes the cache hit and miss counters of the methods whose responses are cached.
+   */
+  private static void writeCacheCounters(Writer out, Map<String, MethodMetrics> sorted)
+      throws IOException {
+    out.write("# HELP appengine_api_cache_hits_total API calls answered from the cache.\n");
+    out.write("# TYPE appengine_api_cache_hits_total counter\n");
+    for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+      MethodMetrics method = entry.getValue();
+      if (method.cacheHits.get() + method.cacheMisses.get() > 0) {
+        out.write("appengine_api_cache_hits_total{" + entry.getKey() + "} "
+            + method.cacheHits.get() + "\n");
+      }
+    }
+    out.write("# HELP appengine_api_cache_misses_total API calls missing the cache.\n");
+    out.write("# TYPE appengine_api_cache_misses_total counter\n");
+    for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+      MethodMetrics method = entry.getValue();
+      if (method.cacheHits.get() + method.cacheMisses.get() > 0) {
+        out.write("appengine_api_cache_misses_total{" + entry.getKey() + "} "
+            + method.cacheMisses.get() + "\n");
+      }
+    }
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /**
+   * The metrics of a single API method.
+   */
+  private static class MethodMetrics {
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+    private final AtomicLong latencyMicrosSum = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong deduplicatedCalls = new AtomicLong();
+    private final AtomicLong queuedCalls = new AtomicLong();
+    private final AtomicLong queueWaitMicrosSum = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+    void countError(String code) {
+      AtomicLong count = errors.get(code);
+      if (count == null) {
+        AtomicLong newCount = new AtomicLong();
+        count = errors.putIfAbsent(code, newCount);
+        if (count == null) {
+          count = newCount;
+        }
+      }
+      count.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Retry policy for idempotent API calls failing with a transient error.
+ *
+ * <p>The policy is configured per service or per method as a comma separated list of
+ * {@code package=maxAttempts} and {@code package.method=maxAttempts} entries, the method entry
+ * winning over the package entry. Retries back off exponentially from
+ * {@link #INITIAL_BACKOFF_MS} up to {@link #MAX_BACKOFF_MS}, each wait randomized between half and
+ * all of the nominal backoff so that concurrent callers do not retry in lockstep.
+ *
+ */
+class ApiCallRetryPolicy {
+  private static final Logger logger = Logger.getLogger(ApiCallRetryPolicy.class.getName());
+
+  // Methods retried unless configured otherwise, all of them are safe to send twice.
+  // memcache.Set is not, as the same method carries the add, replace and compare-and-set policies.
+  static final String DEFAULT_POLICY = "datastore_v3.Get=3,memcache.Get=3";
+  // Attempts for calls the runtime itself marked as idempotent and for entries without a count.
+  static final int DEFAULT_MAX_ATTEMPTS = 3;
+  static final long INITIAL_BACKOFF_MS = 50;
+  static final long MAX_BACKOFF_MS = 2000;
+
+  private final Map<String, Integer> maxAttempts;
+
+  ApiCallRetryPolicy(Map<String, Integer> maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  /**
+   * Parses a policy.
+   *
+   * @return The policy, or null if {@code policy} is empty and nothing should be retried.
+   */
+  static ApiCallRetryPolicy parse(String policy) {
+    Map<String, Integer> maxAttempts = new HashMap<>();
+    for (String entry : policy.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int separator = entry.indexOf('=');
+      if (separator < 0) {
+        maxAttempts.put(entry, DEFAULT_MAX_ATTEMPTS);
+        continue;
+      }
+      try {
+        maxAttempts.put(entry.substring(0, separator).trim(),
+            Integer.parseInt(entry.substring(separator + 1).trim()));
+      } catch (NumberFormatException e) {
+        logger.warning("Ignoring invalid API retry policy entry: " + entry);
+      }
+    }
+    return maxAttempts.isEmpty() ? null : new ApiCallRetryPolicy(maxAttempts);
+  }
+
+  /**
+   * Returns the maximum number of attempts of a call, 1 if it must not be retried.
+   *
+   * @param idempotent True if the caller marked the call as safe to retry.
+   */
+  int getMaxAttempts(String packageName, String methodName, boolean idempotent) {
+    Integer attempts = maxAttempts.get(packageName + "." + methodName);
+    if (attempts == null) {
+      attempts = maxAttempts.get(packageName);
+    }
+    if (attempts == null) {
+      return idempotent ? DEFAULT_MAX_ATTEMPTS : 1;
+    }
+    return Math.max(1, attempts);
+  }
+
+  /**
+   * Returns the time to wait after the given failed attempt, starting at 1.
+   */
+  long getBackoffMs(int attempt) {
+    long backoffMs = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt - 1, 20));
+    return backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.api.appidentity.AppIdentityServicePb;
+import com.google.appengine.repackaged.com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the responses of API methods returning the same value for a while.
+ *
+ * <p>Responses are keyed by package, method and request bytes and kept for the time to live
+ * configured for their method, as a comma separated list of {@code package.method=ttlSeconds}
+ * entries. Access tokens are never kept past their expiration. The cache holds at most
+ * {@link #MAX_ENTRIES} responses and evicts the least recently used one first. Concurrent misses
+ * of the same key share a single upstream call.
+ *
+ */
+class ApiResponseCache {
+  private static final Logger logger = Logger.getLogger(ApiResponseCache.class.getName());
+
+  // Methods cached unless configured otherwise, with their time to live in seconds.
+  static final String DEFAULT_CACHED_METHODS = "app_identity_service.GetAccessToken=3600,"
+      + "app_identity_service.GetServiceAccountName=600,"
+      + "app_identity_service.GetDefaultGcsBucketName=600,"
+      + "modules.GetVersions=60";
+  // Maximum number of cached responses.
+  static final int MAX_ENTRIES = 256;
+  // Larger responses are not cached.
+  static final int MAX_CACHED_RESPONSE_BYTES = 64 * 1024;
+  // Access tokens are dropped from the cache this long before they expire.
+  static final long ACCESS_TOKEN_EXPIRATION_MARGIN_MS = 60000;
+
+  private final Map<String, Long> ttlsMs;
+  private final ApiCallMetrics metrics;
+  // Shares the upstream call between concurrent misses.
+  private final ApiCallDeduplicator loads;
+  // Guarded by itself.
+  private final LinkedHashMap<ApiCallKey, Entry> entries =
+      new LinkedHashMap<ApiCallKey, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ApiCallKey, Entry> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  ApiResponseCache(Map<String, Long> ttlsMs, ApiCallMetrics metrics) {
+    this.ttlsMs = ttlsMs;
+    this.metrics = metrics;
+    this.loads = new ApiCallDeduplicator(Collections.<String>emptySet(), metrics);
+  }
+
+  /**
+   * Parses a list of cached methods.
+   *
+   * @return The cache, or null if {@code methodList} is empty and nothing should be cached.
+   */
+  static ApiResponseCache parse(String methodList, ApiCallMetrics metrics) {
+    Map<String, Long> ttlsMs = new HashMap<>();
+    for (String entry : methodList.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int separator = entry.indexOf('=');
+      try {
+        if (separator < 0) {
+          throw new NumberFormatException();
+        }
+        ttlsMs.put(entry.substring(0, separator).trim(),
+            TimeUnit.SECONDS.toMillis(Long.parseLong(entry.substring(separator + 1).trim())));
+      } catch (NumberFormatException e) {
+        logger.warning("Ignoring invalid API response cache entry: " + entry);
+      }
+    }
+    return ttlsMs.isEmpty() ? null : new ApiResponseCache(ttlsMs, metrics);
+  }
+
+  boolean isCached(String packageName, String methodName) {
+    return ttlsMs.containsKey(packageName + "." + methodName);
+  }
+
+  /**
+   * Returns a copy of the cached response to a request, or null if it is not cached.
+   */
+  byte[] getIfPresent(String packageName, String methodName, byte[] requestData) {
+    ApiCallKey key = new ApiCallKey(packageName, methodName, requestData);
+    byte[] response;
+    synchronized (entries) {
+      response = lookup(key);
+    }
+    metrics.recordCacheLookup(packageName, methodName, response != null);
+    return response == null ? null : response.clone();
+  }
+
+  /**
+   * Returns a copy of the response to a request that missed {@link #getIfPresent}, calling
+   * {@code loader} unless another thread cached the response meanwhile or is already loading it,
+   * in which case the call waits for that thread, no longer than {@code timeoutMs}.
+   */
+  byte[] load(String packageName, String methodName, byte[] requestData, long timeoutMs,
+      final ApiCallDeduplicator.Loader loader) {
+    final ApiCallKey key = new ApiCallKey(packageName, methodName, requestData);
+    byte[] response;
+    synchronized (entries) {
+      response = lookup(key);
+    }
+    if (response == null) {
+      response = loads.run(key, timeoutMs, new ApiCallDeduplicator.Loader() {
+        @Override
+        public byte[] load() {
+          byte[] loaded = loader.load();
+          put(key, loaded);
+          return loaded;
+        }
+      });
+    }
+    return response.clone();
+  }
+
+  private byte[] lookup(ApiCallKey key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAtMs <= System.currentTimeMillis()) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.response;
+  }
+
+  private void put(ApiCallKey key, byte[] response) {
+    if (response.length > MAX_CACHED_RESPONSE_BYTES) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long expiresAtMs = now + ttlsMs.get(key.packageName + "." + key.methodName);
+    if ("app_identity_service".equals(key.packageName) && "GetAccessToken".equals(key.methodName)) {
+      expiresAtMs = Math.min(expiresAtMs, getAccessTokenExpirationMs(response));
+    }
+    if (expiresAtMs <= now) {
+      return;
+    }
+    synchronized (entries) {
+      entries.put(key, new Entry(response, expiresAtMs));
+    }
+  }
+
+  /**
+   * Returns the time after which a cached access token must no longer be used.
+   */
+  private static long getAccessTokenExpirationMs(byte[] response) {
+    try {
+      AppIdentityServicePb.GetAccessTokenResponse tokenResponse =
+          AppIdentityServicePb.GetAccessTokenResponse.parseFrom(response);
+      if (!tokenResponse.hasExpirationTime()) {
+        return Long.MAX_VALUE;
+      }
+      return TimeUnit.SECONDS.toMillis(tokenResponse.getExpirationTime())
+          - ACCESS_TOKEN_EXPIRATION_MARGIN_MS;
+    } catch (InvalidProtocolBufferException e) {
+      // Not a token we understand, do not cache it.
+      return 0;
+    }
+  }
+
+  private static class Entry {
+    private final byte[] response;
+    private final long expiresAtMs;
+
+    Entry(byte[] response, long expiresAtMs) {
+      this.response = response;
+      this.expiresAtMs = expiresAtMs;
+    }
+  }
+}
@@ -0,0 +1,483 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.repackaged.com.google.common.base.Ticker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The log lines of a request waiting to be flushed, appended without locking by any number of
+ * threads.
+ *
+ * <p>Lines are appended to the current {@link Segment}, which stores the level, timestamp and
+ * message of each line in chunks of arrays. A single compare-and-set of the state of the segment
+ * both reserves the encoded size of a line against the byte limit and claims its slot, so a
+ * segment never holds more than the limit. The segment a line does not fit in is sealed and
+ * replaced, and sealed segments are taken by the flushes in the order they were filled. The lines
+ * are only encoded when their segment is flushed, straight into the wire format of a
+ * {@code FlushRequest} holding their {@code UserAppLogGroup}.
+ *
+ * <p>A line may hold a range of a longer message, which is stored as is along with the bounds of
+ * the range and its continuation markers, so that splitting a message copies none of it.
+ *
+ */
+class AppLogBuffer {
+  // Lines per chunk of a segment.
+  static final int CHUNK_SIZE = 256;
+  // The encoded size of a line, less its message, as estimated by
+  // UserAppLogLine.maxEncodingSize().
+  static final int LINE_OVERHEAD_BYTES = 28;
+  // Markers of a line continuing the previous line, or continued in the next line.
+  static final int CONTINUED_FROM_PREVIOUS = 1;
+  static final int CONTINUED_IN_NEXT = 2;
+  private static final byte[] CONTINUATION_PREFIX_BYTES =
+      VmAppLogsWriter.LOG_CONTINUATION_PREFIX.getBytes(StandardCharsets.UTF_8);
+  private static final byte[] CONTINUATION_SUFFIX_BYTES =
+      VmAppLogsWriter.LOG_CONTINUATION_SUFFIX.getBytes(StandardCharsets.UTF_8);
+  // Wire tags of the FlushRequest.logs, UserAppLogGroup.log_line, UserAppLogLine.timestamp_usec,
+  // UserAppLogLine.level and UserAppLogLine.message fields.
+  private static final byte LOGS_TAG = 0x0a;
+  private static final byte LOG_LINE_TAG = 0x12;
+  private static final byte TIMESTAMP_TAG = 0x08;
+  private static final byte LEVEL_TAG = 0x10;
+  private static final byte MESSAGE_TAG = 0x1a;
+
+  private final long maxBytes;
+  private volatile Ticker ticker = Ticker.systemTicker();
+  // The segment lines are appended to.
+  private volatile Segment current;
+  // The oldest segment not yet taken by a flush, guarded by the lock of the flushes.
+  private Segment oldest;
+
+  /**
+   * @param maxBytes The maximum encoded size of the lines of a segment.
+   */
+  AppLogBuffer(long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.current = new Segment(maxBytes);
+    this.oldest = current;
+  }
+
+  /**
+   * Returns the size of a log line as estimated by {@code UserAppLogLine.maxEncodingSize()},
+   * without encoding its message.
+   */
+  static int encodingSize(String message) {
+    return LINE_OVERHEAD_BYTES + utf8Length(message);
+  }
+
+  /**
+   * Returns the size of a log line holding the range {@code [start, end)} of {@code message} and
+   * the given continuation markers.
+   */
+  static int encodingSize(String message, int start, int end, int markers) {
+    int size = LINE_OVERHEAD_BYTES + utf8Length(message, start, end);
+    if ((markers & CONTINUED_FROM_PREVIOUS) != 0) {
+      size += CONTINUATION_PREFIX_BYTES.length;
+    }
+    if ((markers & CONTINUED_IN_NEXT) != 0) {
+      size += CONTINUATION_SUFFIX_BYTES.length;
+    }
+    return size;
+  }
+
+  /**
+   * Returns the length of the UTF-8 encoding of {@code value}.
+   */
+  static int utf8Length(CharSequence value) {
+    return utf8Length(value, 0, value.length());
+  }
+
+  /**
+   * Returns the length of the UTF-8 encoding of the range {@code [start, end)} of {@code value}.
+   */
+  static int utf8Length(CharSequence value, int start, int end) {
+    int bytes = end - start;
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          bytes++;
+        } else if (Character.isHighSurrogate(c) && i + 1 < end
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          // A surrogate pair of 2 chars encodes to 4 bytes.
+          bytes += 2;
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          bytes += 2;
+        }
+        // An unpaired surrogate is replaced by '?'.
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Sets the source of the time used to age the lines.
+   */
+  void setTicker(Ticker ticker) {
+    this.ticker = ticker;
+  }
+
+  /**
+   * Appends a line.
+   *
+   * @return True if the line did not fit in the current segment, which was sealed and should be
+   *         flushed.
+   */
+  boolean add(int level, long timestampUsec, String message) {
+    return add(level, timestampUsec, message, 0, message.length(), 0);
+  }
+
+  /**
+   * Appends a line holding the range {@code [start, end)} of {@code message}, preceded and
+   * followed by the continuation markers given by {@code markers}.
+   *
+   * @return True if the line did not fit in the current segment, which was sealed and should be
+   *         flushed.
+   */
+  boolean add(int level, long timestampUsec, String message, int start, int end, int markers) {
+    int size = encodingSize(message, start, end, markers);
+    boolean sealed = false;
+    while (true) {
+      Segment segment = current;
+      int slot = segment.append(level, timestampUsec, message, start, end, markers, size);
+      if (slot >= 0) {
+        if (slot == 0) {
+          segment.setStartNanos(ticker.read());
+        }
+        return sealed;
+      }
+      if (slot == Segment.FULL) {
+        sealed |= seal(segment);
+      } else {
+        // Another thread sealed the segment and is about to replace it.
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Seals the current segment unless it is empty.
+   *
+   * @return True if the segment was sealed and should be flushed.
+   */
+  boolean sealCurrent() {
+    return seal(current);
+  }
+
+  private boolean seal(Segment segment) {
+    if (!segment.seal()) {
+      return false;
+    }
+    Segment next = new Segment(maxBytes);
+    segment.next = next;
+    current = next;
+    return true;
+  }
+
+  /**
+   * Returns the oldest sealed segment not yet taken by a flush, or null if there is none. Must be
+   * called with the lock of the flushes held, so that they send the segments in order.
+   */
+  Segment takeSealed() {
+    Segment segment = oldest;
+    Segment next = segment.next;
+    if (next == null) {
+      // Not sealed, or its sealer is still replacing it and will flush it.
+      return null;
+    }
+    oldest = next;
+    return segment;
+  }
+
+  /**
+   * Returns true if the oldest line of the current segment was appended at least
+   * {@code maxSeconds} ago.
+   */
+  boolean isOlderThan(int maxSeconds) {
+    return getAgeNanos() >= maxSeconds * 1000000000L;
+  }
+
+  /**
+   * Returns the time since the oldest line of the current segment was appended, or -1 if it is
+   * empty.
+   */
+  long getAgeNanos() {
+    Segment segment = current;
+    return segment.hasStarted() ? ticker.read() - segment.startNanos : -1;
+  }
+
+  /**
+   * The lines of a single flush.
+   */
+  static final class Segment {
+    // Returned by append if the segment was sealed.
+    static final int SEALED = -1;
+    // Returned by append if the line does not fit in the segment.
+    static final int FULL = -2;
+
+    // The state packs the sealed bit (the sign bit), the number of lines and their total size.
+    private static final long SEALED_BIT = Long.MIN_VALUE;
+    private static final int COUNT_SHIFT = 32;
+    private static final long BYTES_MASK = 0xffffffffL;
+
+    private final long maxBytes;
+    private final int maxLines;
+    private final AtomicLong state = new AtomicLong();
+    private final AtomicReferenceArray<Chunk> chunks;
+    private volatile long startNanos;
+    private volatile boolean started;
+    // The segment replacing this one once sealed.
+    private volatile Segment next;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+      // Every line takes at least LINE_OVERHEAD_BYTES, and one line may exceed the limit.
+      int maxChunks = (int) (maxBytes / LINE_OVERHEAD_BYTES / CHUNK_SIZE) + 2;
+      this.maxLines = maxChunks * CHUNK_SIZE;
+      this.chunks = new AtomicReferenceArray<>(maxChunks);
+    }
+
+    /**
+     * Claims a slot and stores a line in it.
+     *
+     * @return The slot of the line, {@link #SEALED} or {@link #FULL}.
+     */
+    int append(int level, long timestampUsec, String message, int start, int end, int markers,
+        int size) {
+      long value;
+      int count;
+      while (true) {
+        value = state.get();
+        if (value < 0) {
+          return SEALED;
+        }
+        count = (int) (value >>> COUNT_SHIFT);
+        long bytes = value & BYTES_MASK;
+        if (count > 0 && (bytes + size > maxBytes || count == maxLines)) {
+          return FULL;
+        }
+        if (state.compareAndSet(value, ((long) (count + 1) << COUNT_SHIFT) | (bytes + size))) {
+          break;
+        }
+      }
+      Chunk chunk = chunk(count / CHUNK_SIZE);
+      int index = count % CHUNK_SIZE;
+      chunk.levels[index] = level;
+      chunk.messageBytes[index] = size - LINE_OVERHEAD_BYTES;
+      chunk.timestamps[index] = timestampUsec;
+      chunk.starts[index] = start;
+      chunk.ends[index] = end;
+      chunk.markers[index] = (byte) markers;
+      // Publishes the other fields of the line along with the message.
+      chunk.messages.set(index, message);
+      return count;
+    }
+
+    private Chunk chunk(int index) {
+      Chunk chunk = chunks.get(index);
+      if (chunk == null) {
+        Chunk newChunk = new Chunk();
+        if (chunks.compareAndSet(index, null, newChunk)) {
+          return newChunk;
+        }
+        chunk = chunks.get(index);
+      }
+      return chunk;
+    }
+
+    /**
+     * Seals the segment unless it is empty or already sealed.
+     *
+     * @return True if this call sealed the segment.
+     */
+    boolean seal() {
+      while (true) {
+        long value = state.get();
+        if (value < 0 || value == 0) {
+          return false;
+        }
+        if (state.compareAndSet(value, value | SEALED_BIT)) {
+          return true;
+        }
+      }
+    }
+
+    void setStartNanos(long nanos) {
+      startNanos = nanos;
+      started = true;
+    }
+
+    boolean hasStarted() {
+      return started;
+    }
+
+    /**
+     * Returns the encoding of a {@code FlushRequest} holding the lines of the sealed segment,
+     * waiting for the threads that claimed a slot to finish storing their line.
+     *
+     * <p>The sizes of the lines are computed first, so that the request is encoded in a single
+     * pass into an array of its exact size, identical to {@code FlushRequest.toByteArray()}.
+     */
+    byte[] toFlushRequest() {
+      int count = (int) ((state.get() & ~SEALED_BIT) >>> COUNT_SHIFT);
+      int groupSize = 0;
+      for (int i = 0; i < count; i++) {
+        Chunk chunk = awaitLine(i);
+        int lineSize = lineSize(chunk, i % CHUNK_SIZE);
+        groupSize += 1 + varintSize(lineSize) + lineSize;
+      }
+      byte[] request = new byte[1 + varintSize(groupSize) + groupSize];
+      request[0] = LOGS_TAG;
+      int position = writeVarint(request, 1, groupSize);
+      for (int i = 0; i < count; i++) {
+        Chunk chunk = chunks.get(i / CHUNK_SIZE);
+        int index = i % CHUNK_SIZE;
+        request[position++] = LOG_LINE_TAG;
+        position = writeVarint(request, position, lineSize(chunk, index));
+        request[position++] = TIMESTAMP_TAG;
+        position = writeVarint(request, position, chunk.timestamps[index]);
+        request[position++] = LEVEL_TAG;
+        position = writeVarint(request, position, chunk.levels[index]);
+        request[position++] = MESSAGE_TAG;
+        position = writeVarint(request, position, chunk.messageBytes[index]);
+        int markers = chunk.markers[index];
+        if ((markers & CONTINUED_FROM_PREVIOUS) != 0) {
+          position = writeBytes(request, position, CONTINUATION_PREFIX_BYTES);
+        }
+        position = writeUtf8(request, position, chunk.messages.get(index), chunk.starts[index],
+            chunk.ends[index]);
+        if ((markers & CONTINUED_IN_NEXT) != 0) {
+          position = writeBytes(request, position, CONTINUATION_SUFFIX_BYTES);
+        }
+      }
+      return request;
+    }
+
+    /**
+     * Returns the chunk holding line {@code i} once the line is stored.
+     */
+    private Chunk awaitLine(int i) {
+      Chunk chunk;
+      while ((chunk = chunks.get(i / CHUNK_SIZE)) == null) {
+        Thread.yield();
+      }
+      while (chunk.messages.get(i % CHUNK_SIZE) == null) {
+        Thread.yield();
+      }
+      return chunk;
+    }
+
+    private static int lineSize(Chunk chunk, int index) {
+      int messageBytes = chunk.messageBytes[index];
+      return 1 + varintSize(chunk.timestamps[index]) + 1 + varintSize(chunk.levels[index])
+          + 1 + varintSize(messageBytes) + messageBytes;
+    }
+  }
+
+  /**
+   * Returns the size of the varint encoding of {@code value}, 10 bytes for negative values.
+   */
+  static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7fL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Writes the varint encoding of {@code value} at {@code position}.
+   *
+   * @return The position following the encoding.
+   */
+  static int writeVarint(byte[] out, int position, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out[position++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out[position++] = (byte) value;
+    return position;
+  }
+
+  /**
+   * Writes the UTF-8 encoding of {@code value} at {@code position}, replacing unpaired surrogates
+   * by '?' like {@link String#getBytes(java.nio.charset.Charset)}.
+   *
+   * @return The position following the encoding.
+   */
+  static int writeUtf8(byte[] out, int position, CharSequence value) {
+    return writeUtf8(out, position, value, 0, value.length());
+  }
+
+  /**
+   * Writes the UTF-8 encoding of the range {@code [start, end)} of {@code value} at
+   * {@code position}, like {@link #writeUtf8(byte[], int, CharSequence)}.
+   *
+   * @return The position following the encoding.
+   */
+  static int writeUtf8(byte[] out, int position, CharSequence value, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        out[position++] = (byte) c;
+      } else if (c < 0x800) {
+        out[position++] = (byte) (0xc0 | (c >>> 6));
+        out[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (!Character.isSurrogate(c)) {
+        out[position++] = (byte) (0xe0 | (c >>> 12));
+        out[position++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+        out[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        out[position++] = (byte) (0xf0 | (codePoint >>> 18));
+        out[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+        out[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+        out[position++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else {
+        out[position++] = '?';
+      }
+    }
+    return position;
+  }
+
+  private static int writeBytes(byte[] out, int position, byte[] bytes) {
+    System.arraycopy(bytes, 0, out, position, bytes.length);
+    return position + bytes.length;
+  }
+
+  /**
+   * A fixed number of lines, stored field by field.
+   */
+  private static final class Chunk {
+    final int[] levels = new int[CHUNK_SIZE];
+    // The length of the UTF-8 encoding of each message, including its continuation markers.
+    final int[] messageBytes = new int[CHUNK_SIZE];
+    final long[] timestamps = new long[CHUNK_SIZE];
+    // The range of the message held by each line, and its continuation markers.
+    final int[] starts = new int[CHUNK_SIZE];
+    final int[] ends = new int[CHUNK_SIZE];
+    final byte[] markers = new byte[CHUNK_SIZE];
+    final AtomicReferenceArray<String> messages = new AtomicReferenceArray<>(CHUNK_SIZE);
+  }
+}
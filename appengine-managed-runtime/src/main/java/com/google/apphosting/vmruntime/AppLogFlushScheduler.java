@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instance wide scheduler flushing the app logs buffered by the {@link VmAppLogsWriter}s in the
+ * background, once their oldest line has waited for the flush delay.
+ *
+ * <p>The flush delay follows the observed latency of the flushes: it is
+ * {@link #LATENCY_MULTIPLE} times their moving average, within {@link #MIN_FLUSH_DELAY_MS} and the
+ * maximum age of the writer. Logs are flushed soon while flushes are cheap, and in larger batches
+ * when the log service slows down.
+ *
+ */
+class AppLogFlushScheduler {
+  private static final Logger logger = Logger.getLogger(AppLogFlushScheduler.class.getName());
+
+  // The shortest time lines are buffered, so that most short requests are flushed once.
+  static final long MIN_FLUSH_DELAY_MS = 500;
+  // The flush delay in multiples of the average flush latency.
+  static final int LATENCY_MULTIPLE = 50;
+  // The moving average moves by 1/2^SMOOTHING_SHIFT of the difference with each flush.
+  private static final int SMOOTHING_SHIFT = 3;
+
+  private static final AppLogFlushScheduler INSTANCE = new AppLogFlushScheduler();
+
+  private final ScheduledExecutorService executor;
+  // The moving average of the flush latency, 0 until a flush completed.
+  private final AtomicLong averageLatencyNanos = new AtomicLong();
+
+  AppLogFlushScheduler() {
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "AppLogFlusher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Returns the scheduler shared by the writers of all the requests.
+   */
+  static AppLogFlushScheduler getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Asks {@code writer} to flush its aged lines after {@code delayNanos}.
+   */
+  void schedule(final VmAppLogsWriter writer, long delayNanos) {
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writer.flushAgedLines();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Background app logs flush failed.", e);
+        }
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Records the latency of a completed flush.
+   */
+  void recordFlushLatency(long latencyNanos) {
+    while (true) {
+      long average = averageLatencyNanos.get();
+      long updated = average == 0
+          ? latencyNanos : average + ((latencyNanos - average) >> SMOOTHING_SHIFT);
+      if (averageLatencyNanos.compareAndSet(average, Math.max(updated, 1))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the time lines wait before they are flushed in the background.
+   *
+   * @param maxDelayNanos The maximum age of the lines of the writer.
+   */
+  long getFlushDelayNanos(long maxDelayNanos) {
+    long delayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_FLUSH_DELAY_MS),
+        LATENCY_MULTIPLE * averageLatencyNanos.get());
+    return Math.min(delayNanos, maxDelayNanos);
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.repackaged.com.google.common.util.concurrent.ListenableFuture;
+
+import org.apache.http.client.methods.HttpPost;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future of an async API call, tracked by the environment of its request until it completes.
+ *
+ * <p>It records whether the result of the call was ever read, so that calls nobody waits for can
+ * be cancelled at the end of the request. Cancelling it also aborts the HTTP request currently
+ * sending the call, which releases its connection.
+ *
+ */
+class AsyncApiCall implements ListenableFuture<byte[]> {
+  private final ListenableFuture<byte[]> call;
+  private final boolean cancelIfUnread;
+  private volatile boolean read;
+  private volatile HttpPost request;
+
+  /**
+   * @param call The future result of the call.
+   * @param cancelIfUnread True if the call is cancelled at the end of its request unless its result
+   *        was read.
+   */
+  AsyncApiCall(ListenableFuture<byte[]> call, boolean cancelIfUnread) {
+    this.call = call;
+    this.cancelIfUnread = cancelIfUnread;
+  }
+
+  /**
+   * Returns true if the call is cancelled at the end of its request unless its result was read.
+   */
+  boolean isCancelledIfUnread() {
+    return cancelIfUnread;
+  }
+
+  /**
+   * Returns true if the result of the call was requested.
+   */
+  boolean isRead() {
+    return read;
+  }
+
+  /**
+   * Sets the HTTP request currently sending the call, aborted if the call is cancelled.
+   */
+  void setRequest(HttpPost request) {
+    this.request = request;
+    if (isCancelled()) {
+      request.abort();
+    }
+  }
+
+  @Override
+  public void addListener(Runnable listener, Executor executor) {
+    call.addListener(listener, executor);
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return call.isCancelled();
+  }
+
+  @Override
+  public boolean isDone() {
+    return call.isDone();
+  }
+
+  @Override
+  public byte[] get() throws InterruptedException, ExecutionException {
+    read = true;
+    return call.get();
+  }
+
+  @Override
+  public byte[] get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    read = true;
+    return call.get(timeout, unit);
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (!call.cancel(mayInterruptIfRunning)) {
+      return false;
+    }
+    HttpPost currentRequest = request;
+    if (currentRequest != null) {
+      currentRequest.abort();
+    }
+    return true;
+  }
+}
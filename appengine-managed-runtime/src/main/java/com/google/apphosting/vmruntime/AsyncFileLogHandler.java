@@ -0,0 +1,409 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler writing formatted records to rotated files from a single background thread, so
+ * that logging threads never wait for the disk.
+ *
+ * <p>Records are formatted on the logging thread, as formatters may read its state, and queued in
+ * a bounded queue without locking. The writer thread takes them in batches, encodes them into a
+ * direct buffer and writes the buffer through a {@link FileChannel}. Files rotate like those of a
+ * {@link java.util.logging.FileHandler}: once the current file reaches the size limit, generation
+ * {@code n} is renamed to {@code n + 1}, dropping the last one, and a new generation 0 is started.
+ *
+ * <p>When the queue is full, the {@link OverflowPolicy} decides whether logging threads wait for
+ * room or the records are dropped.
+ *
+ */
+class AsyncFileLogHandler extends Handler {
+  /**
+   * What happens to a record published while the queue is full.
+   */
+  enum OverflowPolicy {
+    /** The logging thread waits for room in the queue. */
+    BLOCK,
+    /** The record is dropped and counted. */
+    DROP,
+    /** The record is dropped and counted, and the writer logs how many were dropped. */
+    SUMMARIZE
+  }
+
+  static final int DEFAULT_QUEUE_CAPACITY = 8192;
+  // The size of the direct buffer records are encoded into.
+  static final int BUFFER_SIZE = 64 * 1024;
+  // The longest time the writer sleeps without being woken up by a record.
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  // How long a blocked logging thread sleeps before trying again.
+  private static final long BLOCKED_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  // How long flush and close wait for the writer.
+  private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private final Path[] files;
+  private final long limit;
+  private final int capacity;
+  private final OverflowPolicy overflowPolicy;
+  private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+  // The number of records in the queue, reserved before they are added.
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicInteger maxDepth = new AtomicInteger();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+  // The number of published records written (or failed to write) by the writer.
+  private volatile long written;
+  // True while the writer is about to sleep, so that publishers wake it up.
+  private volatile boolean idle;
+  private volatile boolean closed;
+
+  // The following fields are only used by the writer thread.
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private FileChannel channel;
+  // The size of the current file, including the encoded records not yet written.
+  private long size;
+  private long droppedReported;
+
+  /**
+   * @param pattern The pattern of the file names, as for a {@link java.util.logging.FileHandler}.
+   * @param limit The size of a file after which the files are rotated.
+   * @param count The number of files.
+   * @param capacity The maximum number of queued records.
+   * @param overflowPolicy What happens to the records published while the queue is full.
+   */
+  AsyncFileLogHandler(String pattern, long limit, int count, int capacity,
+      OverflowPolicy overflowPolicy) throws IOException {
+    this.files = new Path[count];
+    for (int generation = 0; generation < count; generation++) {
+      files[generation] = Paths.get(fileName(pattern, generation, count));
+    }
+    this.limit = limit;
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    openCurrentFile(StandardOpenOption.APPEND);
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeRecords();
+      }
+    }, "AppFileLogWriter");
+    writer.setDaemon(true);
+  }
+
+  /**
+   * Returns the name of a file of the given generation, expanding {@code %g}, {@code %u},
+   * {@code %t}, {@code %h} and {@code %%} like a {@link java.util.logging.FileHandler}.
+   */
+  static String fileName(String pattern, int generation, int count) {
+    StringBuilder name = new StringBuilder();
+    boolean hasGeneration = false;
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c != '%' || i + 1 == pattern.length()) {
+        name.append(c);
+        continue;
+      }
+      char next = pattern.charAt(++i);
+      if (next == 'g') {
+        name.append(generation);
+        hasGeneration = true;
+      } else if (next == 'u') {
+        name.append(0);
+      } else if (next == 't') {
+        name.append(System.getProperty("java.io.tmpdir"));
+      } else if (next == 'h') {
+        name.append(System.getProperty("user.home"));
+      } else if (next == '%') {
+        name.append('%');
+      } else {
+        name.append(c).append(next);
+      }
+    }
+    if (!hasGeneration && count > 1) {
+      name.append('.').append(generation);
+    }
+    return name.toString();
+  }
+
+  /**
+   * Starts the writer thread.
+   */
+  void start() {
+    writer.start();
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+    String formatted;
+    try {
+      formatted = getFormatter().format(record);
+    } catch (RuntimeException e) {
+      reportError(null, e, ErrorManager.FORMAT_FAILURE);
+      return;
+    }
+    if (!reserve()) {
+      dropped.incrementAndGet();
+      return;
+    }
+    published.incrementAndGet();
+    queue.add(formatted);
+    if (closed && queue.remove(formatted)) {
+      // Closed meanwhile, so the last drain of the queue may have missed the record.
+      depth.decrementAndGet();
+      published.decrementAndGet();
+      return;
+    }
+    if (idle) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Reserves room in the queue for a record, waiting for it if the policy is to block.
+   *
+   * @return False if the queue is full and the record should be dropped.
+   */
+  private boolean reserve() {
+    while (true) {
+      int current = depth.get();
+      if (current >= capacity) {
+        if (overflowPolicy != OverflowPolicy.BLOCK || closed) {
+          return false;
+        }
+        LockSupport.unpark(writer);
+        LockSupport.parkNanos(this, BLOCKED_NANOS);
+        continue;
+      }
+      if (depth.compareAndSet(current, current + 1)) {
+        int max;
+        while (current + 1 > (max = maxDepth.get())
+            && !maxDepth.compareAndSet(max, current + 1)) {
+          // Raced with another publisher, try again.
+        }
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Waits for the writer to write the records published so far.
+   */
+  @Override
+  public void flush() {
+    long target = published.get();
+    long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+    while (written < target && writer.isAlive() && System.nanoTime() < deadline) {
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(this, BLOCKED_NANOS);
+    }
+  }
+
+  /**
+   * Stops accepting records, and waits for the writer to write the queued records and close the
+   * file. A record published concurrently is either in the queue before the writer sees the handler
+   * closed, and written, or taken back out of the queue by {@link #publish}.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      if (writer.isAlive()) {
+        writer.join(TimeUnit.NANOSECONDS.toMillis(FLUSH_TIMEOUT_NANOS));
+      } else {
+        writeQueuedRecords();
+        closeCurrentFile();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the number of records waiting to be written.
+   */
+  int getQueueDepth() {
+    return depth.get();
+  }
+
+  /**
+   * Returns the highest number of records that waited to be written at once.
+   */
+  int getMaxQueueDepth() {
+    return maxDepth.get();
+  }
+
+  /**
+   * Returns the number of records dropped because the queue was full.
+   */
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  private void writeRecords() {
+    while (true) {
+      boolean wasClosed = closed;
+      writeQueuedRecords();
+      if (wasClosed) {
+        closeCurrentFile();
+        return;
+      }
+      idle = true;
+      if (queue.isEmpty() && !closed) {
+        LockSupport.parkNanos(this, IDLE_NANOS);
+      }
+      idle = false;
+    }
+  }
+
+  /**
+   * Writes the queued records, and a summary of the dropped records if required.
+   */
+  private void writeQueuedRecords() {
+    long count = 0;
+    String record;
+    while ((record = queue.poll()) != null) {
+      depth.decrementAndGet();
+      count++;
+      encode(record);
+    }
+    if (overflowPolicy == OverflowPolicy.SUMMARIZE) {
+      long droppedTotal = dropped.get();
+      if (droppedTotal > droppedReported) {
+        LogRecord summary = new LogRecord(Level.WARNING, "Dropped "
+            + (droppedTotal - droppedReported) + " log records because the log queue was full.");
+        summary.setLoggerName(AsyncFileLogHandler.class.getName());
+        droppedReported = droppedTotal;
+        try {
+          encode(getFormatter().format(summary));
+        } catch (RuntimeException e) {
+          reportError(null, e, ErrorManager.FORMAT_FAILURE);
+        }
+      }
+    }
+    if (buffer.position() > 0) {
+      writeBuffer();
+    }
+    if (count > 0) {
+      written += count;
+    }
+  }
+
+  /**
+   * Encodes a record into the buffer, writing the buffer out whenever it fills up, and rotates the
+   * files once the record reached the size limit.
+   */
+  private void encode(String record) {
+    if (channel == null) {
+      return;
+    }
+    int start = buffer.position();
+    long encoded = 0;
+    CharBuffer chars = CharBuffer.wrap(record);
+    encoder.reset();
+    while (encoder.encode(chars, buffer, true).isOverflow()) {
+      encoded += buffer.position() - start;
+      writeBuffer();
+      start = 0;
+    }
+    while (encoder.flush(buffer).isOverflow()) {
+      encoded += buffer.position() - start;
+      writeBuffer();
+      start = 0;
+    }
+    encoded += buffer.position() - start;
+    size += encoded;
+    if (limit > 0 && size >= limit) {
+      writeBuffer();
+      rotate();
+    }
+  }
+
+  private void writeBuffer() {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      reportError(null, e, ErrorManager.WRITE_FAILURE);
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  private void rotate() {
+    closeCurrentFile();
+    try {
+      for (int generation = files.length - 2; generation >= 0; generation--) {
+        if (Files.exists(files[generation])) {
+          Files.move(files[generation], files[generation + 1],
+              StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      openCurrentFile(StandardOpenOption.TRUNCATE_EXISTING);
+    } catch (IOException e) {
+      reportError(null, e, ErrorManager.OPEN_FAILURE);
+    }
+  }
+
+  private void openCurrentFile(StandardOpenOption mode) throws IOException {
+    channel = FileChannel.open(files[0], StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        mode);
+    size = channel.size();
+  }
+
+  private void closeCurrentFile() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      reportError(null, e, ErrorManager.CLOSE_FAILURE);
+    }
+    channel = null;
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The attributes of a background thread, layered over the attributes of the default environment.
+ *
+ * <p>Reads fall through to the shared base map until the thread sets or removes the attribute,
+ * and writes only ever go to the thread's own layer, so creating a thread copies nothing. Like
+ * the copy it replaces, the overlay belongs to a single thread and is not synchronized.
+ *
+ */
+class AttributeOverlay extends AbstractMap<String, Object> {
+  // Stored in the layer for the attributes removed by the thread.
+  private static final Object REMOVED = new Object();
+
+  private final Map<String, Object> base;
+  // Created on the first write, as most background threads never set an attribute.
+  private Map<String, Object> layer;
+
+  /**
+   * @param base The attributes shared by all the background threads.
+   */
+  AttributeOverlay(Map<String, Object> base) {
+    this.base = base;
+  }
+
+  private Map<String, Object> layer() {
+    if (layer == null) {
+      layer = new HashMap<>();
+    }
+    return layer;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (layer != null && layer.containsKey(key)) {
+      return layer.get(key) != REMOVED;
+    }
+    return base.containsKey(key);
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (layer != null && layer.containsKey(key)) {
+      Object value = layer.get(key);
+      return value == REMOVED ? null : value;
+    }
+    return base.get(key);
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    Object previous = get(key);
+    layer().put(key, value);
+    return previous;
+  }
+
+  @Override
+  public Object remove(Object key) {
+    if (!containsKey(key)) {
+      return null;
+    }
+    Object previous = get(key);
+    layer().put((String) key, REMOVED);
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    for (String key : snapshot().keySet()) {
+      layer().put(key, REMOVED);
+    }
+  }
+
+  /**
+   * Returns a copy of the attributes seen by the thread.
+   */
+  private Map<String, Object> snapshot() {
+    Map<String, Object> snapshot = new LinkedHashMap<>(base);
+    if (layer != null) {
+      for (Map.Entry<String, Object> entry : layer.entrySet()) {
+        if (entry.getValue() == REMOVED) {
+          snapshot.remove(entry.getKey());
+        } else {
+          snapshot.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        final Iterator<Map.Entry<String, Object>> entries = snapshot().entrySet().iterator();
+        return new Iterator<Map.Entry<String, Object>>() {
+          private Map.Entry<String, Object> current;
+
+          @Override
+          public boolean hasNext() {
+            return entries.hasNext();
+          }
+
+          @Override
+          public Map.Entry<String, Object> next() {
+            final Map.Entry<String, Object> entry = entries.next();
+            current = new AbstractMap.SimpleEntry<String, Object>(entry) {
+              @Override
+              public Object setValue(Object value) {
+                put(getKey(), value);
+                return super.setValue(value);
+              }
+            };
+            return current;
+          }
+
+          @Override
+          public void remove() {
+            if (current == null) {
+              throw new IllegalStateException();
+            }
+            AttributeOverlay.this.remove(current.getKey());
+            current = null;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return snapshot().size();
+      }
+    };
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request entity holding the wire encoding of a {@code RemoteApiPb.Request} without copying the
+ * API call payload.
+ *
+ * <p>Only the few bytes of protobuf framing around the payload are encoded up front; the caller's
+ * byte array is written to the connection as is. The encoding is identical to
+ * {@code RemoteApiPb.Request.toByteArray()}.
+ *
+ */
+class RemoteApiRequestEntity extends AbstractHttpEntity {
+  // Wire tags of the RemoteApiPb.Request fields, in field number order.
+  private static final int SERVICE_NAME_TAG = 0x12;
+  private static final int METHOD_TAG = 0x1a;
+  private static final int REQUEST_TAG = 0x22;
+  private static final int REQUEST_ID_TAG = 0x2a;
+
+  private final byte[] prefix;
+  private final byte[] requestData;
+  private final byte[] suffix;
+
+  /**
+   * Creates the entity for an API call.
+   *
+   * @param packageName The API call package
+   * @param methodName The API call method
+   * @param requestData The API call payload, must not be modified while the entity is in use.
+   * @param requestId The ticket of the request issuing the call, or null.
+   */
+  RemoteApiRequestEntity(String packageName, String methodName, byte[] requestData,
+      String requestId) {
+    ByteArrayOutputStream prefixBytes = new ByteArrayOutputStream(
+        packageName.length() + methodName.length() + 16);
+    writeField(prefixBytes, SERVICE_NAME_TAG, packageName.getBytes(StandardCharsets.UTF_8));
+    writeField(prefixBytes, METHOD_TAG, methodName.getBytes(StandardCharsets.UTF_8));
+    prefixBytes.write(REQUEST_TAG);
+    writeVarint(prefixBytes, requestData.length);
+    this.prefix = prefixBytes.toByteArray();
+    this.requestData = requestData;
+    if (requestId == null) {
+      this.suffix = new byte[0];
+    } else {
+      ByteArrayOutputStream suffixBytes = new ByteArrayOutputStream(requestId.length() + 6);
+      writeField(suffixBytes, REQUEST_ID_TAG, requestId.getBytes(StandardCharsets.UTF_8));
+      this.suffix = suffixBytes.toByteArray();
+    }
+    setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+    setChunked(false);
+  }
+
+  private static void writeField(ByteArrayOutputStream out, int tag, byte[] value) {
+    out.write(tag);
+    writeVarint(out, value.length);
+    out.write(value, 0, value.length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return prefix.length + requestData.length + suffix.length;
+  }
+
+  @Override
+  public InputStream getContent() {
+    return new SequenceInputStream(
+        new SequenceInputStream(
+            new ByteArrayInputStream(prefix), new ByteArrayInputStream(requestData)),
+        new ByteArrayInputStream(suffix));
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    writeContentTo(out);
+    out.flush();
+  }
+
+  /**
+   * Writes the encoded request without flushing {@code out}, for callers writing several of them.
+   */
+  void writeContentTo(OutputStream out) throws IOException {
+    out.write(prefix);
+    out.write(requestData);
+    out.write(suffix);
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The API calls made by a single request: calls and latency per API package, payload sizes and
+ * the time spent waiting for the API call semaphores of the request.
+ *
+ * <p>Unlike the instance wide {@link ApiCallMetrics}, these are reported once the request is done,
+ * in a {@code Server-Timing} response header and a summary log line, so that a slow request can be
+ * attributed to the APIs it called. The log flushes the runtime makes for the request are not
+ * counted.
+ *
+ */
+class RequestApiStats {
+  // Prefix of the Server-Timing metric of each API package.
+  static final String SERVER_TIMING_PREFIX = "api-";
+  // The Server-Timing metric of the time spent waiting for the API call semaphores.
+  static final String SERVER_TIMING_WAIT = "api-wait";
+
+  /**
+   * The calls to one API package.
+   */
+  private static class PackageStats {
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong latencyNanosSum = new AtomicLong();
+    final AtomicLong latencyNanosMax = new AtomicLong();
+  }
+
+  // Package name to stats, created on the first call to the package.
+  private final ConcurrentMap<String, PackageStats> packages = new ConcurrentHashMap<>(4);
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong semaphoreWaitNanos = new AtomicLong();
+
+  /**
+   * Records a completed API call.
+   *
+   * @param requestBytes The size of the request payload.
+   * @param responseBytes The size of the response payload, 0 if the call failed.
+   * @param latencyNanos The duration of the call.
+   */
+  void record(String packageName, int requestBytes, int responseBytes, long latencyNanos) {
+    PackageStats stats = packages.get(packageName);
+    if (stats == null) {
+      PackageStats newStats = new PackageStats();
+      stats = packages.putIfAbsent(packageName, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    stats.calls.incrementAndGet();
+    stats.latencyNanosSum.addAndGet(latencyNanos);
+    long max = stats.latencyNanosMax.get();
+    while (latencyNanos > max && !stats.latencyNanosMax.compareAndSet(max, latencyNanos)) {
+      max = stats.latencyNanosMax.get();
+    }
+    bytesSent.addAndGet(requestBytes);
+    bytesReceived.addAndGet(responseBytes);
+  }
+
+  /**
+   * Records the time an API call waited for a semaphore of the request.
+   */
+  void recordSemaphoreWait(long waitNanos) {
+    semaphoreWaitNanos.addAndGet(waitNanos);
+  }
+
+  /**
+   * Returns the number of API calls made.
+   */
+  long getCalls() {
+    long calls = 0;
+    for (PackageStats stats : packages.values()) {
+      calls += stats.calls.get();
+    }
+    return calls;
+  }
+
+  long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  long getSemaphoreWaitNanos() {
+    return semaphoreWaitNanos.get();
+  }
+
+  private Map<String, PackageStats> sortedPackages() {
+    return new TreeMap<>(packages);
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.US, "%.1f", nanos / 1000000.0);
+  }
+
+  /**
+   * Returns the value of the {@code Server-Timing} header: the total latency of the calls to each
+   * API package, described by their count and maximum latency, and the semaphore wait time.
+   */
+  String toServerTiming() {
+    StringBuilder header = new StringBuilder();
+    for (Map.Entry<String, PackageStats> entry : sortedPackages().entrySet()) {
+      PackageStats stats = entry.getValue();
+      header.append(SERVER_TIMING_PREFIX).append(entry.getKey())
+          .append(";dur=").append(millis(stats.latencyNanosSum.get()))
+          .append(";desc=\"").append(stats.calls.get()).append(" calls, max ")
+          .append(millis(stats.latencyNanosMax.get())).append("ms\", ");
+    }
+    header.append(SERVER_TIMING_WAIT).append(";dur=").append(millis(semaphoreWaitNanos.get()));
+    return header.toString();
+  }
+
+  /**
+   * Returns the summary of the calls as space separated {@code key=value} pairs, with the pairs of
+   * each API package prefixed by its name.
+   */
+  String toLogLine() {
+    StringBuilder line = new StringBuilder("API calls summary: calls=").append(getCalls())
+        .append(" bytesSent=").append(bytesSent.get())
+        .append(" bytesReceived=").append(bytesReceived.get())
+        .append(" semaphoreWaitMs=").append(millis(semaphoreWaitNanos.get()));
+    for (Map.Entry<String, PackageStats> entry : sortedPackages().entrySet()) {
+      PackageStats stats = entry.getValue();
+      String prefix = " " + entry.getKey() + ".";
+      line.append(prefix).append("calls=").append(stats.calls.get())
+          .append(prefix).append("totalMs=").append(millis(stats.latencyNanosSum.get()))
+          .append(prefix).append("maxMs=").append(millis(stats.latencyNanosMax.get()));
+    }
+    return line.toString();
+  }
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The attributes of a request environment, in an open-addressed hash table.
+ *
+ * <p>Keys and values are kept in two arrays probed linearly, so an attribute costs no allocation
+ * beyond the arrays, which are sized for the attributes set from the request headers. Lookups take
+ * no lock: they read the table optimistically and only retry under the read lock if a write ran
+ * concurrently, so the threads of a request do not serialize on its attributes. The views iterate
+ * over a snapshot of the attributes. Null keys are not supported.
+ *
+ */
+class RequestAttributes extends AbstractMap<String, Object> {
+  // Room for the attributes of a typical request without resizing, a power of two.
+  static final int DEFAULT_CAPACITY = 64;
+  // Stored in place of null values, as null marks the empty slots.
+  private static final Object NULL_VALUE = new Object();
+
+  /**
+   * The arrays of the table, replaced together when it grows.
+   */
+  private static final class Table {
+    final String[] keys;
+    final Object[] values;
+
+    Table(int capacity) {
+      keys = new String[capacity];
+      values = new Object[capacity];
+    }
+  }
+
+  private final StampedLock lock = new StampedLock();
+  // The following fields are written under the write lock.
+  private Table table;
+  private int size;
+
+  RequestAttributes() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity The initial size of the table, a power of two.
+   */
+  RequestAttributes(int capacity) {
+    table = new Table(capacity);
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the slot of {@code table} holding {@code key}, or the empty slot ending its probe
+   * sequence, or -1 if there is none, which is only seen by a reader racing with a writer.
+   */
+  private static int slotOf(Table table, Object key) {
+    String[] keys = table.keys;
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    for (int probes = 0; probes < keys.length; probes++) {
+      String slotKey = keys[slot];
+      if (slotKey == null || slotKey.equals(key)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the value stored for {@code key}, NULL_VALUE included, or null if it is absent.
+   */
+  private Object lookup(Object key) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      Table current = table;
+      int slot = slotOf(current, key);
+      Object value = slot < 0 ? null : current.values[slot];
+      if (lock.validate(stamp)) {
+        return value;
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return table.values[slotOf(table, key)];
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public int size() {
+    long stamp = lock.tryOptimisticRead();
+    int currentSize = size;
+    if (lock.validate(stamp)) {
+      return currentSize;
+    }
+    stamp = lock.readLock();
+    try {
+      return size;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key != null && lookup(key) != null;
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (key == null) {
+      return null;
+    }
+    Object value = lookup(key);
+    return value == NULL_VALUE ? null : value;
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    if (key == null) {
+      throw new NullPointerException("Attribute keys must not be null");
+    }
+    long stamp = lock.writeLock();
+    try {
+      int slot = slotOf(table, key);
+      Object previous = table.values[slot];
+      table.values[slot] = value == null ? NULL_VALUE : value;
+      if (table.keys[slot] == null) {
+        table.keys[slot] = key;
+        if (++size > table.keys.length * 3 / 4) {
+          resize();
+        }
+        return null;
+      }
+      return previous == NULL_VALUE ? null : previous;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Object remove(Object key) {
+    if (key == null) {
+      return null;
+    }
+    long stamp = lock.writeLock();
+    try {
+      int slot = slotOf(table, key);
+      if (table.keys[slot] == null) {
+        return null;
+      }
+      Object previous = table.values[slot];
+      delete(slot);
+      size--;
+      return previous == NULL_VALUE ? null : previous;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Empties {@code slot}, moving back the following entries of the probe sequence that would no
+   * longer be found otherwise.
+   */
+  private void delete(int slot) {
+    String[] keys = table.keys;
+    Object[] values = table.values;
+    int mask = keys.length - 1;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (keys[next] == null) {
+        break;
+      }
+      int home = hash(keys[next]) & mask;
+      // The entry may move to the empty slot unless its home lies cyclically in (slot, next].
+      boolean stays = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+      if (!stays) {
+        keys[slot] = keys[next];
+        values[slot] = values[next];
+        slot = next;
+      }
+    }
+    keys[slot] = null;
+    values[slot] = null;
+  }
+
+  private void resize() {
+    Table oldTable = table;
+    Table newTable = new Table(oldTable.keys.length * 2);
+    for (int i = 0; i < oldTable.keys.length; i++) {
+      if (oldTable.keys[i] != null) {
+        int slot = slotOf(newTable, oldTable.keys[i]);
+        newTable.keys[slot] = oldTable.keys[i];
+        newTable.values[slot] = oldTable.values[i];
+      }
+    }
+    table = newTable;
+  }
+
+  @Override
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      table = new Table(table.keys.length);
+      size = 0;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the attributes.
+   */
+  private List<Map.Entry<String, Object>> entries() {
+    long stamp = lock.readLock();
+    try {
+      List<Map.Entry<String, Object>> entries = new ArrayList<>(size);
+      String[] keys = table.keys;
+      Object[] values = table.values;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != null) {
+          entries.add(new Attribute(keys[i], values[i] == NULL_VALUE ? null : values[i]));
+        }
+      }
+      return entries;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        final Iterator<Map.Entry<String, Object>> snapshot = entries().iterator();
+        return new Iterator<Map.Entry<String, Object>>() {
+          private Map.Entry<String, Object> current;
+
+          @Override
+          public boolean hasNext() {
+            return snapshot.hasNext();
+          }
+
+          @Override
+          public Map.Entry<String, Object> next() {
+            current = snapshot.next();
+            return current;
+          }
+
+          @Override
+          public void remove() {
+            if (current == null) {
+              throw new IllegalStateException();
+            }
+            RequestAttributes.this.remove(current.getKey());
+            current = null;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return RequestAttributes.this.size();
+      }
+    };
+  }
+
+  /**
+   * An entry of the snapshot, writing through to the map.
+   */
+  private class Attribute extends AbstractMap.SimpleEntry<String, Object> {
+    Attribute(String key, Object value) {
+      super(key, value);
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of byte buffers the API responses are read into before they are decoded.
+ *
+ * <p>Buffers larger than {@link #MAX_POOLED_BUFFER_SIZE} are never kept, so a single large
+ * response does not pin its memory for the lifetime of the instance.
+ *
+ */
+class ResponseBufferPool {
+  // Size of newly allocated buffers if the response size is unknown or smaller.
+  static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+  // Buffers above this size are left to the garbage collector.
+  static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+  private final BlockingQueue<byte[]> buffers;
+
+  /**
+   * @param maxBuffers The maximum number of idle buffers kept.
+   */
+  ResponseBufferPool(int maxBuffers) {
+    this.buffers = new ArrayBlockingQueue<>(maxBuffers);
+  }
+
+  /**
+   * Returns a buffer of at least {@code minSize} bytes, taken from the pool if possible.
+   */
+  byte[] acquire(int minSize) {
+    byte[] buffer = buffers.poll();
+    if (buffer != null && buffer.length >= minSize) {
+      return buffer;
+    }
+    if (buffer != null) {
+      buffers.offer(buffer);
+    }
+    return new byte[Math.max(minSize, DEFAULT_BUFFER_SIZE)];
+  }
+
+  /**
+   * Returns {@code buffer} to the pool. The caller must not use it afterwards.
+   */
+  void release(byte[] buffer) {
+    if (buffer.length <= MAX_POOLED_BUFFER_SIZE) {
+      buffers.offer(buffer);
+    }
+  }
+
+  /**
+   * Reads {@code in} to the end into a pooled buffer.
+   *
+   * @param in The stream to read.
+   * @param expectedLength The number of bytes expected, or a negative value if unknown.
+   * @return The buffer holding the data, from offset 0 to {@link Buffer#length}. It must be given
+   *     back with {@link #release}.
+   */
+  Buffer readFully(InputStream in, long expectedLength) throws IOException {
+    byte[] buffer = acquire(expectedLength > 0 && expectedLength < Integer.MAX_VALUE
+        ? (int) expectedLength + 1 : DEFAULT_BUFFER_SIZE);
+    int length = 0;
+    int read;
+    while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+      length += read;
+      if (length == buffer.length) {
+        // Content-Length was missing or wrong, grow the buffer.
+        byte[] larger = Arrays.copyOf(buffer, buffer.length * 2);
+        release(buffer);
+        buffer = larger;
+      }
+    }
+    return new Buffer(buffer, length);
+  }
+
+  /**
+   * A pooled array and the number of bytes used in it.
+   */
+  static final class Buffer {
+    final byte[] array;
+    final int length;
+
+    Buffer(byte[] array, int length) {
+      this.array = array;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.scheme.SchemeSocketFactory;
+import org.apache.http.params.HttpParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Socket factory connecting the HTTP client to an API proxy listening on a Unix domain socket.
+ *
+ * <p>Whatever host and port the request URI names, every connection goes to the socket file, so
+ * the {@code /rpc_http} protocol is spoken unchanged while the TCP stack and its connect timeout
+ * are bypassed. For the same reason the host names are not resolved, the factory also acts as a
+ * {@link DnsResolver} mapping every host to the loopback address.
+ *
+ */
+class UnixSocketSocketFactory implements SchemeSocketFactory, DnsResolver {
+  private final File socketFile;
+
+  /**
+   * @param socketFile The socket file the API proxy listens on.
+   */
+  UnixSocketSocketFactory(File socketFile) {
+    this.socketFile = socketFile;
+  }
+
+  @Override
+  public Socket createSocket(HttpParams params) {
+    // Only a placeholder, connectSocket opens the actual socket.
+    return new Socket();
+  }
+
+  @Override
+  public Socket connectSocket(Socket socket, InetSocketAddress remoteAddress,
+      InetSocketAddress localAddress, HttpParams params) throws IOException {
+    return UnixSocketChannel.open(new UnixSocketAddress(socketFile)).socket();
+  }
+
+  @Override
+  public boolean isSecure(Socket socket) {
+    return false;
+  }
+
+  @Override
+  public InetAddress[] resolve(String host) {
+    return new InetAddress[] {InetAddress.getLoopbackAddress()};
+  }
+}
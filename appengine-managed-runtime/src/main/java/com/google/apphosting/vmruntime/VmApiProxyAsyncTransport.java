@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link VmApiProxyTransport} backed by an event driven (NIO) Apache HTTP client.
+ *
+ * <p>A small, fixed number of I/O dispatcher threads multiplex all in-flight API calls, so the
+ * number of threads no longer grows with the number of outstanding async calls.
+ *
+ */
+class VmApiProxyAsyncTransport implements VmApiProxyTransport {
+  private static final Logger logger = Logger.getLogger(VmApiProxyAsyncTransport.class.getName());
+
+  private final CloseableHttpAsyncClient httpclient;
+  private final PoolingNHttpClientConnectionManager connectionManager;
+
+  /**
+   * Creates and starts a NIO transport.
+   *
+   * @param maxConnections The maximum number of connections to the API proxy.
+   * @throws IOReactorException If the I/O reactor could not be created.
+   */
+  VmApiProxyAsyncTransport(int maxConnections) throws IOReactorException {
+    IOReactorConfig reactorConfig = IOReactorConfig.custom()
+        .setIoThreadCount(Runtime.getRuntime().availableProcessors())
+        .setTcpNoDelay(true)
+        .build();
+    connectionManager =
+        new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    httpclient = HttpAsyncClients.custom().setConnectionManager(connectionManager).build();
+    httpclient.start();
+  }
+
+  @Override
+  public Future<HttpResponse> execute(
+      HttpPost request, int timeoutMs, FutureCallback<HttpResponse> callback) {
+    request.setConfig(RequestConfig.custom()
+        .setConnectionRequestTimeout(timeoutMs)
+        .setConnectTimeout(timeoutMs)
+        .setSocketTimeout(timeoutMs)
+        .setStaleConnectionCheckEnabled(false)
+        .build());
+    return httpclient.execute(request, callback);
+  }
+
+  @Override
+  public void closeIdleConnections(long idleTime, TimeUnit unit) {
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(idleTime, unit);
+  }
+
+  @Override
+  public void shutdown() {
+    try {
+      httpclient.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Error shutting down the async API transport.", e);
+    }
+  }
+}
@@ -0,0 +1,431 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.RPCFailedException;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import com.google.appengine.repackaged.com.google.common.util.concurrent.AbstractFuture;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.ListenableFuture;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.MoreExecutors;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gathers the async API calls a request issues within a short window and sends them to the API
+ * proxy as a single batched envelope.
+ *
+ * <p>The envelope posted to {@link #BATCH_ENDPOINT} is the sequence of the encoded
+ * {@code RemoteApiPb.Request}s, each prefixed by its length as a 4 byte big-endian integer. The
+ * API proxy answers with the {@code RemoteApiPb.Response}s in the same order and framing. A window
+ * that only collected a single call is sent as a regular API call. Each call fails with an
+ * {@link ApiProxy.ApiDeadlineExceededException} once its own timeout passed, even if its batch
+ * still waits for the slower calls.
+ *
+ */
+class VmApiProxyBatcher {
+  private static final Logger logger = Logger.getLogger(VmApiProxyBatcher.class.getName());
+
+  static final String BATCH_ENDPOINT = "/rpc_http_batch";
+
+  // Flush a batch right away once it holds this many calls.
+  static final int MAX_BATCH_SIZE = 32;
+
+  private final VmApiProxyDelegate delegate;
+  private final long windowMs;
+  // Flushes the batches and fails the calls past their timeout.
+  private final ScheduledThreadPoolExecutor scheduler;
+  // The batch currently collecting calls, per request environment.
+  private final ConcurrentMap<VmApiProxyEnvironment, Batch> openBatches =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a batcher sending its batches with the http client and executor of {@code delegate}.
+   *
+   * @param delegate The delegate owning this batcher.
+   * @param windowMs The time a batch collects calls after its first call arrived.
+   */
+  VmApiProxyBatcher(VmApiProxyDelegate delegate, long windowMs) {
+    this.delegate = delegate;
+    this.windowMs = windowMs;
+    this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ApiCallBatcher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // Most calls complete long before their timeout, do not keep their timers around.
+    this.scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Stops the scheduler thread, sending the batches still collecting calls right away.
+   */
+  void shutdown() {
+    scheduler.shutdownNow();
+    for (Batch batch : openBatches.values()) {
+      flush(batch);
+    }
+  }
+
+  /**
+   * Adds an API call to the open batch of {@code environment}, opening a new one if needed.
+   *
+   * @return A future completed once the response of the batch has been received.
+   */
+  ListenableFuture<byte[]> add(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, int timeoutMs) {
+    BatchedCall call = new BatchedCall(packageName, methodName, requestData,
+        new RemoteApiRequestEntity(packageName, methodName, requestData, environment.getTicket()),
+        timeoutMs);
+    scheduleDeadline(call);
+    while (true) {
+      Batch batch = openBatches.get(environment);
+      if (batch == null) {
+        Batch newBatch = new Batch(environment);
+        batch = openBatches.putIfAbsent(environment, newBatch);
+        if (batch == null) {
+          batch = newBatch;
+          scheduleFlush(batch);
+        }
+      }
+      if (batch.add(call)) {
+        if (scheduler.isShutdown()) {
+          // No flush may be scheduled for the batch.
+          flush(batch);
+        }
+        return call;
+      }
+      // The batch was closed concurrently, retry with a new one.
+    }
+  }
+
+  private void scheduleFlush(final Batch batch) {
+    try {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush(batch);
+        }
+      }, windowMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shut down, the batch is flushed by add().
+    }
+  }
+
+  /**
+   * Fails {@code call} with an {@link ApiProxy.ApiDeadlineExceededException} once its timeout
+   * passed, unless it completed before.
+   */
+  private void scheduleDeadline(final BatchedCall call) {
+    final ScheduledFuture<?> timer;
+    try {
+      timer = scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          call.setException(
+              new ApiProxy.ApiDeadlineExceededException(call.packageName, call.methodName));
+        }
+      }, call.timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shut down, the call is bounded by the HTTP timeouts of its batch.
+      return;
+    }
+    call.addListener(new Runnable() {
+      @Override
+      public void run() {
+        timer.cancel(false);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Closes {@code batch} and sends it from a thread of the delegate's executor. Does nothing if the
+   * batch has already been flushed.
+   */
+  private void flush(final Batch batch) {
+    final List<BatchedCall> calls = batch.close();
+    if (calls == null) {
+      return;
+    }
+    openBatches.remove(batch.environment, batch);
+    try {
+      delegate.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          send(batch.environment, calls);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      failIncompleteCalls(calls, e);
+    }
+  }
+
+  /**
+   * Sends the calls, making sure each of them is completed even if sending fails unexpectedly, so
+   * that their request does not wait for them until its deadline.
+   */
+  private void send(VmApiProxyEnvironment environment, List<BatchedCall> calls) {
+    try {
+      sendCalls(environment, calls);
+    } catch (RuntimeException e) {
+      failIncompleteCalls(calls, e);
+    }
+  }
+
+  private void failIncompleteCalls(List<BatchedCall> calls, RuntimeException e) {
+    logger.log(Level.WARNING, "Sending a batch of " + calls.size() + " API calls failed.", e);
+    for (BatchedCall call : calls) {
+      // Completes only the calls that are not done yet.
+      call.setException(new RPCFailedException(call.packageName, call.methodName));
+    }
+  }
+
+  private void sendCalls(VmApiProxyEnvironment environment, List<BatchedCall> calls) {
+    // Calls past their timeout while the batch was collecting are not sent.
+    List<BatchedCall> pendingCalls = new ArrayList<>(calls.size());
+    for (BatchedCall call : calls) {
+      if (!call.isDone()) {
+        pendingCalls.add(call);
+      }
+    }
+    calls = pendingCalls;
+    if (calls.isEmpty()) {
+      return;
+    }
+    if (calls.size() == 1) {
+      BatchedCall call = calls.get(0);
+      try {
+        call.set(delegate.runSyncCall(environment, call.packageName, call.methodName,
+            call.requestData, call.timeoutMs));
+      } catch (RuntimeException e) {
+        call.setException(e);
+      }
+      return;
+    }
+    // The slowest call bounds the batch, the others fail on their own timers.
+    int timeoutMs = 0;
+    for (BatchedCall call : calls) {
+      timeoutMs = Math.max(timeoutMs, call.timeoutMs);
+    }
+    HttpPost request = VmApiProxyDelegate.createRequest(
+        environment, BATCH_ENDPOINT, new BatchRequestEntity(calls), timeoutMs);
+    try {
+      HttpResponse response = delegate.httpclient.execute(request, new BasicHttpContext());
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+        logger.info("Error body: " + VmApiProxyDelegate.readErrorBody(response.getEntity()));
+        for (BatchedCall call : calls) {
+          call.setException(new RPCFailedException(call.packageName, call.methodName));
+        }
+        return;
+      }
+      fanOut(EntityUtils.toByteArray(response.getEntity()), calls);
+    } catch (IOException e) {
+      logger.info("HTTP ApiProxy I/O error for a batch of " + calls.size() + " calls: "
+          + e.getMessage());
+      for (BatchedCall call : calls) {
+        call.setException(delegate.constructApiException(call.packageName, call.methodName));
+      }
+    } finally {
+      request.releaseConnection();
+    }
+  }
+
+  /**
+   * Completes each call with its response from the batched envelope.
+   */
+  private static void fanOut(byte[] envelope, List<BatchedCall> calls) {
+    ByteBuffer buffer = ByteBuffer.wrap(envelope);
+    for (BatchedCall call : calls) {
+      RemoteApiPb.Response remoteResponse = new RemoteApiPb.Response();
+      int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+      if (length < 0 || length > buffer.remaining()
+          || !remoteResponse.parseFrom(envelope, buffer.position(), length)) {
+        logger.info(
+            "HTTP ApiProxy unable to parse response for " + call.packageName + "."
+            + call.methodName);
+        call.setException(new RPCFailedException(call.packageName, call.methodName));
+        // The framing is lost, none of the following responses can be trusted.
+        buffer.position(buffer.limit());
+        continue;
+      }
+      buffer.position(buffer.position() + length);
+      if (remoteResponse.hasRpcError() || remoteResponse.hasApplicationError()) {
+        call.setException(VmApiProxyDelegate.convertRemoteError(
+            remoteResponse, call.packageName, call.methodName, logger));
+      } else {
+        call.set(remoteResponse.getResponseAsBytes());
+      }
+    }
+  }
+
+  /**
+   * Request entity of a batch, writing the encoded requests of its calls and their length prefixes
+   * straight to the connection.
+   */
+  private static class BatchRequestEntity extends AbstractHttpEntity {
+    private final List<BatchedCall> calls;
+
+    BatchRequestEntity(List<BatchedCall> calls) {
+      this.calls = calls;
+      setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+      setChunked(false);
+    }
+
+    private static byte[] lengthPrefix(BatchedCall call) {
+      return ByteBuffer.allocate(4).putInt((int) call.entity.getContentLength()).array();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public long getContentLength() {
+      long length = 0;
+      for (BatchedCall call : calls) {
+        length += 4 + call.entity.getContentLength();
+      }
+      return length;
+    }
+
+    @Override
+    public InputStream getContent() {
+      List<InputStream> parts = new ArrayList<>(calls.size() * 2);
+      for (BatchedCall call : calls) {
+        parts.add(new ByteArrayInputStream(lengthPrefix(call)));
+        parts.add(call.entity.getContent());
+      }
+      return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      for (BatchedCall call : calls) {
+        out.write(lengthPrefix(call));
+        call.entity.writeContentTo(out);
+      }
+      out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+  }
+
+  /**
+   * The calls of one request environment collected during one window.
+   */
+  private class Batch {
+    final VmApiProxyEnvironment environment;
+    private List<BatchedCall> calls = new ArrayList<>();
+
+    Batch(VmApiProxyEnvironment environment) {
+      this.environment = environment;
+    }
+
+    /**
+     * Adds {@code call} unless the batch has already been closed. Flushes the batch once it is
+     * full.
+     */
+    boolean add(BatchedCall call) {
+      boolean full;
+      synchronized (this) {
+        if (calls == null) {
+          return false;
+        }
+        calls.add(call);
+        full = calls.size() >= MAX_BATCH_SIZE;
+      }
+      if (full) {
+        flush(this);
+      }
+      return true;
+    }
+
+    /**
+     * Closes the batch for new calls.
+     *
+     * @return The collected calls, or null if the batch was already closed.
+     */
+    synchronized List<BatchedCall> close() {
+      List<BatchedCall> result = calls;
+      calls = null;
+      return result;
+    }
+  }
+
+  /**
+   * Future of a single API call within a batch.
+   */
+  private static class BatchedCall extends AbstractFuture<byte[]> {
+    final String packageName;
+    final String methodName;
+    final byte[] requestData;
+    final RemoteApiRequestEntity entity;
+    final int timeoutMs;
+
+    BatchedCall(String packageName, String methodName, byte[] requestData,
+        RemoteApiRequestEntity entity, int timeoutMs) {
+      this.packageName = packageName;
+      this.methodName = methodName;
+      this.requestData = requestData;
+      this.entity = entity;
+      this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    protected boolean set(byte[] value) {
+      return super.set(value);
+    }
+
+    @Override
+    protected boolean setException(Throwable throwable) {
+      return super.setException(throwable);
+    }
+  }
+}
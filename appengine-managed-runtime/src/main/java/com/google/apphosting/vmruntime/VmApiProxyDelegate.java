@@ -34,36 +34,61 @@ import com.google.apphosting.api.ApiProxy.ApiConfig;
 import com.google.apphosting.api.ApiProxy.ApiProxyException;
 import com.google.apphosting.api.ApiProxy.LogRecord;
 import com.google.apphosting.api.ApiProxy.RPCFailedException;
+import com.google.apphosting.utils.config.AppEngineConfigException;
 import com.google.apphosting.utils.remoteapi.RemoteApiPb;
 
 
 import com.google.appengine.repackaged.com.google.common.collect.Lists;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.AbstractFuture;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.Futures;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.ListenableFuture;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.MoreExecutors;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.SettableFuture;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnManagerPNames;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.entity.ContentType;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -89,39 +114,338 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
   protected static final String API_DEADLINE_KEY =
       "com.google.apphosting.api.ApiProxy.api_deadline_key";
 
+  // Headers identical for all API calls.
+  private static final Header RPC_STUB_ID = new BasicHeader(RPC_STUB_ID_HEADER, REQUEST_STUB_ID);
+  private static final Header RPC_METHOD = new BasicHeader(RPC_METHOD_HEADER, REQUEST_STUB_METHOD);
+
+  // Request URIs and connection parameters are built once and reused by all calls. API calls only
+  // go to a handful of servers with a handful of distinct timeouts, the caches are bounded anyway.
+  private static final int MAX_CACHED_REQUEST_SETTINGS = 64;
+  private static final ConcurrentMap<String, URI> REQUEST_URIS = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<Integer, HttpParams> REQUEST_PARAMS =
+      new ConcurrentHashMap<>();
+
+  // Responses are read into pooled buffers, at most this many idle buffers are kept.
+  private static final int MAX_IDLE_RESPONSE_BUFFERS = 16;
+  private static final ResponseBufferPool RESPONSE_BUFFERS =
+      new ResponseBufferPool(MAX_IDLE_RESPONSE_BUFFERS);
+
+  // Only the beginning of error responses from the API server is logged.
+  static final int MAX_ERROR_BODY_BYTES = 4096;
+
   // Default timeout for RPC calls.
   static final int DEFAULT_RPC_TIMEOUT_MS = 60 * 1000;
 
   // Wait for 1000 ms in addition to the RPC timeout before closing the HTTP connection.
   static final int ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS = 1000;
 
+  // If set to true, API calls are sent through a non-blocking (NIO) HTTP client. Async calls then
+  // no longer occupy a thread of the executor for the whole round trip.
+  static final String ASYNC_TRANSPORT_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.asyncTransport";
+
+  // If set to true, API methods that keep failing are cut off for a while and the default timeout
+  // is derived from the observed latency of each API method.
+  static final String CIRCUIT_BREAKER_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.circuitBreaker";
+
+  // Comma separated list of idempotent package.method pairs, for example
+  // "datastore_v3.Get,memcache.Get". Calls to these methods are sent a second time if they take
+  // longer than usual.
+  static final String HEDGED_METHODS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.hedgedMethods";
+
+  // Retry policy for transient API failures, see ApiCallRetryPolicy for the format. Set to an
+  // empty string to disable retries.
+  static final String RETRY_POLICY_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.retryPolicy";
+
+  // Comma separated list of package.method=ttlSeconds entries, see ApiResponseCache. Set to an
+  // empty string to disable the response cache.
+  static final String CACHED_METHODS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.cachedMethods";
+
+  // Comma separated list of idempotent package.method pairs, for example
+  // "memcache.Get,datastore_v3.Get". Identical calls to these methods made while the first one is
+  // in flight share its response.
+  static final String DEDUPLICATED_METHODS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.deduplicatedMethods";
+
+  // Number of threads and HTTP connections reserved for logservice.Flush calls, or 0 to make them
+  // like the other API calls.
+  static final String LOG_FLUSH_CONNECTIONS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.logFlushConnections";
+  static final int DEFAULT_LOG_FLUSH_CONNECTIONS = 2;
+
+  // Maximum number of log flushes waiting for a thread of their lane.
+  static final int MAX_QUEUED_LOG_FLUSHES = 64;
+
+  // Order of the API calls waiting for the instance wide concurrency limit, "fair" or "deadline".
+  // Calls are only limited per request if not set.
+  static final String CONCURRENCY_LIMITER_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.concurrencyLimiter";
+
+  // Comma separated list of the classes of the ApiCallInterceptors to install, outermost first.
+  // Each class needs a public no-arg constructor.
+  public static final String INTERCEPTORS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.interceptors";
+
+  // If set to true, async calls whose result was never read are cancelled at the end of their
+  // request instead of being waited for, aborting their HTTP requests.
+  static final String CANCEL_UNREAD_CALLS_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.cancelUnreadCalls";
+
+  // Marks the API calls made by a thread while it is set to Boolean.TRUE as safe to retry, even if
+  // the retry policy does not list their method. Thread local, so that the other threads of the
+  // request keep their own policy.
+  private static final ThreadLocal<Boolean> idempotentCalls = new ThreadLocal<>();
+
+  // Application error code of DatastoreV3Pb.Error.ErrorCode.TIMEOUT.
+  private static final int DATASTORE_TIMEOUT_ERROR = 5;
+
+  // The (String) constructor of the exception thrown by the failed calls to each API package, all
+  // datastore versions under "datastore". The other packages throw an RPCFailedException.
+  private static final Map<String, Constructor<? extends RuntimeException>> API_EXCEPTIONS =
+      new HashMap<>();
+
+  static {
+    addApiException("taskqueue", TransientFailureException.class);
+    addApiException("app_identity_service", AppIdentityServiceFailureException.class);
+    addApiException("blobstore", BlobstoreFailureException.class);
+    addApiException("channel", ChannelFailureException.class);
+    addApiException("images", ImagesServiceFailureException.class);
+    addApiException("logservice", LogServiceException.class);
+    addApiException("memcache", MemcacheServiceException.class);
+    addApiException("modules", ModulesException.class);
+    addApiException("search", SearchException.class);
+    addApiException("user", UserServiceFailureException.class);
+    addApiException("xmpp", XMPPFailureException.class);
+    addApiException("datastore", DatastoreFailureException.class);
+  }
+
+  // Async calls issued by a request within this many milliseconds are sent to the API proxy as a
+  // single batch. Batching is disabled if not set or 0.
+  static final String BATCH_WINDOW_PROPERTY =
+      "com.google.apphosting.vmruntime.VmApiProxyDelegate.batchWindowMs";
+
   protected int defaultTimeoutMs;
   protected final ExecutorService executor;
 
   protected final HttpClient httpclient;
 
+  // Used for all API calls instead of httpclient if not null.
+  protected final VmApiProxyTransport transport;
+
+  // Collects async calls into batches if not null.
+  final VmApiProxyBatcher batcher;
+
+  // Per API method circuit breakers if not null.
+  final ApiCallCircuitBreaker circuitBreaker;
+
+  // Hedging policy for slow idempotent calls if not null.
+  final ApiCallHedger hedger;
+
+  // Retry policy for transient failures if not null.
+  final ApiCallRetryPolicy retryPolicy;
+
+  // Latency, error and payload size metrics of the API calls.
+  final ApiCallMetrics metrics = ApiCallMetrics.getInstance();
+
+  // Cache of the responses of slowly changing API methods if not null.
+  final ApiResponseCache responseCache;
+
+  // Joins identical in-flight read calls if not null.
+  final ApiCallDeduplicator deduplicator;
+
+  // Adaptive instance wide limit on the API calls in flight if not null.
+  final ApiCallLimiter limiter;
+
+  // Threads and connections reserved for log flushes if not null.
+  final ApiCallLane logFlushLane;
+
+  // True if the async calls nobody read are cancelled at the end of their request.
+  final boolean cancelUnreadCalls;
+
+  // The async call run by the current thread of the executor, whose HTTP requests are aborted if
+  // it is cancelled.
+  private final ThreadLocal<AsyncApiCall> runningAsyncCall = new ThreadLocal<>();
+
   final IdleConnectionMonitorThread monitorThread;
 
-  private static ClientConnectionManager createConnectionManager() {
-    PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
-    connectionManager.setMaxTotal(VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS);
-    connectionManager.setDefaultMaxPerRoute(VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS);
+  // The installed interceptors followed by the delegate itself.
+  private volatile ApiCallInterceptor.Chain chain = new DelegateChain();
+
+  /**
+   * Creates the pool of HTTP connections to the API server.
+   *
+   * @param apiSocketPath The Unix domain socket of the API server, or null to connect over TCP.
+   */
+  static ClientConnectionManager createConnectionManager(String apiSocketPath) {
+    return createConnectionManager(apiSocketPath, VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS);
+  }
+
+  private static ClientConnectionManager createConnectionManager(String apiSocketPath,
+      int maxConnections) {
+    PoolingClientConnectionManager connectionManager;
+    if (apiSocketPath == null) {
+      connectionManager = new PoolingClientConnectionManager();
+    } else {
+      UnixSocketSocketFactory socketFactory = new UnixSocketSocketFactory(new File(apiSocketPath));
+      SchemeRegistry schemeRegistry = new SchemeRegistry();
+      schemeRegistry.register(new Scheme("http", 80, socketFactory));
+      connectionManager = new PoolingClientConnectionManager(schemeRegistry, socketFactory);
+    }
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
     return connectionManager;
   }
 
+  /**
+   * Creates the lane of the log flushes.
+   *
+   * @return The lane, or null if log flushes are made like the other API calls.
+   */
+  private ApiCallLane createLogFlushLane() {
+    int connections =
+        Integer.getInteger(LOG_FLUSH_CONNECTIONS_PROPERTY, DEFAULT_LOG_FLUSH_CONNECTIONS);
+    if (connections <= 0) {
+      return null;
+    }
+    HttpClient client = new DefaultHttpClient(
+        createConnectionManager(VmRuntimeUtils.getApiSocketPath(), connections));
+    return new ApiCallLane("LogFlushLane", client, connections, MAX_QUEUED_LOG_FLUSHES, metrics);
+  }
+
+  /**
+   * Creates the non-blocking transport used for async calls.
+   *
+   * @return The transport, or null if it is disabled or could not be created.
+   */
+  private static VmApiProxyTransport createAsyncTransport() {
+    if (!Boolean.getBoolean(ASYNC_TRANSPORT_PROPERTY)) {
+      return null;
+    }
+    if (VmRuntimeUtils.getApiSocketPath() != null) {
+      logger.info("Not using the async API transport, it cannot reach the API server socket.");
+      return null;
+    }
+    try {
+      return new VmApiProxyAsyncTransport(VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS);
+    } catch (IOException e) {
+      logger.log(Level.WARNING,
+          "Unable to create the async API transport, falling back to blocking calls.", e);
+      return null;
+    }
+  }
+
   public VmApiProxyDelegate() {
-    this(new DefaultHttpClient(createConnectionManager()));
+    this(new DefaultHttpClient(createConnectionManager(VmRuntimeUtils.getApiSocketPath())),
+        createAsyncTransport());
   }
 
   
   VmApiProxyDelegate(HttpClient httpclient) {
+    this(httpclient, null);
+  }
+
+  /**
+   * Creates a delegate sending all API calls through {@code transport}.
+   *
+   * @param transport The transport connected to the API proxy.
+   */
+  public VmApiProxyDelegate(VmApiProxyTransport transport) {
+    this(new DefaultHttpClient(createConnectionManager(null)), transport);
+  }
+
+  VmApiProxyDelegate(HttpClient httpclient, VmApiProxyTransport transport) {
     this.defaultTimeoutMs = DEFAULT_RPC_TIMEOUT_MS;
     this.executor = Executors.newCachedThreadPool();
     this.httpclient = httpclient;
-    this.monitorThread = new IdleConnectionMonitorThread(httpclient.getConnectionManager());
+    this.transport = transport;
+    long batchWindowMs = Long.getLong(BATCH_WINDOW_PROPERTY, 0);
+    this.batcher = batchWindowMs > 0 ? new VmApiProxyBatcher(this, batchWindowMs) : null;
+    this.circuitBreaker = Boolean.getBoolean(CIRCUIT_BREAKER_PROPERTY)
+        ? new ApiCallCircuitBreaker(ApiCallCircuitBreaker.DEFAULT_OPEN_DURATION_MS) : null;
+    this.hedger = ApiCallHedger.fromList(System.getProperty(HEDGED_METHODS_PROPERTY));
+    this.retryPolicy = ApiCallRetryPolicy.parse(
+        System.getProperty(RETRY_POLICY_PROPERTY, ApiCallRetryPolicy.DEFAULT_POLICY));
+    this.responseCache = ApiResponseCache.parse(
+        System.getProperty(CACHED_METHODS_PROPERTY, ApiResponseCache.DEFAULT_CACHED_METHODS),
+        metrics);
+    this.deduplicator = ApiCallDeduplicator.fromList(
+        System.getProperty(DEDUPLICATED_METHODS_PROPERTY), metrics);
+    this.limiter = ApiCallLimiter.parse(System.getProperty(CONCURRENCY_LIMITER_PROPERTY),
+        VmApiProxyEnvironment.MAX_CONCURRENT_API_CALLS);
+    if (limiter != null) {
+      metrics.setLimiter(limiter);
+    }
+    this.logFlushLane = createLogFlushLane();
+    this.cancelUnreadCalls = Boolean.getBoolean(CANCEL_UNREAD_CALLS_PROPERTY);
+    this.monitorThread = new IdleConnectionMonitorThread(
+        httpclient.getConnectionManager(), transport, logFlushLane);
     this.monitorThread.start();
   }
 
+  /**
+   * Stops the connection monitor thread and releases the threads and connections of this
+   * delegate, including those of its transport, batcher and log flush lane. The delegate cannot
+   * make calls afterwards.
+   */
+  public void shutdown() {
+    monitorThread.interrupt();
+    if (batcher != null) {
+      batcher.shutdown();
+    }
+    executor.shutdown();
+    httpclient.getConnectionManager().shutdown();
+    if (transport != null) {
+      transport.shutdown();
+    }
+    if (logFlushLane != null) {
+      logFlushLane.shutdown();
+    }
+  }
+
+  /**
+   * Creates the interceptors listed in a comma separated list of class names.
+   *
+   * @param classLoader Loads the interceptor classes.
+   * @throws AppEngineConfigException If an interceptor cannot be created.
+   */
+  public static List<ApiCallInterceptor> createInterceptors(String classNames,
+      ClassLoader classLoader) {
+    List<ApiCallInterceptor> interceptors = new ArrayList<>();
+    if (classNames == null) {
+      return interceptors;
+    }
+    for (String className : classNames.split(",")) {
+      className = className.trim();
+      if (className.isEmpty()) {
+        continue;
+      }
+      try {
+        interceptors.add(Class.forName(className, true, classLoader)
+            .asSubclass(ApiCallInterceptor.class).newInstance());
+      } catch (ReflectiveOperationException | ClassCastException e) {
+        throw new AppEngineConfigException("Unable to create API call interceptor " + className, e);
+      }
+    }
+    return interceptors;
+  }
+
+  /**
+   * Installs the interceptors wrapping all subsequent API calls, replacing the installed ones.
+   *
+   * @param interceptors The interceptors, outermost first.
+   */
+  public void setInterceptors(List<? extends ApiCallInterceptor> interceptors) {
+    ApiCallInterceptor.Chain chain = new DelegateChain();
+    for (int i = interceptors.size() - 1; i >= 0; i--) {
+      chain = new InterceptorChain(interceptors.get(i), chain);
+    }
+    this.chain = chain;
+  }
+
   @Override
   public byte[] makeSyncCall(
         VmApiProxyEnvironment environment,
@@ -129,8 +453,7 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
         String methodName,
         byte[] requestData)
       throws ApiProxyException {
-    return makeSyncCallWithTimeout(environment, packageName, methodName, requestData,
-        defaultTimeoutMs);
+    return chain.makeSyncCall(environment, packageName, methodName, requestData);
   }
 
   private byte[] makeSyncCallWithTimeout(
@@ -140,55 +463,452 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
           byte[] requestData,
           int timeoutMs)
         throws ApiProxyException {
-    return makeApiCall(environment, packageName, methodName, requestData, timeoutMs, false);
+    if (responseCache != null && responseCache.isCached(packageName, methodName)) {
+      byte[] response = responseCache.getIfPresent(packageName, methodName, requestData);
+      if (response != null) {
+        return response;
+      }
+    }
+    if (timeoutMs == defaultTimeoutMs) {
+      timeoutMs = adaptTimeout(packageName, methodName, timeoutMs);
+    }
+    int unclampedTimeoutMs = timeoutMs;
+    timeoutMs = clampTimeout(environment, packageName, methodName, timeoutMs);
+    long circuitTicket = checkCircuit(packageName, methodName);
+    return makeApiCall(environment, packageName, methodName, requestData, unclampedTimeoutMs,
+        timeoutMs, getMaxAttempts(packageName, methodName), circuitTicket, false);
+  }
+
+  /**
+   * Fails fast with the exception of the API package if the circuit of the API method is open.
+   *
+   * @return The ticket the circuit admitted the call with, to record its outcome with.
+   */
+  private long checkCircuit(String packageName, String methodName) {
+    if (circuitBreaker == null) {
+      return 0;
+    }
+    long circuitTicket = circuitBreaker.getCircuit(packageName, methodName).admit();
+    if (circuitTicket == ApiCallCircuitBreaker.Circuit.REJECTED) {
+      throw constructApiException(packageName, methodName);
+    }
+    return circuitTicket;
+  }
+
+  /**
+   * Clamps the timeout of a call to the time left before the deadline of its request, less the
+   * {@link #ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS} added to the HTTP timeouts, so that the call never
+   * holds a connection past the deadline. Log flushes are exempt as the logs of a request are
+   * flushed once it is done.
+   *
+   * @throws ApiProxy.ApiDeadlineExceededException If no time is left for the call.
+   */
+  private int clampTimeout(VmApiProxyEnvironment environment, String packageName,
+      String methodName, int timeoutMs) {
+    if (isLogFlush(packageName, methodName)) {
+      return timeoutMs;
+    }
+    long availableMs = environment.getRemainingMillis() - ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS;
+    if (availableMs <= 0) {
+      throw new ApiProxy.ApiDeadlineExceededException(packageName, methodName);
+    }
+    return (int) Math.min(timeoutMs, availableMs);
+  }
+
+  /**
+   * Returns the timeout derived from the observed latency of the API method if circuit breaking is
+   * enabled, {@code timeoutMs} otherwise.
+   */
+  private int adaptTimeout(String packageName, String methodName, int timeoutMs) {
+    if (circuitBreaker == null) {
+      return timeoutMs;
+    }
+    return circuitBreaker.getCircuit(packageName, methodName).adaptTimeout(timeoutMs);
+  }
+
+  /**
+   * Records the outcome of an API call in the {@link #metrics}, in the stats of its request and in
+   * the circuit of its API method.
+   *
+   * @param response The response payload, null if the call failed.
+   * @param circuitTicket The ticket returned by {@link #checkCircuit} for the call.
+   * @param deadlineClamped True if the timeout of the call was clamped to the deadline of its
+   *        request.
+   */
+  private void recordOutcome(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, byte[] response, Throwable failure,
+      long startNanos, long circuitTicket, boolean deadlineClamped) {
+    recordOutcome(environment, packageName, methodName, requestData, response, failure,
+        startNanos, circuitTicket, false, deadlineClamped);
+  }
+
+  /**
+   * Records the outcome of an API call, only in the stats of its request if the call joined an
+   * identical call, whose own outcome is recorded in the {@link #metrics} and circuit, or if it
+   * failed before it was sent.
+   */
+  private void recordOutcome(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, byte[] response, Throwable failure,
+      long startNanos, long circuitTicket, boolean notSent, boolean deadlineClamped) {
+    long latencyNanos = System.nanoTime() - startNanos;
+    int responseBytes = response == null ? 0 : response.length;
+    // The log flushes are made by the runtime, not the request.
+    if (!"logservice".equals(packageName) || !"Flush".equals(methodName)) {
+      environment.getApiStats().record(packageName, requestData.length, responseBytes,
+          latencyNanos);
+    }
+    if (notSent) {
+      if (circuitBreaker != null) {
+        circuitBreaker.getCircuit(packageName, methodName).skip(circuitTicket);
+      }
+      return;
+    }
+    metrics.record(packageName, methodName, requestData.length, responseBytes, failure,
+        latencyNanos);
+    if (circuitBreaker == null || failure instanceof CancellationException) {
+      return;
+    }
+    ApiCallCircuitBreaker.Circuit circuit = circuitBreaker.getCircuit(packageName, methodName);
+    if (ApiCallCircuitBreaker.isOutOfRequestTime(failure, deadlineClamped)) {
+      // Neither a success nor a latency sample of the backend.
+      circuit.skip(circuitTicket);
+      return;
+    }
+    circuit.record(circuitTicket,
+        failure == null || !ApiCallCircuitBreaker.isBackendFailure(failure, deadlineClamped),
+        TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+  }
+
+  /**
+   * Records the outcome of an async API call once it completes.
+   *
+   * @param deadlineClamped True if the timeout of the call was clamped to the deadline of its
+   *        request.
+   */
+  private void recordOutcomeWhenDone(final VmApiProxyEnvironment environment,
+      final String packageName, final String methodName, final byte[] requestData,
+      final ListenableFuture<byte[]> call, final long circuitTicket,
+      final boolean deadlineClamped) {
+    final long startNanos = System.nanoTime();
+    call.addListener(new Runnable() {
+      @Override
+      public void run() {
+        byte[] response = null;
+        Throwable failure = null;
+        try {
+          response = call.get();
+        } catch (ExecutionException e) {
+          failure = e.getCause();
+        } catch (InterruptedException | CancellationException e) {
+          failure = new CancellationException();
+        }
+        recordOutcome(environment, packageName, methodName, requestData, response, failure,
+            startNanos, circuitTicket, deadlineClamped);
+      }
+    }, MoreExecutors.directExecutor());
   }
 
   private byte[] makeApiCall(VmApiProxyEnvironment environment,
       String packageName,
       String methodName,
       byte[] requestData,
+      int unclampedTimeoutMs,
       int timeoutMs,
+      int maxAttempts,
+      long circuitTicket,
       boolean wasAsync) {
     // If this was caused by an async call we need to return the pending call semaphore.
     environment.apiCallStarted(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS, wasAsync);
+    long startNanos = System.nanoTime();
+    CallLoader loader = new CallLoader(environment, packageName, methodName, requestData,
+        unclampedTimeoutMs, timeoutMs, maxAttempts);
     try {
-      return runSyncCall(environment, packageName, methodName, requestData, timeoutMs);
+      byte[] response = runSharedCall(loader);
+      recordOutcome(environment, packageName, methodName, requestData, response, null, startNanos,
+          circuitTicket, !loader.isSent(), loader.isDeadlineClamped());
+      return response;
+    } catch (RuntimeException e) {
+      recordOutcome(environment, packageName, methodName, requestData, null, e, startNanos,
+          circuitTicket, !loader.isSent(), loader.isDeadlineClamped());
+      throw e;
     } finally {
       environment.apiCallCompleted();
     }
   }
 
-  
+  /**
+   * Returns true if calls to an API method may share their response with identical calls, because
+   * the response is cached or the method is deduplicated.
+   */
+  private boolean isSharedCall(String packageName, String methodName) {
+    return (responseCache != null && responseCache.isCached(packageName, methodName))
+        || (deduplicator != null && deduplicator.isDeduplicated(packageName, methodName));
+  }
+
+  /**
+   * Makes an API call with retries, remembering the timeout its last attempt was sent with. Calls
+   * that joined an identical call or ran out of time before their last attempt was sent have none.
+   */
+  private class CallLoader implements ApiCallDeduplicator.Loader {
+    final VmApiProxyEnvironment environment;
+    final String packageName;
+    final String methodName;
+    final byte[] requestData;
+    // The timeout of the API method, possibly adapted, or the one set by the caller.
+    final int unclampedTimeoutMs;
+    // The unclamped timeout, clamped to the request deadline.
+    final int timeoutMs;
+    final int maxAttempts;
+    // The timeout of the last attempt, clamped again when it was sent, or 0 if it was not sent.
+    int attemptTimeoutMs;
+
+    CallLoader(VmApiProxyEnvironment environment, String packageName, String methodName,
+        byte[] requestData, int unclampedTimeoutMs, int timeoutMs, int maxAttempts) {
+      this.environment = environment;
+      this.packageName = packageName;
+      this.methodName = methodName;
+      this.requestData = requestData;
+      this.unclampedTimeoutMs = unclampedTimeoutMs;
+      this.timeoutMs = timeoutMs;
+      this.maxAttempts = maxAttempts;
+    }
+
+    @Override
+    public byte[] load() {
+      return runWithRetries(this);
+    }
+
+    /**
+     * Returns true if the last attempt was sent to the API server.
+     */
+    boolean isSent() {
+      return attemptTimeoutMs > 0;
+    }
+
+    /**
+     * Returns true if the last attempt had less time than its unclamped timeout because of the
+     * deadline of the request. The adaptive timeout does not count, running out of it is a sign
+     * of a slow backend.
+     */
+    boolean isDeadlineClamped() {
+      return attemptTimeoutMs < unclampedTimeoutMs;
+    }
+
+    /**
+     * Returns true if the outcome of the last attempt tells about the load of the API server: it
+     * was sent and did not run out of the time left to its request. Running out of the adaptive
+     * timeout is measured, as a sign of overload.
+     */
+    boolean isMeasured(RuntimeException failure) {
+      return isSent() && !ApiCallCircuitBreaker.isOutOfRequestTime(failure, isDeadlineClamped());
+    }
+  }
+
+  /**
+   * Runs an API call, sharing it with the concurrent identical calls if {@link #isSharedCall} and
+   * caching its response if it is cached. Callers joining an identical call wait for it no longer
+   * than their own timeout.
+   */
+  private byte[] runSharedCall(CallLoader call) {
+    if (!isSharedCall(call.packageName, call.methodName)) {
+      return call.load();
+    }
+    if (responseCache != null && responseCache.isCached(call.packageName, call.methodName)) {
+      return responseCache.load(
+          call.packageName, call.methodName, call.requestData, call.timeoutMs, call);
+    }
+    return deduplicator.run(
+        new ApiCallKey(call.packageName, call.methodName, call.requestData), call.timeoutMs, call);
+  }
+
+  /**
+   * Marks the API calls the current thread makes from now on as safe to retry, or not.
+   *
+   * @return True if the calls of the thread were marked as safe to retry before, so that the
+   *         caller can restore it.
+   */
+  public static boolean setIdempotentCalls(boolean idempotent) {
+    boolean previous = Boolean.TRUE.equals(idempotentCalls.get());
+    if (idempotent) {
+      idempotentCalls.set(Boolean.TRUE);
+    } else {
+      idempotentCalls.remove();
+    }
+    return previous;
+  }
+
+  /**
+   * Returns the number of times a call may be attempted according to the {@link #retryPolicy}.
+   * Must be called on the thread making the call, as calls are marked as safe to retry per
+   * thread.
+   */
+  private int getMaxAttempts(String packageName, String methodName) {
+    if (retryPolicy == null) {
+      return 1;
+    }
+    return retryPolicy.getMaxAttempts(packageName, methodName,
+        Boolean.TRUE.equals(idempotentCalls.get()));
+  }
+
+  /**
+   * Runs an API call, retrying transient failures up to {@code maxAttempts} times. Retries back
+   * off with jitter and stop once the backoff would exceed the remaining request deadline.
+   */
+  private byte[] runWithRetries(CallLoader call) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return runLimitedAttempt(call);
+      } catch (RuntimeException e) {
+        if (attempt >= call.maxAttempts || !isTransientFailure(e, call.packageName)) {
+          throw e;
+        }
+        long backoffMs = retryPolicy.getBackoffMs(attempt);
+        if (call.environment.getRemainingMillis() - ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS
+            <= backoffMs) {
+          throw e;
+        }
+        logger.info("Retrying API call " + call.packageName + "." + call.methodName + " in "
+            + backoffMs + " ms after attempt " + attempt + " failed: " + e);
+        try {
+          Thread.sleep(backoffMs);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if the call must wait for the instance wide {@link #limiter}. Log flushes have
+   * their own lane and are never limited.
+   */
+  private boolean isLimited(String packageName, String methodName) {
+    return limiter != null && !isLogFlush(packageName, methodName);
+  }
+
+  /**
+   * Makes a single attempt of an API call, once the {@link #limiter} allows it.
+   */
+  private byte[] runLimitedAttempt(CallLoader call) {
+    call.attemptTimeoutMs = 0;
+    if (!isLimited(call.packageName, call.methodName)) {
+      return runAttempt(call);
+    }
+    long startNanos = limiter.acquire(call.environment, VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS);
+    RuntimeException failure = null;
+    try {
+      return runAttempt(call);
+    } catch (RuntimeException e) {
+      failure = e;
+      throw e;
+    } finally {
+      if (call.isMeasured(failure)) {
+        limiter.release(call.packageName, call.methodName, startNanos, failure != null
+            && ApiCallCircuitBreaker.isBackendFailure(failure, call.isDeadlineClamped()));
+      } else {
+        limiter.releaseUnmeasured();
+      }
+    }
+  }
+
+  private byte[] runAttempt(CallLoader call) {
+    // Part of the deadline may have passed waiting for the executor, the limiter or a backoff. The
+    // attempt counts as sent once it is known to have time left.
+    int timeoutMs =
+        clampTimeout(call.environment, call.packageName, call.methodName, call.timeoutMs);
+    call.attemptTimeoutMs = timeoutMs;
+    return hedger != null && hedger.isHedged(call.packageName, call.methodName)
+        ? runHedgedCall(call.environment, call.packageName, call.methodName, call.requestData,
+            timeoutMs)
+        : runSyncCall(call.environment, call.packageName, call.methodName, call.requestData,
+            timeoutMs);
+  }
+
+  /**
+   * Releases the {@link #limiter} once an async call completes.
+   *
+   * @param startNanos The start time returned by the limiter.
+   * @param deadlineClamped True if the timeout of the call was clamped to the deadline of its
+   *        request.
+   */
+  private void releaseLimitWhenDone(final String packageName, final String methodName,
+      final long startNanos, final ListenableFuture<byte[]> call,
+      final boolean deadlineClamped) {
+    call.addListener(new Runnable() {
+      @Override
+      public void run() {
+        boolean overloaded = false;
+        try {
+          call.get();
+        } catch (ExecutionException e) {
+          if (ApiCallCircuitBreaker.isOutOfRequestTime(e.getCause(), deadlineClamped)) {
+            // Ran out of the time left to its request, which tells nothing about the load.
+            limiter.releaseUnmeasured();
+            return;
+          }
+          overloaded = ApiCallCircuitBreaker.isBackendFailure(e.getCause(), deadlineClamped);
+        } catch (InterruptedException | CancellationException e) {
+          // Not a sign of overload.
+        }
+        limiter.release(packageName, methodName, startNanos, overloaded);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Returns true if {@code failure} may go away when the call is retried: deadlines, cancellations
+   * by the API server, datastore timeouts and I/O or HTTP level failures to reach the API server.
+   */
+  private static boolean isTransientFailure(RuntimeException failure, String packageName) {
+    if (failure instanceof ApiProxy.CancelledException) {
+      // Also thrown if the calling thread was interrupted, which must not be retried.
+      return !Thread.currentThread().isInterrupted();
+    }
+    if (failure instanceof ApiProxy.ApplicationException) {
+      return "datastore_v3".equals(packageName)
+          && ((ApiProxy.ApplicationException) failure).getApplicationError()
+              == DATASTORE_TIMEOUT_ERROR;
+    }
+    return failure instanceof ApiProxy.ApiDeadlineExceededException
+        || failure instanceof RPCFailedException
+        || failure.getClass() == apiExceptionClass(packageName);
+  }
+
+  /**
+   * Returns true for the calls made in the {@link #logFlushLane}.
+   */
+  private boolean isLogFlush(String packageName, String methodName) {
+    return logFlushLane != null && "logservice".equals(packageName) && "Flush".equals(methodName);
+  }
+
   protected byte[] runSyncCall(VmApiProxyEnvironment environment, String packageName,
       String methodName, byte[] requestData, int timeoutMs) {
+    if (isLogFlush(packageName, methodName)) {
+      return runHttpCall(logFlushLane.httpclient, environment, packageName, methodName,
+          requestData, timeoutMs);
+    }
+    if (transport != null) {
+      return runTransportCall(environment, packageName, methodName, requestData, timeoutMs);
+    }
+    return runHttpCall(httpclient, environment, packageName, methodName, requestData, timeoutMs);
+  }
+
+  /**
+   * Sends an API call with a blocking HTTP client and waits for the response.
+   */
+  private byte[] runHttpCall(HttpClient httpclient, VmApiProxyEnvironment environment,
+      String packageName, String methodName, byte[] requestData, int timeoutMs) {
     HttpPost request = createRequest(environment, packageName, methodName, requestData, timeoutMs);
+    AsyncApiCall asyncCall = runningAsyncCall.get();
+    if (asyncCall != null) {
+      asyncCall.setRequest(request);
+    }
     try {
       // Create a new http context for each call as the default context is not thread safe.
       BasicHttpContext context = new BasicHttpContext();
       HttpResponse response = httpclient.execute(request, context);
-
-      // Check for HTTP error status and return early.
-      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-        try (Scanner errorStreamScanner =
-            new Scanner(new BufferedInputStream(response.getEntity().getContent()));) {
-          logger.info("Error body: " + errorStreamScanner.useDelimiter("\\Z").next());
-          throw new RPCFailedException(packageName, methodName);
-        }
-      }
-      try (BufferedInputStream bis = new BufferedInputStream(response.getEntity().getContent())) {
-        RemoteApiPb.Response remoteResponse = new RemoteApiPb.Response();
-        if (!remoteResponse.parseFrom(bis)) {
-          logger.info(
-              "HTTP ApiProxy unable to parse response for " + packageName + "." + methodName);
-          throw new RPCFailedException(packageName, methodName);
-        }
-        // If the response contains an error, convert it to the expected api exception and throw.
-        if (remoteResponse.hasRpcError() || remoteResponse.hasApplicationError()) {
-          throw convertRemoteError(remoteResponse, packageName, methodName, logger);
-        }
-        // Success, return the response.
-        return remoteResponse.getResponseAsBytes();
-      }
+      return readResponse(response, packageName, methodName);
     } catch (IOException e) {
       logger.info(
           "HTTP ApiProxy I/O error for " + packageName + "." + methodName + ": " + e.getMessage());
@@ -198,57 +918,105 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
     }
   }
 
-  // TODO(ludo) remove when the correct exceptions have public constructor.
-  private RuntimeException constructException(
-      String exceptionClassName, String message, String packageName, String methodName) {
+  /**
+   * Decodes the HTTP response from the API server.
+   *
+   * @return The response payload of the API call.
+   * @throws IOException If the response entity could not be read.
+   * @throws RuntimeException The exception matching the error returned by the API server.
+   */
+  private byte[] readResponse(HttpResponse response, String packageName, String methodName)
+      throws IOException {
+    HttpEntity entity = response.getEntity();
+    // Check for HTTP error status and return early.
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+      logger.info("Error body: " + readErrorBody(entity));
+      throw new RPCFailedException(packageName, methodName);
+    }
+    ResponseBufferPool.Buffer buffer;
+    try (InputStream content = entity.getContent()) {
+      buffer = RESPONSE_BUFFERS.readFully(content, entity.getContentLength());
+    }
     try {
-      Class<?> c = Class.forName(exceptionClassName);
-      Constructor<?> constructor = c.getDeclaredConstructor(String.class);
-      constructor.setAccessible(true);
-      return (RuntimeException) constructor.newInstance(message);
-    } catch (Exception e) {
-      return new RPCFailedException(packageName, methodName);
+      RemoteApiPb.Response remoteResponse = new RemoteApiPb.Response();
+      // Parsing copies the payload out of the pooled buffer, it is not copied again afterwards.
+      if (!remoteResponse.parseFrom(buffer.array, 0, buffer.length)) {
+        logger.info(
+            "HTTP ApiProxy unable to parse response for " + packageName + "." + methodName);
+        throw new RPCFailedException(packageName, methodName);
+      }
+      // If the response contains an error, convert it to the expected api exception and throw.
+      if (remoteResponse.hasRpcError() || remoteResponse.hasApplicationError()) {
+        throw convertRemoteError(remoteResponse, packageName, methodName, logger);
+      }
+      // Success, return the response.
+      return remoteResponse.getResponseAsBytes();
+    } finally {
+      RESPONSE_BUFFERS.release(buffer.array);
+    }
+  }
+
+  /**
+   * Reads at most {@link #MAX_ERROR_BODY_BYTES} of an error response for logging.
+   */
+  static String readErrorBody(HttpEntity entity) throws IOException {
+    if (entity == null) {
+      return "";
+    }
+    byte[] body = new byte[MAX_ERROR_BODY_BYTES];
+    int length = 0;
+    try (InputStream content = entity.getContent()) {
+      int read;
+      while (length < body.length
+          && (read = content.read(body, length, body.length - length)) != -1) {
+        length += read;
+      }
     }
+    return new String(body, 0, length, StandardCharsets.UTF_8).trim();
   }
 
   RuntimeException constructApiException(String packageName, String methodName) {
-    String message = "RCP Failure for API call: " + packageName + " " + methodName;
-
-    switch (packageName) {
-      case "taskqueue":
-        return new TransientFailureException(message);
-      case "app_identity_service":
-        return new AppIdentityServiceFailureException(message);
-      case "blobstore":
-        return new BlobstoreFailureException(message);
-      case "channel":
-        return new ChannelFailureException(message);
-      case "images":
-        return new ImagesServiceFailureException(message);
-      case "logservice":
-        return constructException(
-            LogServiceException.class.getName(), message, packageName, methodName);
-      case "memcache":
-        return new MemcacheServiceException(message);
-      case "modules":
-        return constructException(
-            ModulesException.class.getName(), message, packageName, methodName);
-      case "search":
-        return new SearchException(message);
-      case "user":
-        return new UserServiceFailureException(message);
-      case "xmpp":
-        return new XMPPFailureException(message);
-      default:
+    Constructor<? extends RuntimeException> constructor = getApiExceptionConstructor(packageName);
+    if (constructor != null) {
+      try {
+        return constructor.newInstance(
+            "RCP Failure for API call: " + packageName + " " + methodName);
+      } catch (ReflectiveOperationException e) {
+        // Fall back to the generic exception.
+      }
+    }
+    return new RPCFailedException(packageName, methodName);
+  }
 
-        // Cover all datastore versions:
-        if (packageName.startsWith("datastore")) {
-          return new DatastoreFailureException(message);
-        } else {
-          return new RPCFailedException(packageName, methodName);
-        }
+  /**
+   * Returns the class of the exceptions built by {@link #constructApiException} for the package,
+   * without building one.
+   */
+  static Class<? extends RuntimeException> apiExceptionClass(String packageName) {
+    Constructor<? extends RuntimeException> constructor = getApiExceptionConstructor(packageName);
+    return constructor == null ? RPCFailedException.class : constructor.getDeclaringClass();
+  }
+
+  private static Constructor<? extends RuntimeException> getApiExceptionConstructor(
+      String packageName) {
+    // Cover all datastore versions.
+    return API_EXCEPTIONS.get(packageName.startsWith("datastore") ? "datastore" : packageName);
+  }
+
+  private static void addApiException(String packageName,
+      Class<? extends RuntimeException> exceptionClass) {
+    try {
+      // TODO(ludo) remove when the correct exceptions have public constructor.
+      Constructor<? extends RuntimeException> constructor =
+          exceptionClass.getDeclaredConstructor(String.class);
+      constructor.setAccessible(true);
+      API_EXCEPTIONS.put(packageName, constructor);
+    } catch (NoSuchMethodException | SecurityException e) {
+      logger.log(Level.WARNING, "Failed calls to API " + packageName
+          + " will throw an RPCFailedException instead of " + exceptionClass.getName(), e);
     }
   }
+
   /**
    * Create an HTTP post request suitable for sending to the API server.
    *
@@ -262,30 +1030,27 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
   // 
   static HttpPost createRequest(VmApiProxyEnvironment environment, String packageName,
       String methodName, byte[] requestData, int timeoutMs) {
-    // Wrap the payload in a RemoteApi Request.
-    RemoteApiPb.Request remoteRequest = new RemoteApiPb.Request();
-    remoteRequest.setServiceName(packageName);
-    remoteRequest.setMethod(methodName);
-    remoteRequest.setRequestId(environment.getTicket());
-    remoteRequest.setRequestAsBytes(requestData);
-
-    HttpPost request = new HttpPost("http://" + environment.getServer() + REQUEST_ENDPOINT);
-    request.setHeader(RPC_STUB_ID_HEADER, REQUEST_STUB_ID);
-    request.setHeader(RPC_METHOD_HEADER, REQUEST_STUB_METHOD);
-
-    // Set TCP connection timeouts.
-    HttpParams params = new BasicHttpParams();
-    params.setLongParameter(ConnManagerPNames.TIMEOUT,
-        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
-    params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,
-        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
-    params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT,
-        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    // Wrap the payload in a RemoteApi Request, without copying it.
+    RemoteApiRequestEntity postPayload = new RemoteApiRequestEntity(
+        packageName, methodName, requestData, environment.getTicket());
+    return createRequest(environment, REQUEST_ENDPOINT, postPayload, timeoutMs);
+  }
 
-    // Performance tweaks.
-    params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, Boolean.TRUE);
-    params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, Boolean.FALSE);
-    request.setParams(params);
+  /**
+   * Create an HTTP post request carrying an already encoded body to the given API server endpoint.
+   *
+   * @param environment The current VMApiProxyEnvironment
+   * @param endpoint The path of the API server endpoint.
+   * @param postPayload The POST payload.
+   * @param timeoutMs The timeout for this request
+   * @return an HttpPost object to send to the API.
+   */
+  static HttpPost createRequest(VmApiProxyEnvironment environment, String endpoint,
+      HttpEntity postPayload, int timeoutMs) {
+    HttpPost request = new HttpPost(getRequestUri(environment.getServer(), endpoint));
+    request.setHeader(RPC_STUB_ID);
+    request.setHeader(RPC_METHOD);
+    request.setParams(getRequestParams(timeoutMs));
 
     // The request deadline can be overwritten by the environment, read deadline if available.
     Double deadline = (Double) (environment.getAttributes().get(API_DEADLINE_KEY));
@@ -293,6 +1058,12 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
       request.setHeader(RPC_DEADLINE_HEADER,
           Double.toString(TimeUnit.SECONDS.convert(timeoutMs, TimeUnit.MILLISECONDS)));
     } else {
+      // The timeout is already clamped to the request deadline, the deadline set by the
+      // environment is not.
+      long availableMs = environment.getRemainingMillis() - ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS;
+      if (availableMs > 0) {
+        deadline = Math.min(deadline, availableMs / 1000.0);
+      }
       request.setHeader(RPC_DEADLINE_HEADER, Double.toString(deadline));
     }
 
@@ -316,14 +1087,53 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
           (String) traceHeader);
     }
 
-    ByteArrayEntity postPayload = new ByteArrayEntity(remoteRequest.toByteArray(),
-        ContentType.APPLICATION_OCTET_STREAM);
-    postPayload.setChunked(false);
     request.setEntity(postPayload);
 
     return request;
   }
 
+  /**
+   * Returns the URI of {@code endpoint} on {@code server}, parsing it only on first use.
+   */
+  private static URI getRequestUri(String server, String endpoint) {
+    String url = "http://" + server + endpoint;
+    URI uri = REQUEST_URIS.get(url);
+    if (uri == null) {
+      uri = URI.create(url);
+      if (REQUEST_URIS.size() < MAX_CACHED_REQUEST_SETTINGS) {
+        REQUEST_URIS.putIfAbsent(url, uri);
+      }
+    }
+    return uri;
+  }
+
+  /**
+   * Returns the HTTP connection parameters for a call with the given timeout. The returned
+   * parameters are shared and must not be modified.
+   */
+  private static HttpParams getRequestParams(int timeoutMs) {
+    HttpParams params = REQUEST_PARAMS.get(timeoutMs);
+    if (params != null) {
+      return params;
+    }
+    // Set TCP connection timeouts.
+    params = new BasicHttpParams();
+    params.setLongParameter(ConnManagerPNames.TIMEOUT,
+        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,
+        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT,
+        timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+
+    // Performance tweaks.
+    params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, Boolean.TRUE);
+    params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, Boolean.FALSE);
+    if (REQUEST_PARAMS.size() < MAX_CACHED_REQUEST_SETTINGS) {
+      REQUEST_PARAMS.putIfAbsent(timeoutMs, params);
+    }
+    return params;
+  }
+
   /**
    * Convert RemoteApiPb.Response errors to the appropriate exception.
    *
@@ -335,7 +1145,7 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
    * @param logger the Logger used to create log messages.
    * @return ApiProxyException
    */
-  private static ApiProxyException convertRemoteError(RemoteApiPb.Response remoteResponse,
+  static ApiProxyException convertRemoteError(RemoteApiPb.Response remoteResponse,
       String packageName, String methodName, Logger logger) {
     if (remoteResponse.hasRpcError()) {
       return convertApiResponseRpcErrorToException(
@@ -408,38 +1218,422 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
   }
 
   private class MakeSyncCall implements Callable<byte[]> {
+    // Set once the call started, or was cancelled before it started.
+    private final AtomicBoolean started = new AtomicBoolean();
+    // The future of the call if its HTTP requests are aborted when it is cancelled, null if the
+    // call is shared with other requests.
+    volatile AsyncApiCall asyncCall;
     private final VmApiProxyDelegate delegate;
     private final VmApiProxyEnvironment environment;
     private final String packageName;
     private final String methodName;
     private final byte[] requestData;
+    private final int unclampedTimeoutMs;
     private final int timeoutMs;
+    private final int maxAttempts;
+    private final long circuitTicket;
 
     public MakeSyncCall(VmApiProxyDelegate delegate,
         VmApiProxyEnvironment environment,
         String packageName,
         String methodName,
         byte[] requestData,
-        int timeoutMs) {
+        int unclampedTimeoutMs,
+        int timeoutMs,
+        int maxAttempts,
+        long circuitTicket) {
       this.delegate = delegate;
       this.environment = environment;
       this.packageName = packageName;
       this.methodName = methodName;
       this.requestData = requestData;
+      this.unclampedTimeoutMs = unclampedTimeoutMs;
       this.timeoutMs = timeoutMs;
+      this.maxAttempts = maxAttempts;
+      this.circuitTicket = circuitTicket;
     }
 
     @Override
     public byte[] call() throws Exception {
-      return delegate.makeApiCall(environment,
-          packageName,
-          methodName,
-          requestData,
-          timeoutMs,
-          true);
+      if (!started.compareAndSet(false, true)) {
+        throw new CancellationException();
+      }
+      delegate.runningAsyncCall.set(asyncCall);
+      try {
+        return delegate.makeApiCall(environment,
+            packageName,
+            methodName,
+            requestData,
+            unclampedTimeoutMs,
+            timeoutMs,
+            maxAttempts,
+            circuitTicket,
+            true);
+      } finally {
+        delegate.runningAsyncCall.remove();
+      }
+    }
+
+    /**
+     * Returns the call queued up in the environment if it was cancelled before it started.
+     */
+    void releaseIfNotStarted() {
+      if (started.compareAndSet(false, true)) {
+        environment.aSyncApiCallRemoved();
+      }
     }
   }
 
+  /**
+   * Future for an API call sent through the {@link #transport}. It is completed from the I/O
+   * thread of the transport, so no thread is held while the call is in flight.
+   */
+  private class TransportApiCall extends AbstractFuture<byte[]>
+      implements FutureCallback<HttpResponse> {
+    private final String packageName;
+    private final String methodName;
+    private final HttpPost request;
+    private volatile Future<HttpResponse> exchange;
+
+    TransportApiCall(String packageName, String methodName, HttpPost request) {
+      this.packageName = packageName;
+      this.methodName = methodName;
+      this.request = request;
+    }
+
+    void start(int timeoutMs) {
+      try {
+        exchange = transport.execute(request, timeoutMs, this);
+      } catch (RuntimeException e) {
+        // The transport refused the request (for example because it was shut down).
+        failed(e);
+      }
+    }
+
+    @Override
+    public void completed(HttpResponse response) {
+      try {
+        set(readResponse(response, packageName, methodName));
+      } catch (IOException e) {
+        failed(e);
+      } catch (RuntimeException e) {
+        setException(e);
+      }
+    }
+
+    @Override
+    public void failed(Exception e) {
+      logger.info(
+          "HTTP ApiProxy I/O error for " + packageName + "." + methodName + ": " + e.getMessage());
+      setException(constructApiException(packageName, methodName));
+    }
+
+    @Override
+    public void cancelled() {
+      setException(new ApiProxy.CancelledException(packageName, methodName));
+    }
+
+    /**
+     * Fails the call before it was handed to the transport.
+     */
+    void rejected(ApiProxyException e) {
+      setException(e);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return false;
+      }
+      Future<HttpResponse> currentExchange = exchange;
+      if (currentExchange != null) {
+        currentExchange.cancel(true);
+      }
+      return true;
+    }
+
+    /**
+     * Waits for the call to complete and returns its result on the calling thread.
+     */
+    byte[] await() {
+      try {
+        return get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new RPCFailedException(packageName, methodName);
+      } catch (InterruptedException e) {
+        cancel(true);
+        Thread.currentThread().interrupt();
+        throw new ApiProxy.CancelledException(packageName, methodName);
+      }
+    }
+  }
+
+  /**
+   * Future for an API call sent with the blocking {@link #httpclient} from a thread of the
+   * {@link #executor}. Cancelling it aborts the HTTP request, which releases its connection.
+   */
+  private class BlockingApiCall extends AbstractFuture<byte[]> implements Runnable {
+    private final String packageName;
+    private final String methodName;
+    private final HttpPost request;
+
+    BlockingApiCall(String packageName, String methodName, HttpPost request) {
+      this.packageName = packageName;
+      this.methodName = methodName;
+      this.request = request;
+    }
+
+    @Override
+    public void run() {
+      if (isDone()) {
+        return;
+      }
+      try {
+        HttpResponse response = httpclient.execute(request, new BasicHttpContext());
+        set(readResponse(response, packageName, methodName));
+      } catch (IOException e) {
+        if (!isCancelled()) {
+          logger.info("HTTP ApiProxy I/O error for " + packageName + "." + methodName + ": "
+              + e.getMessage());
+          setException(constructApiException(packageName, methodName));
+        }
+      } catch (RuntimeException e) {
+        setException(e);
+      } finally {
+        request.releaseConnection();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return false;
+      }
+      request.abort();
+      return true;
+    }
+  }
+
+  /**
+   * Starts a single attempt of an API call without waiting for it.
+   */
+  private ListenableFuture<byte[]> startAttempt(VmApiProxyEnvironment environment,
+      String packageName, String methodName, byte[] requestData, int timeoutMs) {
+    HttpPost request = createRequest(environment, packageName, methodName, requestData, timeoutMs);
+    if (transport != null) {
+      TransportApiCall call = new TransportApiCall(packageName, methodName, request);
+      call.start(timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+      return call;
+    }
+    BlockingApiCall call = new BlockingApiCall(packageName, methodName, request);
+    executor.execute(call);
+    return call;
+  }
+
+  /**
+   * Runs an API call of a hedged method. If the call has not answered by the usual latency of the
+   * method and the hedge budget allows it, a second attempt is sent and the first successful
+   * response wins. The other attempt is cancelled.
+   */
+  private byte[] runHedgedCall(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, int timeoutMs) {
+    long hedgeDelayNanos = hedger.startCall(packageName, methodName);
+    long startNanos = System.nanoTime();
+    ListenableFuture<byte[]> primary =
+        startAttempt(environment, packageName, methodName, requestData, timeoutMs);
+    ListenableFuture<byte[]> hedge = null;
+    try {
+      ListenableFuture<byte[]> result = primary;
+      if (hedgeDelayNanos >= 0 && !isDoneAfter(primary, hedgeDelayNanos)
+          && hedger.tryAcquireHedge()) {
+        hedge = startAttempt(environment, packageName, methodName, requestData, timeoutMs);
+        result = firstSuccessful(primary, hedge);
+      }
+      byte[] response = awaitResult(result, packageName, methodName);
+      hedger.record(packageName, methodName, System.nanoTime() - startNanos);
+      return response;
+    } finally {
+      primary.cancel(true);
+      if (hedge != null) {
+        hedge.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Waits up to {@code timeoutNanos} for {@code future} to complete.
+   */
+  private static boolean isDoneAfter(Future<byte[]> future, long timeoutNanos) {
+    try {
+      future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      return false;
+    } catch (ExecutionException | CancellationException e) {
+      // Done, the failure is reported by awaitResult.
+    } catch (InterruptedException e) {
+      // Let awaitResult handle the interrupt.
+      Thread.currentThread().interrupt();
+    }
+    return true;
+  }
+
+  /**
+   * Returns a future completed with the first successful result of {@code first} and
+   * {@code second}, or with the failure of the last one if both fail.
+   */
+  private static ListenableFuture<byte[]> firstSuccessful(
+      ListenableFuture<byte[]> first, ListenableFuture<byte[]> second) {
+    final SettableFuture<byte[]> winner = SettableFuture.create();
+    final AtomicInteger failures = new AtomicInteger();
+    for (final ListenableFuture<byte[]> attempt : Arrays.asList(first, second)) {
+      attempt.addListener(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            winner.set(attempt.get());
+          } catch (ExecutionException e) {
+            if (failures.incrementAndGet() == 2) {
+              winner.setException(e.getCause());
+            }
+          } catch (InterruptedException | CancellationException e) {
+            if (failures.incrementAndGet() == 2) {
+              winner.setException(e);
+            }
+          }
+        }
+      }, MoreExecutors.directExecutor());
+    }
+    return winner;
+  }
+
+  /**
+   * Waits for an API call to complete and returns its result on the calling thread.
+   */
+  private static byte[] awaitResult(
+      Future<byte[]> call, String packageName, String methodName) {
+    try {
+      return call.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RPCFailedException(packageName, methodName);
+    } catch (InterruptedException e) {
+      call.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ApiProxy.CancelledException(packageName, methodName);
+    } catch (CancellationException e) {
+      throw new ApiProxy.CancelledException(packageName, methodName);
+    }
+  }
+
+  /**
+   * Sends a sync API call through the {@link #transport} and waits for the response.
+   */
+  private byte[] runTransportCall(VmApiProxyEnvironment environment, String packageName,
+      String methodName, byte[] requestData, int timeoutMs) {
+    HttpPost request = createRequest(environment, packageName, methodName, requestData, timeoutMs);
+    TransportApiCall call = new TransportApiCall(packageName, methodName, request);
+    call.start(timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    return call.await();
+  }
+
+  /**
+   * Sends an async API call through the {@link #transport}. Only the calling thread is used to
+   * acquire the semaphores; the returned future is completed by the transport's I/O thread.
+   */
+  private ListenableFuture<byte[]> makeTransportAsyncCall(final VmApiProxyEnvironment environment,
+      String packageName, String methodName, byte[] requestData, int timeoutMs,
+      boolean deadlineClamped) {
+    HttpPost request = createRequest(environment, packageName, methodName, requestData, timeoutMs);
+    TransportApiCall call = new TransportApiCall(packageName, methodName, request);
+    environment.aSyncApiCallAdded(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS);
+    try {
+      // Releases the pending call semaphore acquired above.
+      environment.apiCallStarted(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS, true);
+    } catch (ApiProxyException e) {
+      call.rejected(e);
+      return call;
+    }
+    call.addListener(new Runnable() {
+      @Override
+      public void run() {
+        environment.apiCallCompleted();
+      }
+    }, MoreExecutors.directExecutor());
+    if (isLimited(packageName, methodName)) {
+      long startNanos;
+      try {
+        startNanos = limiter.acquire(environment, VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS);
+      } catch (ApiProxyException e) {
+        call.rejected(e);
+        return call;
+      }
+      releaseLimitWhenDone(packageName, methodName, startNanos, call, deadlineClamped);
+    }
+    call.start(timeoutMs + ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    return call;
+  }
+
+  /**
+   * Adds an async API call to the {@link #batcher}. The call counts as started as soon as it joined
+   * a batch.
+   */
+  private ListenableFuture<byte[]> makeBatchedAsyncCall(final VmApiProxyEnvironment environment,
+      String packageName, String methodName, byte[] requestData, int timeoutMs,
+      boolean deadlineClamped) {
+    environment.aSyncApiCallAdded(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS);
+    try {
+      // Releases the pending call semaphore acquired above.
+      environment.apiCallStarted(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS, true);
+    } catch (ApiProxyException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    long startNanos = 0;
+    if (isLimited(packageName, methodName)) {
+      try {
+        startNanos = limiter.acquire(environment, VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS);
+      } catch (ApiProxyException e) {
+        environment.apiCallCompleted();
+        return Futures.immediateFailedFuture(e);
+      }
+    }
+    ListenableFuture<byte[]> call =
+        batcher.add(environment, packageName, methodName, requestData, timeoutMs);
+    call.addListener(new Runnable() {
+      @Override
+      public void run() {
+        environment.apiCallCompleted();
+      }
+    }, MoreExecutors.directExecutor());
+    if (isLimited(packageName, methodName)) {
+      releaseLimitWhenDone(packageName, methodName, startNanos, call, deadlineClamped);
+    }
+    return call;
+  }
+
+  /**
+   * Makes an async log flush in the {@link #logFlushLane}. It does not count against the API calls
+   * of the request, the log writer waits for its flushes itself.
+   */
+  private ListenableFuture<byte[]> makeLogFlushAsyncCall(VmApiProxyEnvironment environment,
+      String packageName, String methodName, byte[] requestData, int unclampedTimeoutMs,
+      int timeoutMs) {
+    final CallLoader loader = new CallLoader(environment, packageName, methodName, requestData,
+        unclampedTimeoutMs, timeoutMs, getMaxAttempts(packageName, methodName));
+    return logFlushLane.submit(packageName, methodName, new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return runWithRetries(loader);
+      }
+    });
+  }
+
   @Override
   public Future<byte[]> makeAsyncCall(
         VmApiProxyEnvironment environment,
@@ -447,13 +1641,92 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
         String methodName,
         byte[] request,
         ApiConfig apiConfig) {
-    int timeoutMs = defaultTimeoutMs;
+    return chain.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+  }
+
+  private Future<byte[]> startAsyncCall(
+        VmApiProxyEnvironment environment,
+        String packageName,
+        String methodName,
+        byte[] request,
+        ApiConfig apiConfig) {
+    // Calls that may share their response always go through the executor, which populates the
+    // cache and joins identical calls.
+    boolean shared = isSharedCall(packageName, methodName);
+    if (responseCache != null && responseCache.isCached(packageName, methodName)) {
+      byte[] response = responseCache.getIfPresent(packageName, methodName, request);
+      if (response != null) {
+        return Futures.immediateFuture(response);
+      }
+    }
+    int timeoutMs;
     if (apiConfig != null && apiConfig.getDeadlineInSeconds() != null) {
       timeoutMs = (int) (apiConfig.getDeadlineInSeconds() * 1000);
+    } else {
+      timeoutMs = adaptTimeout(packageName, methodName, defaultTimeoutMs);
+    }
+    int unclampedTimeoutMs = timeoutMs;
+    long circuitTicket;
+    try {
+      timeoutMs = clampTimeout(environment, packageName, methodName, timeoutMs);
+      circuitTicket = checkCircuit(packageName, methodName);
+    } catch (RuntimeException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    boolean deadlineClamped = timeoutMs < unclampedTimeoutMs;
+    if (isLogFlush(packageName, methodName)) {
+      ListenableFuture<byte[]> call = makeLogFlushAsyncCall(
+          environment, packageName, methodName, request, unclampedTimeoutMs, timeoutMs);
+      recordOutcomeWhenDone(environment, packageName, methodName, request, call, circuitTicket,
+          deadlineClamped);
+      return call;
+    }
+    // Only the executor retries calls, those that may be retried skip the batcher and transport.
+    int maxAttempts = getMaxAttempts(packageName, methodName);
+    boolean direct = !shared && maxAttempts == 1;
+    if (batcher != null && direct) {
+      ListenableFuture<byte[]> call = makeBatchedAsyncCall(
+          environment, packageName, methodName, request, timeoutMs, deadlineClamped);
+      recordOutcomeWhenDone(environment, packageName, methodName, request, call, circuitTicket,
+          deadlineClamped);
+      return trackAsyncCall(environment, call, true);
+    }
+    if (transport != null && direct) {
+      ListenableFuture<byte[]> call = makeTransportAsyncCall(
+          environment, packageName, methodName, request, timeoutMs, deadlineClamped);
+      recordOutcomeWhenDone(environment, packageName, methodName, request, call, circuitTicket,
+          deadlineClamped);
+      return trackAsyncCall(environment, call, true);
     }
     environment.aSyncApiCallAdded(VmRuntimeUtils.MAX_USER_API_CALL_WAIT_MS);
-    return executor.submit(new MakeSyncCall(this, environment, packageName,
-        methodName, request, timeoutMs));
+    final MakeSyncCall makeSyncCall = new MakeSyncCall(this, environment, packageName,
+        methodName, request, unclampedTimeoutMs, timeoutMs, maxAttempts, circuitTicket);
+    ListenableFutureTask<byte[]> task = ListenableFutureTask.create(makeSyncCall);
+    task.addListener(new Runnable() {
+      @Override
+      public void run() {
+        makeSyncCall.releaseIfNotStarted();
+      }
+    }, MoreExecutors.directExecutor());
+    // Aborting the HTTP request of a shared call would fail the requests sharing it.
+    AsyncApiCall call = trackAsyncCall(environment, task, !shared);
+    if (!shared) {
+      makeSyncCall.asyncCall = call;
+    }
+    executor.execute(task);
+    return call;
+  }
+
+  /**
+   * Tracks an async call in the environment of its request until it completes.
+   *
+   * @param cancellable False if the call must not be cancelled when its result was never read.
+   */
+  private AsyncApiCall trackAsyncCall(VmApiProxyEnvironment environment,
+      ListenableFuture<byte[]> call, boolean cancellable) {
+    AsyncApiCall asyncCall = new AsyncApiCall(call, cancellable && cancelUnreadCalls);
+    environment.addAsyncApiCall(asyncCall);
+    return asyncCall;
   }
 
   @Override
@@ -481,6 +1754,50 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
     return Lists.newLinkedList();
   }
 
+  /**
+   * End of the interceptor chain, making the calls.
+   */
+  private class DelegateChain implements ApiCallInterceptor.Chain {
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName,
+        String methodName, byte[] requestData) {
+      return makeSyncCallWithTimeout(environment, packageName, methodName, requestData,
+          defaultTimeoutMs);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName,
+        String methodName, byte[] requestData, ApiConfig apiConfig) {
+      return startAsyncCall(environment, packageName, methodName, requestData, apiConfig);
+    }
+  }
+
+  /**
+   * Link of the interceptor chain passing the calls to an interceptor.
+   */
+  private static class InterceptorChain implements ApiCallInterceptor.Chain {
+    private final ApiCallInterceptor interceptor;
+    private final ApiCallInterceptor.Chain next;
+
+    InterceptorChain(ApiCallInterceptor interceptor, ApiCallInterceptor.Chain next) {
+      this.interceptor = interceptor;
+      this.next = next;
+    }
+
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName,
+        String methodName, byte[] requestData) {
+      return interceptor.makeSyncCall(environment, packageName, methodName, requestData, next);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName,
+        String methodName, byte[] requestData, ApiConfig apiConfig) {
+      return interceptor.makeAsyncCall(
+          environment, packageName, methodName, requestData, apiConfig, next);
+    }
+  }
+
   /**
    * Simple connection watchdog verifying that our connections are alive. Any stale connections are
    * cleared as well.
@@ -488,10 +1805,15 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
   class IdleConnectionMonitorThread extends Thread {
 
     private final ClientConnectionManager connectionManager;
+    private final VmApiProxyTransport transport;  // may be null.
+    private final ApiCallLane logFlushLane;  // may be null.
 
-    public IdleConnectionMonitorThread(ClientConnectionManager connectionManager) {
+    public IdleConnectionMonitorThread(ClientConnectionManager connectionManager,
+        VmApiProxyTransport transport, ApiCallLane logFlushLane) {
       super("IdleApiConnectionMontorThread");
       this.connectionManager = connectionManager;
+      this.transport = transport;
+      this.logFlushLane = logFlushLane;
       this.setDaemon(false);
     }
 
@@ -503,6 +1825,12 @@ public class VmApiProxyDelegate implements ApiProxy.Delegate<VmApiProxyEnvironme
           connectionManager.closeExpiredConnections();
           // Close connections that have been idle longer than 60 sec.
           connectionManager.closeIdleConnections(60, TimeUnit.SECONDS);
+          if (transport != null) {
+            transport.closeIdleConnections(60, TimeUnit.SECONDS);
+          }
+          if (logFlushLane != null) {
+            logFlushLane.closeIdleConnections(60, TimeUnit.SECONDS);
+          }
           Thread.sleep(5000);
         }
       } catch (InterruptedException ex) {
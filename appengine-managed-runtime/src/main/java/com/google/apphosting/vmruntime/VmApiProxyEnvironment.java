@@ -20,18 +20,20 @@ package com.google.apphosting.vmruntime;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.ApiProxyException;
 import com.google.apphosting.api.ApiProxy.LogRecord;
-import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
 import com.google.apphosting.runtime.timer.Timer;
 import com.google.apphosting.utils.http.HttpRequest;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.MoreExecutors;
 
 
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements the ApiProxy environment when running in a Google Compute Engine VM.
@@ -234,6 +236,86 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     }
   }
 
+  // AttributeMapping.values() copies the array on each call.
+  private static final AttributeMapping[] ATTRIBUTE_MAPPINGS = AttributeMapping.values();
+
+  /**
+   * The parts of the environments that are the same for all requests to the instance, computed
+   * once.
+   */
+  private static final class InstanceTemplate {
+    // The sources of the template, which is rebuilt if they change.
+    final Map<String, String> envMap;
+    final VmMetadataCache cache;
+
+    // As read from the environment variables or the metadata server, may be null.
+    final String longAppId;
+    final String partition;
+    final String module;
+    final String majorVersion;
+    final String instance;
+    final String affinity;
+
+    final String appId;
+    final String moduleId;
+    final String majorVersionId;
+    final String minorVersionId;
+    final String versionId;
+    final String appengineHostname;
+    final String l7UnsafeRedirectUrl;
+    final boolean useMvmAgent;
+    final int serverPort;
+    // The ticket of the calls made outside of a request, null if it cannot be computed.
+    final String defaultTicket;
+    // Since we register VmEnvironmentFactory with ApiProxy in VmRuntimeWebAppContext,
+    // we can use the default thread factory here and don't require any special logic.
+    final ThreadFactory backgroundThreadFactory = Executors.defaultThreadFactory();
+
+    InstanceTemplate(Map<String, String> envMap, VmMetadataCache cache, String longAppId,
+        String partition, String module, String majorVersion, String minorVersion,
+        String instance, String affinity, String appengineHostname, boolean useMvmAgent) {
+      this.envMap = envMap;
+      this.cache = cache;
+      this.longAppId = longAppId;
+      this.partition = partition;
+      this.module = module;
+      this.majorVersion = majorVersion;
+      this.instance = instance;
+      this.affinity = affinity;
+      this.appId = longAppId == null ? "" : partition + "~" + longAppId;
+      this.moduleId = module == null ? "default" : module;
+      this.majorVersionId = majorVersion == null ? "" : majorVersion;
+      this.minorVersionId = minorVersion == null ? "" : minorVersion;
+      this.versionId = String.format("%s.%s", majorVersionId, minorVersionId);
+      this.appengineHostname = appengineHostname;
+      this.l7UnsafeRedirectUrl = String.format("https://%s-dot-%s-dot-%s",
+          majorVersionId, moduleId, appengineHostname);
+      this.useMvmAgent = useMvmAgent;
+      String port = System.getenv(GAE_SERVER_PORT) == null ?
+              System.getProperty("GAE_SERVER_PORT", "80"): System.getenv(GAE_SERVER_PORT);
+      this.serverPort = Integer.decode(port);
+      if ((longAppId == null || longAppId.isEmpty()) ||
+          (module == null || module.isEmpty()) ||
+          (majorVersion == null || majorVersion.isEmpty()) ||
+          (instance == null || instance.isEmpty())) {
+        this.defaultTicket = null;
+      } else {
+        String escapedAppId = longAppId.replace(':', '_').replace('.', '_');
+        this.defaultTicket = escapedAppId + '/' + module + '.' + majorVersion + "." + instance;
+      }
+    }
+
+    /**
+     * Adds the attributes describing the instance.
+     */
+    void addInstanceAttributes(Map<String, Object> attributes) {
+      attributes.put(BACKEND_ID_KEY, module);
+      attributes.put(INSTANCE_ID_KEY, instance);
+      attributes.put(AFFINITY_KEY, affinity);
+      attributes.put(BACKGROUND_THREAD_FACTORY_ATTR, backgroundThreadFactory);
+    }
+  }
+
   /**
    * Helper method to use during the transition from metadata to environment variables.
    *
@@ -285,9 +367,12 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     final boolean useMvmAgent = Boolean.parseBoolean(getEnvOrMetadata(
         envMap, cache, USE_MVM_AGENT_KEY, USE_MVM_AGENT_ATTRIBUTE));
 
-    Map<String, Object> attributes = new HashMap<>();
+    InstanceTemplate template = new InstanceTemplate(envMap, cache, longAppId, partition, module,
+        majorVersion, minorVersion, instance, affinity, appengineHostname, useMvmAgent);
+
+    Map<String, Object> attributes = new RequestAttributes();
     // Fill in default attributes values.
-    for (AttributeMapping mapping : AttributeMapping.values()) {
+    for (AttributeMapping mapping : ATTRIBUTE_MAPPINGS) {
       if (mapping.trustedAppOnly) {
         continue;
       }
@@ -297,17 +382,12 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
       attributes.put(mapping.attributeKey, mapping.defaultValue);
     }
     attributes.put(IS_FEDERATED_USER_KEY, Boolean.FALSE);
-    attributes.put(BACKEND_ID_KEY, module);
-    attributes.put(INSTANCE_ID_KEY, instance);
-    attributes.put(AFFINITY_KEY, affinity);
-    VmApiProxyEnvironment defaultEnvironment = new VmApiProxyEnvironment(server, ticket, longAppId,
-        partition, module, majorVersion, minorVersion, instance, appengineHostname, email, admin,
-        authDomain, useMvmAgent, wallTimer, millisUntilSoftDeadline, attributes);
-    // Add the thread factories required by the threading API.
+    // Also adds the background thread factory required by the threading API.
+    template.addInstanceAttributes(attributes);
+    VmApiProxyEnvironment defaultEnvironment = new VmApiProxyEnvironment(server, ticket, template,
+        email, admin, authDomain, wallTimer, millisUntilSoftDeadline, attributes);
+    // Add the request thread factory required by the threading API.
     attributes.put(REQUEST_THREAD_FACTORY_ATTR, new VmRequestThreadFactory(null));
-    // Since we register VmEnvironmentFactory with ApiProxy in VmRuntimeWebAppContext,
-    // we can use the default thread factory here and don't require any special logic.
-    attributes.put(BACKGROUND_THREAD_FACTORY_ATTR, Executors.defaultThreadFactory());
     return defaultEnvironment;
   }
 
@@ -329,15 +409,7 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
       Timer wallTimer,
       Long millisUntilSoftDeadline,
       VmApiProxyEnvironment defaultEnvironment) {
-    final String longAppId = getEnvOrMetadata(envMap, cache, LONG_APP_ID_KEY, PROJECT_ATTRIBUTE);
-    final String partition = getEnvOrMetadata(envMap, cache, PARTITION_KEY, PARTITION_ATTRIBUTE);
-    final String module = getEnvOrMetadata(envMap, cache, MODULE_NAME_KEY, BACKEND_ATTRIBUTE);
-    final String majorVersion = defaultEnvironment.getMajorVersion();
-    final String minorVersion = defaultEnvironment.getMinorVersion();
-    final String appengineHostname = defaultEnvironment.getAppengineHostname();
-    final boolean useMvmAgent = defaultEnvironment.getUseMvmAgent();
-    final String instance = getEnvOrMetadata(envMap, cache, INSTANCE_KEY, INSTANCE_ATTRIBUTE);
-    final String affinity = getEnvOrMetadata(envMap, cache, AFFINITY_ENV_KEY, AFFINITY_ATTRIBUTE);
+    final InstanceTemplate template = defaultEnvironment.getRequestTemplate(envMap, cache);
     final String ticket = request.getHeader(TICKET_HEADER);
     final String email = request.getHeader(EMAIL_HEADER);
     boolean admin = false;
@@ -352,9 +424,9 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     final String authDomain = request.getHeader(AUTH_DOMAIN_HEADER);
     boolean trustedApp = request.getHeader(IS_TRUSTED_IP_HEADER) != null;
 
-    Map<String, Object> attributes = new HashMap<>();
+    Map<String, Object> attributes = new RequestAttributes();
     // Fill in the attributes from the AttributeMapping.
-    for (AttributeMapping mapping : AttributeMapping.values()) {
+    for (AttributeMapping mapping : ATTRIBUTE_MAPPINGS) {
       if (mapping.trustedAppOnly && !trustedApp) {
         // Do not fill in any trusted app attributes unless the app is trusted.
         continue;
@@ -371,9 +443,8 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     boolean federatedId = request.getHeader(AttributeMapping.FEDERATED_IDENTITY.headerKey) != null;
     attributes.put(IS_FEDERATED_USER_KEY, federatedId);
 
-    attributes.put(BACKEND_ID_KEY, module);
-    attributes.put(INSTANCE_ID_KEY, instance);
-    attributes.put(AFFINITY_KEY, affinity);
+    // Also adds the background thread factory required by the threading API.
+    template.addInstanceAttributes(attributes);
 
     if (trustedApp) {
       // The trusted IP attribute is a boolean.
@@ -381,68 +452,84 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
       attributes.put(IS_TRUSTED_IP_KEY, trustedIp);
     }
 
-    VmApiProxyEnvironment requestEnvironment = new VmApiProxyEnvironment(server, ticket, longAppId,
-        partition, module, majorVersion, minorVersion, instance, appengineHostname, email, admin,
-        authDomain, useMvmAgent, wallTimer, millisUntilSoftDeadline, attributes);
-    // Add the thread factories required by the threading API.
+    VmApiProxyEnvironment requestEnvironment = new VmApiProxyEnvironment(server, ticket, template,
+        email, admin, authDomain, wallTimer, millisUntilSoftDeadline, attributes);
+    // Add the request thread factory required by the threading API.
     attributes.put(REQUEST_THREAD_FACTORY_ATTR, new VmRequestThreadFactory(requestEnvironment));
-    // Since we register VmEnvironmentFactory with ApiProxy in VmRuntimeWebAppContext,
-    // we can use the default thread factory here and don't require any special logic.
-    attributes.put(BACKGROUND_THREAD_FACTORY_ATTR, Executors.defaultThreadFactory());
 
     return requestEnvironment;
   }
 
+  /**
+   * Returns the template of the environments of the requests, built from {@code envMap} and
+   * {@code cache} and the versions of this default environment. It is only rebuilt if the
+   * environment variables or the metadata cache change.
+   */
+  private InstanceTemplate getRequestTemplate(Map<String, String> envMap, VmMetadataCache cache) {
+    InstanceTemplate template = requestTemplate;
+    if (template != null && template.envMap == envMap && template.cache == cache) {
+      return template;
+    }
+    template = new InstanceTemplate(envMap, cache,
+        getEnvOrMetadata(envMap, cache, LONG_APP_ID_KEY, PROJECT_ATTRIBUTE),
+        getEnvOrMetadata(envMap, cache, PARTITION_KEY, PARTITION_ATTRIBUTE),
+        getEnvOrMetadata(envMap, cache, MODULE_NAME_KEY, BACKEND_ATTRIBUTE),
+        getMajorVersion(), getMinorVersion(),
+        getEnvOrMetadata(envMap, cache, INSTANCE_KEY, INSTANCE_ATTRIBUTE),
+        getEnvOrMetadata(envMap, cache, AFFINITY_ENV_KEY, AFFINITY_ATTRIBUTE),
+        getAppengineHostname(), getUseMvmAgent());
+    requestTemplate = template;
+    return template;
+  }
+
   private final String server;
   private final String ticket;
-  private final int serverPort;
-  private final String partition;
-  private final String appId;
-  private final String module;
-  private final String majorVersion;
-  private final String minorVersion;
-  private final String versionId;
-  private final String appengineHostname;
-  private final String l7UnsafeRedirectUrl;
+  private final InstanceTemplate template;
   private final String email;
   private final boolean admin;
   private final String authDomain;
-  private final boolean useMvmAgent;
   private final Map<String, Object> attributes;
-  private ThreadLocal<Map<String, Object>> threadLocalAttributes;
+  // Created when the environment is first shared with a background thread.
+  private volatile ThreadLocal<Map<String, Object>> threadLocalAttributes;
   private final Timer wallTimer;  // may be null if millisUntilSoftDeadline is null.
   private final Long millisUntilSoftDeadline;  // may be null (no deadline).
-  private final VmAppLogsWriter appLogsWriter;
+  // Created on the first log record, as many requests do not log.
+  private volatile VmAppLogsWriter appLogsWriter;
+  // The template of the environments of the requests if this is the default environment.
+  private volatile InstanceTemplate requestTemplate;
   
   final Semaphore pendingApiCallSemaphore;
+  // The API calls made by the request.
+  private final RequestApiStats apiStats = new RequestApiStats();
   
   final Semaphore runningApiCallSemaphore;
 
+  // The number of pending and running API calls, waited for at the end of the request.
+  private final AtomicInteger outstandingApiCalls = new AtomicInteger();
+  // Notified when the last outstanding API call completes.
+  private final Object apiCallsCompleted = new Object();
+  // The async API calls which have not completed yet.
+  private final Set<AsyncApiCall> asyncApiCalls =
+      Collections.newSetFromMap(new ConcurrentHashMap<AsyncApiCall, Boolean>());
+
   /**
    * Constructs a VM AppEngine API environment.
    *
    * @param server the host:port address of the VM's HTTP proxy server.
-   * @param ticket the request ticket (if null the default one will be computed).
-   * @param appId the application ID (required if ticket is null).
-   * @param partition the partition name.
-   * @param module the module name (required if ticket is null).
-   * @param majorVersion the major application version (required if ticket is null).
-   * @param minorVersion the minor application version.
-   * @param instance the VM instance ID (required if ticket is null).
-   * @param appengineHostname the app's appengine hostname.
+   * @param ticket the request ticket (if null the default one of the template is used).
+   * @param template the parts of the environment shared by all requests to the instance.
    * @param email the user's e-mail address (may be null).
    * @param admin true if the user is an administrator.
    * @param authDomain the user's authentication domain (may be null).
-   * @param useMvmAgent if true, the mvm agent is in use.
    * @param wallTimer optional wall clock timer for the current request (required for deadline).
    * @param millisUntilSoftDeadline optional soft deadline in milliseconds relative to 'wallTimer'.
-   * @param attributes map containing any attributes set on this environment.
+   * @param attributes map containing any attributes set on this environment, shared by the
+   *        threads of the request.
    */
   private VmApiProxyEnvironment(
-      String server, String ticket, String appId, String partition, String module,
-      String majorVersion, String minorVersion, String instance, String appengineHostname,
-      String email, boolean admin, String authDomain, boolean useMvmAgent, Timer wallTimer,
-      Long millisUntilSoftDeadline, Map<String, Object> attributes) {
+      String server, String ticket, InstanceTemplate template, String email, boolean admin,
+      String authDomain, Timer wallTimer, Long millisUntilSoftDeadline,
+      Map<String, Object> attributes) {
     if (server == null || server.isEmpty()) {
       throw new IllegalArgumentException("proxy server host:port must be specified");
     }
@@ -450,78 +537,72 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
       throw new IllegalArgumentException("wallTimer required when setting millisUntilSoftDeadline");
     }
     if (ticket == null || ticket.isEmpty()) {
-      if ((appId == null || appId.isEmpty()) ||
-          (module == null || module.isEmpty()) ||
-          (majorVersion == null || majorVersion.isEmpty()) ||
-          (instance == null || instance.isEmpty())) {
+      if (template.defaultTicket == null) {
         throw new IllegalArgumentException(
-            "When ticket == null, the following must be specified: appId=" + appId
-            + ", module=" + module + ", version=" + majorVersion + ", instance=" + instance);
+            "When ticket == null, the following must be specified: appId=" + template.longAppId
+            + ", module=" + template.module + ", version=" + template.majorVersion
+            + ", instance=" + template.instance);
       }
-      String escapedAppId = appId.replace(':', '_').replace('.', '_');
-      this.ticket = escapedAppId + '/' + module + '.' + majorVersion + "." + instance;
+      this.ticket = template.defaultTicket;
     } else {
       this.ticket = ticket;
     }
     this.server = server;
-    this.partition = partition;
-    String port = System.getenv(GAE_SERVER_PORT) == null ? 
-            System.getProperty("GAE_SERVER_PORT", "80"): System.getenv(GAE_SERVER_PORT);
-    this.serverPort = Integer.decode(port);
-    if (appId == null) {
-      this.appId = "";
-    } else {
-      this.appId = partition + "~" + appId;
-    }
-    this.module = module == null ? "default" : module;
-    this.majorVersion = majorVersion == null ? "" : majorVersion;
-    this.minorVersion = minorVersion == null ? "" : minorVersion;
-    this.versionId = String.format("%s.%s", this.majorVersion, this.minorVersion);
-    this.appengineHostname = appengineHostname;
-    this.l7UnsafeRedirectUrl = String.format("https://%s-dot-%s-dot-%s",
-        this.majorVersion, this.module, this.appengineHostname);
+    this.template = template;
     this.email = email == null ? "" : email;
     this.admin = admin;
     this.authDomain = authDomain == null ? "" : authDomain;
-    this.useMvmAgent = useMvmAgent;
     this.wallTimer = wallTimer;
     this.millisUntilSoftDeadline = millisUntilSoftDeadline;
     // Environments are associated with requests, and can be
-    // shared across more than one thread. We'll synchronize all
-    // individual calls which should be sufficient.
-    this.attributes = Collections.synchronizedMap(attributes);
-
-    // TODO(user): forward app_log_line_size, app_log_group_size, max_log_flush_seconds
-    // from clone_settings so these can be overridden per app.
-    this.appLogsWriter = new VmAppLogsWriter(
-        new LinkedList<UserAppLogLine>(), DEFAULT_FLUSH_APP_LOGS_EVERY_BYTE_COUNT,
-        DEFAULT_MAX_LOG_LINE_SIZE, MAX_LOG_FLUSH_SECONDS);
+    // shared across more than one thread. The attribute maps are thread safe for
+    // individual calls, which should be sufficient.
+    this.attributes = attributes;
     this.pendingApiCallSemaphore = new Semaphore(MAX_PENDING_API_CALLS);
     this.runningApiCallSemaphore = new Semaphore(MAX_CONCURRENT_API_CALLS);
   }
 
+  private VmAppLogsWriter getAppLogsWriter() {
+    VmAppLogsWriter writer = appLogsWriter;
+    if (writer == null) {
+      synchronized (this) {
+        writer = appLogsWriter;
+        if (writer == null) {
+          // TODO(user): forward app_log_line_size, app_log_group_size, max_log_flush_seconds
+          // from clone_settings so these can be overridden per app.
+          writer = new VmAppLogsWriter(this, DEFAULT_FLUSH_APP_LOGS_EVERY_BYTE_COUNT,
+              DEFAULT_MAX_LOG_LINE_SIZE, MAX_LOG_FLUSH_SECONDS);
+          appLogsWriter = writer;
+        }
+      }
+    }
+    return writer;
+  }
+
   public void addLogRecord(LogRecord record) {
-    appLogsWriter.addLogRecordAndMaybeFlush(record);
+    getAppLogsWriter().addLogRecordAndMaybeFlush(record);
   }
 
   public int flushLogs() {
-    return appLogsWriter.flushAndWait();
+    VmAppLogsWriter writer = appLogsWriter;
+    // Nothing was ever logged, so nothing was ever flushed.
+    return writer == null ? 0 : writer.flushAndWait();
   }
 
   public String getMajorVersion() {
-    return majorVersion;
+    return template.majorVersionId;
   }
 
   public String getMinorVersion() {
-    return minorVersion;
+    return template.minorVersionId;
   }
 
   public String getAppengineHostname() {
-    return appengineHostname;
+    return template.appengineHostname;
   }
 
   public String getL7UnsafeRedirectUrl() {
-    return l7UnsafeRedirectUrl;
+    return template.l7UnsafeRedirectUrl;
   }
 
   public String getServer() {
@@ -533,26 +614,26 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
   }
 
   public String getPartition() {
-    return partition;
+    return template.partition;
   }
 
   public int getServerPort() {
-    return serverPort;
+    return template.serverPort;
   }
 
   @Override
   public String getAppId() {
-    return appId;
+    return template.appId;
   }
 
   @Override
   public String getModuleId() {
-    return module;
+    return template.moduleId;
   }
 
   @Override
   public String getVersionId() {
-    return versionId;
+    return template.versionId;
   }
 
   @Override
@@ -576,7 +657,7 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
   }
 
   public boolean getUseMvmAgent() {
-    return useMvmAgent;
+    return template.useMvmAgent;
   }
 
   @Deprecated
@@ -591,27 +672,38 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
   }
 
   /***
-   * Create a thread-local copy of the attributes. Used for the instance of this class that is
-   * shared among all the background threads. They each may mutate the attributes independently.
+   * Create a thread-local view of the attributes. Used for the instance of this class that is
+   * shared among all the background threads. They each may mutate the attributes independently,
+   * in an {@link AttributeOverlay} over the shared attributes.
    */
-  public synchronized void setThreadLocalAttributes() {
-    if (threadLocalAttributes == null) {
-      threadLocalAttributes = new ThreadLocal<>();
+  public void setThreadLocalAttributes() {
+    ThreadLocal<Map<String, Object>> local = threadLocalAttributes;
+    if (local == null) {
+      synchronized (this) {
+        local = threadLocalAttributes;
+        if (local == null) {
+          local = new ThreadLocal<>();
+          threadLocalAttributes = local;
+        }
+      }
     }
-    threadLocalAttributes.set(new HashMap<>(attributes));
+    local.set(new AttributeOverlay(attributes));
   }
 
   @Override
   public Map<String, Object> getAttributes() {
-    if (threadLocalAttributes != null && threadLocalAttributes.get() != null) {
-      // If a thread-local copy of the attributes exists, return it.
-      return threadLocalAttributes.get();
-    } else {
-      // Otherwise this is not a shared instance and/or we were never told to store
-      // a thread-local copy. So we just return the attributes that were used to originally
-      // construct the instance.
-      return attributes;
+    ThreadLocal<Map<String, Object>> local = threadLocalAttributes;
+    if (local != null) {
+      // If a thread-local view of the attributes exists, return it.
+      Map<String, Object> threadAttributes = local.get();
+      if (threadAttributes != null) {
+        return threadAttributes;
+      }
     }
+    // Otherwise this is not a shared instance and/or we were never told to store
+    // a thread-local view. So we just return the attributes that were used to originally
+    // construct the instance.
+    return attributes;
   }
 
   @Override
@@ -629,7 +721,8 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
    */
   void aSyncApiCallAdded(long maxWaitMs) throws ApiProxyException {
     try {
-      if (pendingApiCallSemaphore.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+      if (acquire(pendingApiCallSemaphore, maxWaitMs)) {
+        outstandingApiCalls.incrementAndGet();
         return; // All good.
       }
       throw new ApiProxyException("Timed out while acquiring a pending API call semaphore.");
@@ -649,7 +742,8 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
    */
   void apiCallStarted(long maxWaitMs, boolean releasePendingCall) throws ApiProxyException {
     try {
-      if (runningApiCallSemaphore.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+      if (acquire(runningApiCallSemaphore, maxWaitMs)) {
+        outstandingApiCalls.incrementAndGet();
         return; // All good.
       }
       throw new ApiProxyException("Timed out while acquiring an API call semaphore.");
@@ -658,15 +752,100 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
     } finally {
       if (releasePendingCall) {
         pendingApiCallSemaphore.release();
+        apiCallReleased();
       }
     }
   }
 
+  /**
+   * Acquires an API call semaphore, recording the time spent waiting in the {@link #apiStats}.
+   */
+  private boolean acquire(Semaphore semaphore, long maxWaitMs) throws InterruptedException {
+    if (semaphore.tryAcquire()) {
+      return true;
+    }
+    long startNanos = System.nanoTime();
+    try {
+      return semaphore.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+    } finally {
+      apiStats.recordSemaphoreWait(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Returns the API calls made by the request.
+   */
+  RequestApiStats getApiStats() {
+    return apiStats;
+  }
+
   /**
    * Notifies the environment that an API call completed.
    */
   void apiCallCompleted() {
     runningApiCallSemaphore.release();
+    apiCallReleased();
+  }
+
+  /**
+   * Notifies the environment that an API call queued up with {@link #aSyncApiCallAdded} was
+   * cancelled before it started.
+   */
+  void aSyncApiCallRemoved() {
+    pendingApiCallSemaphore.release();
+    apiCallReleased();
+  }
+
+  private void apiCallReleased() {
+    if (outstandingApiCalls.decrementAndGet() == 0) {
+      synchronized (apiCallsCompleted) {
+        apiCallsCompleted.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Tracks an async API call until it completes, so that it can be cancelled at the end of the
+   * request.
+   */
+  void addAsyncApiCall(final AsyncApiCall call) {
+    asyncApiCalls.add(call);
+    call.addListener(new Runnable() {
+      @Override
+      public void run() {
+        asyncApiCalls.remove(call);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Cancels the async API calls which are cancelled if unread and whose result was never read.
+   *
+   * @return The number of cancelled calls.
+   */
+  public int cancelUnreadApiCalls() {
+    int cancelled = 0;
+    for (AsyncApiCall call : asyncApiCalls) {
+      if (call.isCancelledIfUnread() && !call.isRead() && call.cancel(true)) {
+        cancelled++;
+      }
+    }
+    return cancelled;
+  }
+
+  /**
+   * Cancels all async API calls which have not completed yet.
+   *
+   * @return The number of cancelled calls.
+   */
+  public int cancelApiCalls() {
+    int cancelled = 0;
+    for (AsyncApiCall call : asyncApiCalls) {
+      if (call.cancel(true)) {
+        cancelled++;
+      }
+    }
+    return cancelled;
   }
 
   /**
@@ -677,21 +856,17 @@ public class VmApiProxyEnvironment implements ApiProxy.Environment {
    *         False otherwise.
    */
   public boolean waitForAllApiCallsToComplete(long maxWaitMs) {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
     try {
-      long startTime = System.currentTimeMillis();
-      if (pendingApiCallSemaphore.tryAcquire(
-          MAX_PENDING_API_CALLS, maxWaitMs, TimeUnit.MILLISECONDS)) {
-        // Release the acquired semaphores in finally {} to guarantee that they are returned.
-        try {
-          long remaining = maxWaitMs - (System.currentTimeMillis() - startTime);
-          if (runningApiCallSemaphore.tryAcquire(
-              MAX_CONCURRENT_API_CALLS, remaining, TimeUnit.MILLISECONDS)) {
-            runningApiCallSemaphore.release(MAX_CONCURRENT_API_CALLS);
-            return true;
+      synchronized (apiCallsCompleted) {
+        while (outstandingApiCalls.get() > 0) {
+          long remainingNanos = deadlineNanos - System.nanoTime();
+          if (remainingNanos <= 0) {
+            return false;
           }
-        } finally {
-          pendingApiCallSemaphore.release(MAX_PENDING_API_CALLS);
+          TimeUnit.NANOSECONDS.timedWait(apiCallsCompleted, remainingNanos);
         }
+        return true;
       }
     } catch (InterruptedException ignored) {
       // The error message is printed by the caller.
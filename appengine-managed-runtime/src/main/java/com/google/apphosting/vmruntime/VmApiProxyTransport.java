@@ -0,0 +1,58 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends API requests created by {@link VmApiProxyDelegate} to the API proxy without holding the
+ * calling thread for the duration of the round trip.
+ *
+ * <p>Implementations must invoke exactly one of the callback methods for every request passed to
+ * {@link #execute}, and must buffer the complete response entity before calling
+ * {@link FutureCallback#completed} so that the delegate can decode it without blocking.
+ *
+ */
+public interface VmApiProxyTransport {
+
+  /**
+   * Starts sending {@code request} to the API proxy.
+   *
+   * @param request The HTTP post request created by {@link VmApiProxyDelegate#createRequest}.
+   * @param timeoutMs The connect, socket and connection lease timeout for this request.
+   * @param callback Notified from an I/O thread once the exchange completes, fails or is
+   *        cancelled.
+   * @return A future that can be used to cancel the exchange.
+   */
+  Future<HttpResponse> execute(
+      HttpPost request, int timeoutMs, FutureCallback<HttpResponse> callback);
+
+  /**
+   * Closes connections that have expired or have been idle for longer than {@code idleTime}.
+   */
+  void closeIdleConnections(long idleTime, TimeUnit unit);
+
+  /**
+   * Releases all connections and I/O threads held by this transport.
+   */
+  void shutdown();
+}
@@ -20,18 +20,19 @@ package com.google.apphosting.vmruntime;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.ApiConfig;
 import com.google.apphosting.api.ApiProxy.LogRecord;
-import com.google.apphosting.api.logservice.LogServicePb.FlushRequest;
-import com.google.apphosting.api.logservice.LogServicePb.UserAppLogGroup;
-import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
 
-import com.google.appengine.repackaged.com.google.common.base.Stopwatch;
+import com.google.appengine.repackaged.com.google.common.base.Ticker;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.ListenableFuture;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.MoreExecutors;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,12 +62,18 @@ import java.util.logging.Logger;
  * <p>This class is also responsible for splitting large log entries
  * into smaller fragments, which is unrelated to the batching
  * mechanism described above but is necessary to prevent the AppServer
- * from truncating individual log entries.
+ * from truncating individual log entries. The fragments are ranges of the
+ * original message, which the buffer encodes along with their continuation
+ * markers, so a long message is neither copied nor concatenated.
  *
- * <p>This class is thread safe and all methods accessing local state are
- * synchronized. Since each request have their own instance of this class the
- * only contention possible is between the original request thread and and any
- * child RequestThreads created by the request through the threading API.
+ * <p>This class is thread safe. Log lines are appended to an {@link AppLogBuffer} without
+ * locking, so the original request thread and any child RequestThreads created by the request
+ * through the threading API do not contend while logging. Only the flushes hold a lock, to send
+ * the buffered lines in order.
+ *
+ * <p>The writer of a request environment also has its aged lines flushed in the background by the
+ * {@link AppLogFlushScheduler}, so that they are neither held back until the next log call nor
+ * left for the end of the request.
  *
  */
 class VmAppLogsWriter {
@@ -85,18 +92,24 @@ class VmAppLogsWriter {
   private final int maxLogMessageLength;
   private final int logCutLength;
   private final int logCutLengthDiv10;
-  private final List<UserAppLogLine> buffer;
+  private final AppLogBuffer buffer;
   private final long maxBytesToFlush;
-  private long currentByteCount;
   private final int maxSecondsBetweenFlush;
+  // The environment the flushes are made for, null to use the environment of the current thread.
+  private final ApiProxy.Environment environment;
+  // Flushes aged lines in the background, null if only the log calls check their age.
+  private final AppLogFlushScheduler scheduler;
+  // True while a background flush is scheduled.
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  // Held while starting or waiting for flushes, so that they are sent in order.
+  private final ReentrantLock flushLock = new ReentrantLock();
+  // The following fields are guarded by flushLock.
   private int flushCount = 0;
   private Future<byte[]> currentFlush;
-  private Stopwatch stopwatch;
 
   /**
    * Construct an AppLogsWriter instance.
    *
-   * @param buffer Buffer holding messages between flushes.
    * @param maxBytesToFlush The maximum number of bytes of log message to
    *   allow in a single flush. The code flushes any cached logs before
    *   reaching this limit. If this is 0, AppLogsWriter will not start
@@ -108,16 +121,31 @@ class VmAppLogsWriter {
    *   cached before flushing. Once a log line has been sitting for more
    *   than the specified time, all currently cached logs are flushed. If
    *   this is 0, no time based flushing occurs.
-   *   N.B. because we only check the time on a log call, it is possible for
-   *   a log to stay cached long after the specified time has been reached.
-   *   Consider this example (assume maxFlushSeconds=60): the app logs a message
-   *   when the handler starts but then does not log another message for 10
-   *   minutes. The initial log will stay cached until the second message
-   *   is logged.
+   *   N.B. because this writer only checks the time on a log call, it is
+   *   possible for a log to stay cached long after the specified time has
+   *   been reached. Consider this example (assume maxFlushSeconds=60): the
+   *   app logs a message when the handler starts but then does not log
+   *   another message for 10 minutes. The initial log will stay cached until
+   *   the second message is logged. Writers created for an environment do
+   *   not have this problem.
+   */
+  public VmAppLogsWriter(long maxBytesToFlush, int maxLogMessageLength, int maxFlushSeconds) {
+    this(null, maxBytesToFlush, maxLogMessageLength, maxFlushSeconds);
+  }
+
+  /**
+   * Construct an AppLogsWriter instance flushing the logs of {@code environment}, in the
+   * background once they have waited for the flush delay of the {@link AppLogFlushScheduler}, and
+   * at the latest after {@code maxFlushSeconds}.
+   *
+   * @param environment The environment the logs are flushed for.
+   * @see #VmAppLogsWriter(long, int, int)
    */
-  public VmAppLogsWriter(List<UserAppLogLine> buffer, long maxBytesToFlush, int maxLogMessageLength,
-      int maxFlushSeconds) {
-    this.buffer = buffer;
+  public VmAppLogsWriter(ApiProxy.Environment environment, long maxBytesToFlush,
+      int maxLogMessageLength, int maxFlushSeconds) {
+    this.environment = environment;
+    this.scheduler = environment != null && maxFlushSeconds > 0
+        ? AppLogFlushScheduler.getInstance() : null;
     this.maxSecondsBetweenFlush = maxFlushSeconds;
 
     if (maxLogMessageLength < MIN_MAX_LOG_MESSAGE_LENGTH) {
@@ -129,7 +157,7 @@ class VmAppLogsWriter {
     } else {
       this.maxLogMessageLength = maxLogMessageLength;
     }
-    logCutLength = maxLogMessageLength - LOG_CONTINUATION_SUFFIX_LENGTH;
+    logCutLength = this.maxLogMessageLength - LOG_CONTINUATION_SUFFIX_LENGTH;
     logCutLengthDiv10 = logCutLength / 10;
 
     // This should never happen, but putting here just in case.
@@ -142,10 +170,7 @@ class VmAppLogsWriter {
     } else {
       this.maxBytesToFlush = maxBytesToFlush;
     }
-
-    // Always have a stopwatch even if we're not doing time based flushing
-    // to keep code a bit simpler
-    stopwatch = Stopwatch.createUnstarted();
+    buffer = new AppLogBuffer(this.maxBytesToFlush);
   }
 
   /**
@@ -154,36 +179,88 @@ class VmAppLogsWriter {
    * asynchronous flush may be started.  If flushes are backed up,
    * this method may block.
    */
-  synchronized void addLogRecordAndMaybeFlush(LogRecord fullRecord) {
-    for (LogRecord record : split(fullRecord)){
-      UserAppLogLine logLine = new UserAppLogLine();
-      logLine.setLevel(record.getLevel().ordinal());
-      logLine.setTimestampUsec(record.getTimestamp());
-      logLine.setMessage(record.getMessage());
-      // Use maxEncodingSize() here because it's faster and accurate
-      // enough for us.  It uses the maximum possible size for varint
-      // values, but the real size of strings.
-      int maxEncodingSize = logLine.maxEncodingSize();
-      if (maxBytesToFlush > 0 &&
-          (currentByteCount + maxEncodingSize) > maxBytesToFlush) {
-        logger.info(currentByteCount + " bytes of app logs pending, starting flush...");
-        waitForCurrentFlushAndStartNewFlush();
-      }
-      if (buffer.size() == 0) {
-        // We only want to flush once a log message has been around for
-        // longer than maxSecondsBetweenFlush. So, we only start the timer
-        // when we add the first message so we don't include time when
-        // the queue is empty.
-        stopwatch.start();
-      }
-      buffer.add(logLine);
-      currentByteCount += maxEncodingSize;
+  void addLogRecordAndMaybeFlush(LogRecord record) {
+    final int level = record.getLevel().ordinal();
+    final long timestamp = record.getTimestamp();
+    String message = record.getMessage();
+    // The buffer estimates the size of a line like UserAppLogLine.maxEncodingSize(), which is
+    // fast and accurate enough for us. It uses the maximum possible size for varint values,
+    // but the real size of strings.
+    if (message.length() <= maxLogMessageLength) {
+      addLine(level, timestamp, message, 0, message.length(), 0);
+    } else {
+      split(message, new FragmentSink() {
+        @Override
+        public void add(String message, int start, int end, int markers) {
+          addLine(level, timestamp, message, start, end, markers);
+        }
+      });
     }
 
-    if (maxSecondsBetweenFlush > 0 &&
-        stopwatch.elapsed(TimeUnit.SECONDS) >= maxSecondsBetweenFlush) {
+    if (maxSecondsBetweenFlush > 0 && buffer.isOlderThan(maxSecondsBetweenFlush)) {
       waitForCurrentFlushAndStartNewFlush();
     }
+    if (scheduler != null && !flushScheduled.get()) {
+      scheduleFlush(scheduler.getFlushDelayNanos(maxFlushNanos()));
+    }
+  }
+
+  private void addLine(int level, long timestamp, String message, int start, int end,
+      int markers) {
+    if (buffer.add(level, timestamp, message, start, end, markers)) {
+      logger.info("App logs reached " + maxBytesToFlush + " bytes, starting flush...");
+      flushSealed();
+    }
+  }
+
+  private long maxFlushNanos() {
+    return TimeUnit.SECONDS.toNanos(maxSecondsBetweenFlush);
+  }
+
+  private void scheduleFlush(long delayNanos) {
+    if (flushScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(this, delayNanos);
+    }
+  }
+
+  /**
+   * Flushes the buffered lines if the oldest has waited for the flush delay, or checks again
+   * later. Called in the background by the {@link AppLogFlushScheduler}, which it must not keep
+   * waiting for a pending flush.
+   */
+  void flushAgedLines() {
+    flushScheduled.set(false);
+    long ageNanos = buffer.getAgeNanos();
+    if (ageNanos < 0) {
+      // Flushed since, the next line schedules a new flush.
+      return;
+    }
+    long delayNanos = scheduler.getFlushDelayNanos(maxFlushNanos());
+    if (ageNanos < delayNanos) {
+      scheduleFlush(delayNanos - ageNanos);
+      return;
+    }
+    // Back off rather than wait while another thread flushes or a flush is pending.
+    if (!flushLock.tryLock()) {
+      scheduleFlush(TimeUnit.MILLISECONDS.toNanos(AppLogFlushScheduler.MIN_FLUSH_DELAY_MS));
+      return;
+    }
+    try {
+      if (currentFlush != null && !currentFlush.isDone()) {
+        scheduleFlush(TimeUnit.MILLISECONDS.toNanos(AppLogFlushScheduler.MIN_FLUSH_DELAY_MS));
+        return;
+      }
+      waitForCurrentFlush();
+      buffer.sealCurrent();
+      // Only the oldest segment is sent, any other sealed segment is left to the thread that
+      // sealed it, which flushes it once it gets the lock.
+      AppLogBuffer.Segment segment = buffer.takeSealed();
+      if (segment != null) {
+        currentFlush = doFlush(segment);
+      }
+    } finally {
+      flushLock.unlock();
+    }
   }
 
   /**
@@ -192,35 +269,61 @@ class VmAppLogsWriter {
    *
    * @return The number of times this AppLogsWriter has initiated a flush.
    */
-  synchronized int waitForCurrentFlushAndStartNewFlush() {
-    waitForCurrentFlush();
-    if (buffer.size() > 0) {
-      currentFlush = doFlush();
+  int waitForCurrentFlushAndStartNewFlush() {
+    flushLock.lock();
+    try {
+      waitForCurrentFlush();
+      buffer.sealCurrent();
+      flushSealed();
+      return flushCount;
+    } finally {
+      flushLock.unlock();
     }
-    return flushCount;
   }
 
   /**
    * Initiates a synchronous flush.  This method will always block
    * until any pending flushes and its own flush completes.
    */
-  synchronized int flushAndWait() {
-    waitForCurrentFlush();
-    if (buffer.size() > 0) {
-      currentFlush = doFlush();
+  int flushAndWait() {
+    flushLock.lock();
+    try {
+      waitForCurrentFlush();
+      buffer.sealCurrent();
+      flushSealed();
       waitForCurrentFlush();
+      return flushCount;
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Flushes the sealed segments of the buffer in order, each after the previous flush completed.
+   */
+  private void flushSealed() {
+    flushLock.lock();
+    try {
+      AppLogBuffer.Segment segment;
+      while ((segment = buffer.takeSealed()) != null) {
+        waitForCurrentFlush();
+        currentFlush = doFlush(segment);
+      }
+    } finally {
+      flushLock.unlock();
     }
-    return flushCount;
   }
 
   /**
    * This method blocks until any outstanding flush is completed. This method
-   * should be called prior to {@link #doFlush()} so that it is impossible for
+   * should be called prior to {@link #doFlush} so that it is impossible for
    * the appserver to process logs out of order.
    */
   private void waitForCurrentFlush() {
     if (currentFlush != null) {
-      logger.info("End of request or previous flush has not yet completed, blocking.");
+      if (!currentFlush.isDone()) {
+        logger.info("End of request or previous flush has not yet completed, blocking.");
+      }
       try {
         // VMApiProxyDelegate adds 1000 ms extra to the http connection deadline.
         currentFlush.get(
@@ -242,22 +345,30 @@ class VmAppLogsWriter {
     }
   }
 
-  private Future<byte[]> doFlush() {
-    UserAppLogGroup group = new UserAppLogGroup();
-    for (UserAppLogLine logLine : buffer) {
-      group.addLogLine(logLine);
-    }
-    buffer.clear();
-    currentByteCount = 0;
+  private Future<byte[]> doFlush(AppLogBuffer.Segment segment) {
     flushCount++;
-    stopwatch.reset();
-    FlushRequest request = new FlushRequest();
-    request.setLogsAsBytes(group.toByteArray());
-    // This assumes that we are always doing a flush from the request
-    // thread. See the TODO above.
+    // The request is encoded once, the delegate sends it without copying.
+    byte[] request = segment.toFlushRequest();
     ApiConfig apiConfig = new ApiConfig();
     apiConfig.setDeadlineInSeconds(LOG_FLUSH_TIMEOUT_MS / 1000.0);
-    return ApiProxy.makeAsyncCall("logservice", "Flush", request.toByteArray(), apiConfig);
+    @SuppressWarnings("unchecked")
+    ApiProxy.Delegate<ApiProxy.Environment> delegate = ApiProxy.getDelegate();
+    if (environment == null || delegate == null) {
+      // This assumes that we are always doing a flush from the request thread.
+      return ApiProxy.makeAsyncCall("logservice", "Flush", request, apiConfig);
+    }
+    final long startNanos = System.nanoTime();
+    final Future<byte[]> flush = delegate.makeAsyncCall(
+        environment, "logservice", "Flush", request, apiConfig);
+    if (scheduler != null && flush instanceof ListenableFuture) {
+      ((ListenableFuture<byte[]>) flush).addListener(new Runnable() {
+        @Override
+        public void run() {
+          scheduler.recordFlushLatency(System.nanoTime() - startNanos);
+        }
+      }, MoreExecutors.directExecutor());
+    }
+    return flush;
   }
 
   /**
@@ -277,54 +388,88 @@ class VmAppLogsWriter {
    * continuation of the previous log mesage.
    */
   
-  List<LogRecord> split(LogRecord aRecord){
+  List<LogRecord> split(final LogRecord aRecord){
     // This method is public so it is testable.
-    LinkedList<LogRecord> theList = new LinkedList<LogRecord>();
+    final List<LogRecord> theList = new ArrayList<LogRecord>();
     String message = aRecord.getMessage();
     if (null == message || message.length() <= maxLogMessageLength){
       theList.add(aRecord);
       return theList;
     }
-    String remaining = message;
-    while (remaining.length() > 0){
-      String nextMessage;
-      if (remaining.length() <= maxLogMessageLength){
-        nextMessage = remaining;
-        remaining = "";
-      } else {
-        int cutLength = logCutLength;
-        boolean cutAtNewline = false;
-        // Try to cut the string at a friendly point
-        int friendlyCutLength = remaining.lastIndexOf('\n', logCutLength);
-        // But only if that yields a message of reasonable length
-        if (friendlyCutLength > logCutLengthDiv10){
-          cutLength = friendlyCutLength;
-          cutAtNewline = true;
+    split(message, new FragmentSink() {
+      @Override
+      public void add(String message, int start, int end, int markers) {
+        StringBuilder fragment = new StringBuilder();
+        if ((markers & AppLogBuffer.CONTINUED_FROM_PREVIOUS) != 0) {
+          fragment.append(LOG_CONTINUATION_PREFIX);
         }
-        nextMessage = remaining.substring(0, cutLength) + LOG_CONTINUATION_SUFFIX;
-        remaining = remaining.substring(cutLength + (cutAtNewline ? 1 : 0));
-        // Only prepend the continuation prefix if doing so would not push
-        // the length of the next message over the limit.
-        if (remaining.length() > maxLogMessageLength ||
-            remaining.length() + LOG_CONTINUATION_PREFIX_LENGTH <= maxLogMessageLength){
-          remaining = LOG_CONTINUATION_PREFIX + remaining;
+        fragment.append(message, start, end);
+        if ((markers & AppLogBuffer.CONTINUED_IN_NEXT) != 0) {
+          fragment.append(LOG_CONTINUATION_SUFFIX);
         }
+        theList.add(new LogRecord(aRecord, fragment.toString()));
       }
-      theList.add(new LogRecord(aRecord, nextMessage));
-    }
+    });
     return theList;
   }
 
   /**
-   * Sets the stopwatch used for time based flushing.
+   * Receives the fragments of a long log message.
+   */
+  private interface FragmentSink {
+    /**
+     * Receives the fragment holding the range {@code [start, end)} of {@code message}, with the
+     * {@link AppLogBuffer} continuation {@code markers} to add around it.
+     */
+    void add(String message, int start, int end, int markers);
+  }
+
+  /**
+   * Splits a message longer than {@link #maxLogMessageLength} into fragments, as described in
+   * {@link #split(LogRecord)}, without copying it.
+   */
+  private void split(String message, FragmentSink sink) {
+    int length = message.length();
+    int start = 0;
+    // The length of the continuation prefix of the next fragment, 0 for the first fragment.
+    int prefixLength = 0;
+    while (prefixLength + length - start > maxLogMessageLength) {
+      int cutLength = logCutLength;
+      boolean cutAtNewline = false;
+      // Try to cut the message at a friendly point, but only if that yields a fragment of
+      // reasonable length. The cut length counts the prefix, which is too short to be cut at.
+      int minFriendlyEnd = start - prefixLength + logCutLengthDiv10;
+      for (int i = start - prefixLength + logCutLength; i > minFriendlyEnd; i--) {
+        if (message.charAt(i) == '\n') {
+          cutLength = i - start + prefixLength;
+          cutAtNewline = true;
+          break;
+        }
+      }
+      int end = start + cutLength - prefixLength;
+      sink.add(message, start, end, (prefixLength > 0 ? AppLogBuffer.CONTINUED_FROM_PREVIOUS : 0)
+          | AppLogBuffer.CONTINUED_IN_NEXT);
+      start = end + (cutAtNewline ? 1 : 0);
+      // Only prepend the continuation prefix if doing so would not push
+      // the length of the next message over the limit.
+      int remaining = length - start;
+      prefixLength = remaining > maxLogMessageLength
+          || remaining + LOG_CONTINUATION_PREFIX_LENGTH <= maxLogMessageLength
+          ? LOG_CONTINUATION_PREFIX_LENGTH : 0;
+    }
+    sink.add(message, start, length, prefixLength > 0 ? AppLogBuffer.CONTINUED_FROM_PREVIOUS : 0);
+  }
+
+  /**
+   * Sets the ticker used for time based flushing.
    *
    * This method is not simply visible for testing, it only exists for testing.
    *
-   * @param stopwatch The {@link Stopwatch} instance to use.
+   * @param ticker The {@link Ticker} instance to use.
    */
   
-  void setStopwatch(Stopwatch stopwatch) {
-    this.stopwatch = stopwatch;
+  void setTicker(Ticker ticker) {
+    buffer.setTicker(ticker);
   }
 
   /**
@@ -41,9 +41,10 @@ public class VmRequestThreadFactory implements ThreadFactory {
 
   private final Environment requestEnvironment;
 
-  // Accesses to createdThreads must be synchronized on "mutex".
+  // Accesses to createdThreads must be synchronized on "mutex". It is only created with the first
+  // thread, as most requests do not create any.
   private final Object mutex;
-  private final List<Thread> createdThreads;
+  private List<Thread> createdThreads = ImmutableList.of();
   private volatile boolean allowNewRequestThreadCreation;
 
   /**
@@ -54,7 +55,6 @@ public class VmRequestThreadFactory implements ThreadFactory {
   public VmRequestThreadFactory(Environment requestEnvironment) {
     this.mutex = new Object();
     this.requestEnvironment = requestEnvironment;
-    this.createdThreads = Lists.newLinkedList();
     this.allowNewRequestThreadCreation = true;
   }
 
@@ -87,6 +87,9 @@ public class VmRequestThreadFactory implements ThreadFactory {
     checkState(
         allowNewRequestThreadCreation, "Cannot create new threads after the request thread stops.");
     synchronized (mutex) {
+      if (createdThreads.isEmpty()) {
+        createdThreads = Lists.newLinkedList();
+      }
       createdThreads.add(thread);
     }
     return thread;
@@ -19,6 +19,7 @@ package com.google.apphosting.vmruntime;
 import com.google.apphosting.logging.JsonFormatter;
 
 import java.io.IOException;
+import java.util.Locale;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -29,6 +30,10 @@ import java.util.logging.Logger;
  * to the json format understood by the cloud logging agent and logs to a file in a volume shared
  * with the cloud logging agent.
  *
+ * <p>If the {@link #ASYNC_PROPERTY} system property is set, an {@link AsyncFileLogHandler} writing
+ * the same files from a background thread is installed instead, so that logging threads do not
+ * wait for the file.
+ *
  */
 public class VmRuntimeFileLogHandler extends FileHandler {
   // This exists for testing purposes only.  If set, the cloud logger may lose logs.
@@ -40,6 +45,15 @@ public class VmRuntimeFileLogHandler extends FileHandler {
       "APP_ENGINE_LOG_CONFIG_PATTERN";
   private static final int LOG_MAX_SIZE = 100 * 1024 * 1024;
   private static final int LOG_MAX_FILES = 3;
+  // Writes the log files from a background thread.
+  static final String ASYNC_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeFileLogHandler.async";
+  // The maximum number of records waiting for the background thread.
+  static final String QUEUE_CAPACITY_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeFileLogHandler.queueCapacity";
+  // What happens to the records logged while the queue is full: block, drop or summarize.
+  static final String OVERFLOW_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeFileLogHandler.overflow";
 
   private VmRuntimeFileLogHandler() throws IOException {
     super(fileLogPattern(), LOG_MAX_SIZE, LOG_MAX_FILES, true);
@@ -66,10 +80,38 @@ public class VmRuntimeFileLogHandler extends FileHandler {
   public static void init() throws IOException {
     Logger rootLogger = Logger.getLogger("");
     for (Handler handler : rootLogger.getHandlers()) {
-      if (handler instanceof VmRuntimeFileLogHandler) {
+      if (handler instanceof VmRuntimeFileLogHandler || handler instanceof AsyncFileLogHandler) {
         return; // Already installed.
       }
     }
-    rootLogger.addHandler(new VmRuntimeFileLogHandler());
+    if (!Boolean.getBoolean(ASYNC_PROPERTY)) {
+      rootLogger.addHandler(new VmRuntimeFileLogHandler());
+      return;
+    }
+    AsyncFileLogHandler handler = new AsyncFileLogHandler(fileLogPattern(), LOG_MAX_SIZE,
+        LOG_MAX_FILES,
+        Integer.getInteger(QUEUE_CAPACITY_PROPERTY, AsyncFileLogHandler.DEFAULT_QUEUE_CAPACITY),
+        overflowPolicy(System.getProperty(OVERFLOW_PROPERTY)));
+    handler.setLevel(Level.FINEST);
+    handler.setFormatter(new JsonFormatter());
+    handler.start();
+    rootLogger.addHandler(handler);
+    ApiCallMetrics.getInstance().setLogHandler(handler);
+  }
+
+  /**
+   * Parses the overflow policy of the async handler, blocking by default so no record is lost.
+   */
+  static AsyncFileLogHandler.OverflowPolicy overflowPolicy(String policy) {
+    if (policy == null || policy.trim().isEmpty()) {
+      return AsyncFileLogHandler.OverflowPolicy.BLOCK;
+    }
+    try {
+      return AsyncFileLogHandler.OverflowPolicy.valueOf(policy.trim().toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      Logger.getLogger(VmRuntimeFileLogHandler.class.getName())
+          .warning("Ignoring invalid log overflow policy: " + policy);
+      return AsyncFileLogHandler.OverflowPolicy.BLOCK;
+    }
   }
 }
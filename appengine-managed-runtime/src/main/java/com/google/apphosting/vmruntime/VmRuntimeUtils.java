@@ -27,6 +27,8 @@ import com.google.apphosting.utils.http.HttpResponse;
 
 import java.util.Map;
 import java.util.regex.Matcher;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 /**
@@ -34,6 +36,8 @@ import java.util.regex.Pattern;
  *
  */
 public class VmRuntimeUtils {
+  private static final Logger logger = Logger.getLogger(VmRuntimeUtils.class.getName());
+
   // This should be kept in sync with HTTPProto::X_GOOGLE_INTERNAL_SKIPADMINCHECK.
   private static final String X_GOOGLE_INTERNAL_SKIPADMINCHECK = "X-Google-Internal-SkipAdminCheck";
   // This should be kept in sync with HTTPProto::X_APPENGINE_QUEUENAME.
@@ -55,6 +59,11 @@ public class VmRuntimeUtils {
 
   public static final String ASYNC_API_WAIT_HEADER = "X-AppEngine-Async-Api-Wait";
 
+  public static final String SERVER_TIMING_HEADER = "Server-Timing";
+  // Set to true to report the API calls of each request in a Server-Timing response header.
+  static final String SERVER_TIMING_PROPERTY =
+      "com.google.apphosting.vmruntime.VmRuntimeUtils.serverTiming";
+
   private static final String MINOR_VERSION_PATTERN = "/home/vmagent/.+_%s-([0-9]+)/root";
 
   /**
@@ -110,6 +119,25 @@ public class VmRuntimeUtils {
     response.setHeader(VmRuntimeUtils.LOG_FLUSH_COUNTER_HEADER, Integer.toString(flushCount));
   }
 
+  /**
+   * Logs a summary of the API calls made by a request at FINE and, if the
+   * {@link #SERVER_TIMING_PROPERTY} system property is set, adds it to the response as a
+   * Server-Timing header, so that a slow request can be attributed to the APIs it called.
+   *
+   * @param response The response to add the Server-Timing header to.
+   * @param requestSpecificEnvironment The environment used by the request.
+   */
+  public static void reportApiCalls(
+      HttpResponse response, VmApiProxyEnvironment requestSpecificEnvironment) {
+    RequestApiStats apiStats = requestSpecificEnvironment.getApiStats();
+    if (apiStats.getCalls() > 0 && logger.isLoggable(Level.FINE)) {
+      logger.fine(apiStats.toLogLine());
+    }
+    if (Boolean.getBoolean(SERVER_TIMING_PROPERTY) && !response.isCommitted()) {
+      response.setHeader(SERVER_TIMING_HEADER, apiStats.toServerTiming());
+    }
+  }
+
   /**
    * Check if the request has the internal "skip admin check" header or comes from a task queue, if
    * so set a request attribute so this information can be used by the security handler.
@@ -175,7 +203,9 @@ public class VmRuntimeUtils {
 
   /**
    * Waits for all Async API calls made with the provided environment to complete and injects the
-   * number of milliseconds it took into a header of the response.
+   * number of milliseconds it took into a header of the response. Calls whose result was never
+   * read are cancelled first if the delegate is configured to do so, and the calls still running
+   * when the wait times out are cancelled so that they release their threads and connections.
    *
    * @param requestEnvironment The request specific API environment.
    * @param response The response to add header to.
@@ -185,8 +215,18 @@ public class VmRuntimeUtils {
   public static boolean waitForAsyncApiCalls(
       VmApiProxyEnvironment requestEnvironment, HttpResponse response) {
     long startTime = System.currentTimeMillis();
+    int cancelled = requestEnvironment.cancelUnreadApiCalls();
+    if (cancelled > 0) {
+      logger.info("Cancelled " + cancelled + " async API calls whose result was never read.");
+    }
     boolean success =
         requestEnvironment.waitForAllApiCallsToComplete(MAX_REQUEST_THREAD_API_CALL_WAIT_MS);
+    if (!success) {
+      cancelled = requestEnvironment.cancelApiCalls();
+      if (cancelled > 0) {
+        logger.warning("Cancelled " + cancelled + " async API calls still running.");
+      }
+    }
     long elapsed = System.currentTimeMillis() - startTime;
     response.setHeader(ASYNC_API_WAIT_HEADER, Long.toString(elapsed));
     return success;
@@ -203,4 +243,15 @@ public class VmRuntimeUtils {
     String port = firstNonNull(System.getenv("API_PORT"), "" + VM_API_PROXY_PORT);
     return server + ":" + port;
   }
+
+  /**
+   * Returns the path of the Unix domain socket of a co-located API server.
+   *
+   * @return The value of the API_SOCKET environment variable, or null if API calls go to the TCP
+   *         address returned by {@link #getApiServerAddress()}.
+   */
+  public static String getApiSocketPath() {
+    String path = System.getenv("API_SOCKET");
+    return path == null || path.isEmpty() ? null : path;
+  }
 }
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.search.SearchException;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Tests for {@link ApiCallCircuitBreaker}.
+ *
+ */
+public class ApiCallCircuitBreakerTest extends TestCase {
+  private static final long OPEN_DURATION_MS = 50;
+
+  private ApiCallCircuitBreaker.Circuit circuit;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    circuit = new ApiCallCircuitBreaker(OPEN_DURATION_MS).getCircuit("search", "Search");
+  }
+
+  private void recordCalls(int count, boolean success, long latencyMs) {
+    for (int i = 0; i < count; i++) {
+      long ticket = circuit.admit();
+      assertTrue(ticket != ApiCallCircuitBreaker.Circuit.REJECTED);
+      circuit.record(ticket, success, latencyMs);
+    }
+  }
+
+  public void testOpensOnceHalfOfTheCallsFail() {
+    recordCalls(ApiCallCircuitBreaker.MIN_CALLS - 1, false, 10);
+    assertFalse(circuit.isOpen());
+    recordCalls(1, false, 10);
+    assertTrue(circuit.isOpen());
+    assertEquals(ApiCallCircuitBreaker.Circuit.REJECTED, circuit.admit());
+  }
+
+  public void testStaysClosedBelowFailureRate() {
+    for (int i = 0; i < ApiCallCircuitBreaker.WINDOW_SIZE; i++) {
+      recordCalls(1, i % 3 != 0, 10);
+    }
+    assertFalse(circuit.isOpen());
+  }
+
+  public void testHalfOpenProbe() throws Exception {
+    recordCalls(ApiCallCircuitBreaker.MIN_CALLS, false, 10);
+    assertTrue(circuit.isOpen());
+    Thread.sleep(OPEN_DURATION_MS + 10);
+
+    // A single probe is let through, a failed probe keeps the circuit open.
+    long probe = circuit.admit();
+    assertTrue(probe != ApiCallCircuitBreaker.Circuit.REJECTED);
+    assertEquals(ApiCallCircuitBreaker.Circuit.REJECTED, circuit.admit());
+    circuit.record(probe, false, 10);
+    assertTrue(circuit.isOpen());
+    assertEquals(ApiCallCircuitBreaker.Circuit.REJECTED, circuit.admit());
+
+    // A successful probe closes it.
+    Thread.sleep(OPEN_DURATION_MS + 10);
+    probe = circuit.admit();
+    circuit.record(probe, true, 10);
+    assertFalse(circuit.isOpen());
+    assertTrue(circuit.admit() != ApiCallCircuitBreaker.Circuit.REJECTED);
+  }
+
+  public void testLateResultsAreNotTheProbe() throws Exception {
+    long lateSuccess = circuit.admit();
+    long lateFailure = circuit.admit();
+    recordCalls(ApiCallCircuitBreaker.MIN_CALLS, false, 10);
+    assertTrue(circuit.isOpen());
+
+    // Calls admitted before the circuit opened neither close it nor keep it open longer.
+    circuit.record(lateSuccess, true, 10);
+    assertTrue(circuit.isOpen());
+    Thread.sleep(OPEN_DURATION_MS + 10);
+    long probe = circuit.admit();
+    circuit.record(lateFailure, false, 10);
+    circuit.record(lateSuccess, true, 10);
+    assertTrue(circuit.isOpen());
+    assertEquals(ApiCallCircuitBreaker.Circuit.REJECTED, circuit.admit());
+
+    // A replaced probe no longer counts either.
+    Thread.sleep(OPEN_DURATION_MS + 10);
+    long newProbe = circuit.admit();
+    assertTrue(newProbe != ApiCallCircuitBreaker.Circuit.REJECTED);
+    circuit.record(probe, true, 10);
+    assertTrue(circuit.isOpen());
+    circuit.record(newProbe, true, 10);
+    assertFalse(circuit.isOpen());
+
+    // Nor do calls admitted in an earlier state once it closed again.
+    for (int i = 0; i < ApiCallCircuitBreaker.MIN_CALLS; i++) {
+      circuit.record(lateFailure, false, 10);
+      circuit.record(probe, false, 10);
+    }
+    assertFalse(circuit.isOpen());
+  }
+
+  public void testAdaptiveTimeout() {
+    assertEquals(60000, circuit.adaptTimeout(60000));
+    recordCalls(ApiCallCircuitBreaker.MIN_CALLS, true, 500);
+    assertEquals(500 * ApiCallCircuitBreaker.TIMEOUT_LATENCY_MULTIPLIER,
+        circuit.adaptTimeout(60000));
+    // Never more than the caller's timeout, never less than the minimum.
+    assertEquals(1500, circuit.adaptTimeout(1500));
+    recordCalls(ApiCallCircuitBreaker.WINDOW_SIZE, true, 1);
+    assertEquals(ApiCallCircuitBreaker.MIN_ADAPTIVE_TIMEOUT_MS, circuit.adaptTimeout(60000));
+  }
+
+  public void testCallerErrorsAreNotBackendFailures() {
+    assertFalse(ApiCallCircuitBreaker.isBackendFailure(
+        new ApiProxy.ApplicationException(1, "detail"), false));
+    assertFalse(ApiCallCircuitBreaker.isBackendFailure(
+        new ApiProxy.ArgumentException("search", "Search"), false));
+    assertTrue(ApiCallCircuitBreaker.isBackendFailure(new SearchException("rpc failure"), false));
+    assertTrue(ApiCallCircuitBreaker.isBackendFailure(
+        new ApiProxy.ApiDeadlineExceededException("search", "Search"), false));
+  }
+
+  public void testClampedDeadlinesAreNotBackendFailures() {
+    assertFalse(ApiCallCircuitBreaker.isBackendFailure(
+        new ApiProxy.ApiDeadlineExceededException("search", "Search"), true));
+    assertTrue(ApiCallCircuitBreaker.isBackendFailure(new SearchException("rpc failure"), true));
+    assertTrue(ApiCallCircuitBreaker.isOutOfRequestTime(
+        new ApiProxy.ApiDeadlineExceededException("search", "Search"), true));
+    assertFalse(ApiCallCircuitBreaker.isOutOfRequestTime(
+        new ApiProxy.ApiDeadlineExceededException("search", "Search"), false));
+    assertFalse(ApiCallCircuitBreaker.isOutOfRequestTime(null, true));
+  }
+
+  public void testSkippedCallsAreNotRecorded() throws Exception {
+    recordCalls(ApiCallCircuitBreaker.MIN_CALLS, true, 500);
+    assertEquals(2000, circuit.adaptTimeout(60000));
+    // Skipped calls are neither successes nor latency samples.
+    for (int i = 0; i < ApiCallCircuitBreaker.WINDOW_SIZE; i++) {
+      circuit.skip(circuit.admit());
+    }
+    assertEquals(2000, circuit.adaptTimeout(60000));
+    recordCalls(ApiCallCircuitBreaker.MIN_CALLS, false, 2000);
+    assertTrue(circuit.isOpen());
+
+    // A skipped probe lets the next call through as the probe.
+    Thread.sleep(OPEN_DURATION_MS + 10);
+    circuit.skip(circuit.admit());
+    assertTrue(circuit.isOpen());
+    long probe = circuit.admit();
+    assertTrue(probe != ApiCallCircuitBreaker.Circuit.REJECTED);
+    circuit.record(probe, true, 10);
+    assertFalse(circuit.isOpen());
+  }
+
+  public void testDelegateFailsFastWhenOpen() throws Exception {
+    HttpClient mockClient = mock(HttpClient.class);
+    when(mockClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenThrow(new IOException("Connection refused"));
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
+
+    System.setProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY, "true");
+    VmApiProxyDelegate delegate;
+    try {
+      delegate = new VmApiProxyDelegate(mockClient);
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY);
+    }
+    for (int i = 0; i < ApiCallCircuitBreaker.MIN_CALLS + 5; i++) {
+      try {
+        delegate.makeSyncCall(environment, "search", "Search", new byte[0]);
+        fail("Expected a SearchException");
+      } catch (SearchException expected) {
+      }
+    }
+    // Once the circuit opened no more calls reach the API server.
+    verify(mockClient, times(ApiCallCircuitBreaker.MIN_CALLS))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    delegate.monitorThread.interrupt();
+  }
+
+  public void testDelegateIgnoresDeadlinesShortenedByTheRequest() throws Exception {
+    HttpClient mockClient = mock(HttpClient.class);
+    when(mockClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenAnswer(new Answer<HttpResponse>() {
+          @Override
+          public HttpResponse answer(InvocationOnMock invocation) {
+            RemoteApiPb.RpcError rpcError = new RemoteApiPb.RpcError();
+            rpcError.setCode(RemoteApiPb.RpcError.ErrorCode.DEADLINE_EXCEEDED.getValue());
+            RemoteApiPb.Response response = new RemoteApiPb.Response();
+            response.setRpcError(rpcError);
+            HttpResponse httpResponse =
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            httpResponse.setEntity(new ByteArrayEntity(response.toByteArray()));
+            return httpResponse;
+          }
+        });
+    // Less time is left to the request than the default timeout of the calls.
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(environment.getRemainingMillis()).thenReturn(5000L);
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
+
+    System.setProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY, "true");
+    VmApiProxyDelegate delegate;
+    try {
+      delegate = new VmApiProxyDelegate(mockClient);
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY);
+    }
+    for (int i = 0; i < ApiCallCircuitBreaker.MIN_CALLS + 5; i++) {
+      try {
+        delegate.makeSyncCall(environment, "search", "Search", new byte[0]);
+        fail("Expected an ApiDeadlineExceededException");
+      } catch (ApiProxy.ApiDeadlineExceededException expected) {
+      }
+    }
+    assertFalse(delegate.circuitBreaker.getCircuit("search", "Search").isOpen());
+    verify(mockClient, times(ApiCallCircuitBreaker.MIN_CALLS + 5))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    delegate.monitorThread.interrupt();
+  }
+
+  public void testDelegateOpensOnAdaptiveTimeouts() throws Exception {
+    HttpClient mockClient = mock(HttpClient.class);
+    when(mockClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenAnswer(new Answer<HttpResponse>() {
+          @Override
+          public HttpResponse answer(InvocationOnMock invocation) {
+            RemoteApiPb.RpcError rpcError = new RemoteApiPb.RpcError();
+            rpcError.setCode(RemoteApiPb.RpcError.ErrorCode.DEADLINE_EXCEEDED.getValue());
+            RemoteApiPb.Response response = new RemoteApiPb.Response();
+            response.setRpcError(rpcError);
+            HttpResponse httpResponse =
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            httpResponse.setEntity(new ByteArrayEntity(response.toByteArray()));
+            return httpResponse;
+          }
+        });
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
+
+    System.setProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY, "true");
+    VmApiProxyDelegate delegate;
+    try {
+      delegate = new VmApiProxyDelegate(mockClient);
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY);
+    }
+    // The backend was fast, so the calls get the minimum adaptive timeout.
+    circuit = delegate.circuitBreaker.getCircuit("search", "Search");
+    recordCalls(ApiCallCircuitBreaker.MIN_CALLS, true, 10);
+    assertEquals(ApiCallCircuitBreaker.MIN_ADAPTIVE_TIMEOUT_MS,
+        circuit.adaptTimeout(VmApiProxyDelegate.DEFAULT_RPC_TIMEOUT_MS));
+
+    // Running out of the adaptive timeout is a backend failure, not a success that would raise it.
+    for (int i = 0; i < ApiCallCircuitBreaker.MIN_CALLS; i++) {
+      try {
+        delegate.makeSyncCall(environment, "search", "Search", new byte[0]);
+        fail("Expected an ApiDeadlineExceededException");
+      } catch (ApiProxy.ApiDeadlineExceededException expected) {
+      }
+    }
+    assertTrue(circuit.isOpen());
+    delegate.monitorThread.interrupt();
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ApiCallDeduplicator}.
+ *
+ */
+public class ApiCallDeduplicatorTest extends TestCase {
+  private ApiCallMetrics metrics;
+  private ApiCallDeduplicator deduplicator;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    metrics = new ApiCallMetrics();
+    deduplicator = ApiCallDeduplicator.fromList("memcache.Get", metrics);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  /**
+   * A loader blocking until released, then returning or throwing.
+   */
+  private static class BlockingLoader implements ApiCallDeduplicator.Loader {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch loading = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final RuntimeException failure;
+
+    BlockingLoader(RuntimeException failure) {
+      this.failure = failure;
+    }
+
+    @Override
+    public byte[] load() {
+      calls.incrementAndGet();
+      loading.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return new byte[] {4, 2};
+    }
+  }
+
+  private Future<byte[]> submit(byte[] requestData, BlockingLoader loader) {
+    return submit(requestData, 5000, loader);
+  }
+
+  private Future<byte[]> submit(final byte[] requestData, final long timeoutMs,
+      final BlockingLoader loader) {
+    return executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return deduplicator.run(new ApiCallKey("memcache", "Get", requestData), timeoutMs, loader);
+      }
+    });
+  }
+
+  public void testFromList() {
+    assertNull(ApiCallDeduplicator.fromList(null, metrics));
+    assertNull(ApiCallDeduplicator.fromList(" ", metrics));
+    ApiCallDeduplicator deduplicator =
+        ApiCallDeduplicator.fromList("memcache.Get, datastore_v3.Get", metrics);
+    assertTrue(deduplicator.isDeduplicated("memcache", "Get"));
+    assertTrue(deduplicator.isDeduplicated("datastore_v3", "Get"));
+    assertFalse(deduplicator.isDeduplicated("datastore_v3", "Put"));
+  }
+
+  public void testIdenticalCallsShareOneCall() throws Exception {
+    BlockingLoader loader = new BlockingLoader(null);
+    Future<byte[]> first = submit(new byte[] {1}, loader);
+    assertTrue(loader.loading.await(5, TimeUnit.SECONDS));
+    Future<byte[]> second = submit(new byte[] {1}, loader);
+    Thread.sleep(50);
+    loader.release.countDown();
+    assertTrue(Arrays.equals(new byte[] {4, 2}, first.get(5, TimeUnit.SECONDS)));
+    assertTrue(Arrays.equals(new byte[] {4, 2}, second.get(5, TimeUnit.SECONDS)));
+    assertEquals(1, loader.calls.get());
+
+    StringWriter out = new StringWriter();
+    metrics.writePrometheusText(out);
+    assertTrue(out.toString().contains(
+        "appengine_api_deduplicated_calls_total{package=\"memcache\",method=\"Get\"} 1\n"));
+  }
+
+  public void testDifferentRequestsAreNotJoined() throws Exception {
+    BlockingLoader loader = new BlockingLoader(null);
+    Future<byte[]> first = submit(new byte[] {1}, loader);
+    assertTrue(loader.loading.await(5, TimeUnit.SECONDS));
+    Future<byte[]> second = submit(new byte[] {2}, loader);
+    // The second call starts its own load while the first one is in flight.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (loader.calls.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, loader.calls.get());
+    loader.release.countDown();
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+  }
+
+  public void testFailureIsSharedWithJoinedCalls() throws Exception {
+    BlockingLoader loader = new BlockingLoader(new ApiProxy.RPCFailedException("memcache", "Get"));
+    Future<byte[]> first = submit(new byte[] {1}, loader);
+    assertTrue(loader.loading.await(5, TimeUnit.SECONDS));
+    Future<byte[]> second = submit(new byte[] {1}, loader);
+    Thread.sleep(50);
+    loader.release.countDown();
+    for (Future<byte[]> call : Arrays.asList(first, second)) {
+      try {
+        call.get(5, TimeUnit.SECONDS);
+        fail("Expected RPCFailedException");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof ApiProxy.RPCFailedException);
+      }
+    }
+    assertEquals(1, loader.calls.get());
+    // The failed call is no longer in flight.
+    try {
+      submit(new byte[] {1}, loader).get(5, TimeUnit.SECONDS);
+      fail("Expected RPCFailedException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ApiProxy.RPCFailedException);
+    }
+    assertEquals(2, loader.calls.get());
+  }
+
+  public void testJoinedCallWaitsForItsOwnTimeout() throws Exception {
+    BlockingLoader loader = new BlockingLoader(null);
+    Future<byte[]> first = submit(new byte[] {1}, loader);
+    assertTrue(loader.loading.await(5, TimeUnit.SECONDS));
+    Future<byte[]> second = submit(new byte[] {1}, 50, loader);
+    try {
+      second.get(5, TimeUnit.SECONDS);
+      fail("Expected ApiDeadlineExceededException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ApiProxy.ApiDeadlineExceededException);
+    }
+    loader.release.countDown();
+    assertTrue(Arrays.equals(new byte[] {4, 2}, first.get(5, TimeUnit.SECONDS)));
+    assertEquals(1, loader.calls.get());
+  }
+
+  public void testDeadlineOfTheFirstCallIsNotShared() throws Exception {
+    BlockingLoader loader =
+        new BlockingLoader(new ApiProxy.ApiDeadlineExceededException("memcache", "Get"));
+    Future<byte[]> first = submit(new byte[] {1}, loader);
+    assertTrue(loader.loading.await(5, TimeUnit.SECONDS));
+    final CountDownLatch retried = new CountDownLatch(1);
+    Future<byte[]> second = executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return deduplicator.run(new ApiCallKey("memcache", "Get", new byte[] {1}), 5000,
+            new ApiCallDeduplicator.Loader() {
+              @Override
+              public byte[] load() {
+                retried.countDown();
+                return new byte[] {7};
+              }
+            });
+      }
+    });
+    Thread.sleep(50);
+    loader.release.countDown();
+    try {
+      first.get(5, TimeUnit.SECONDS);
+      fail("Expected ApiDeadlineExceededException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ApiProxy.ApiDeadlineExceededException);
+    }
+    // The joined call made the call again rather than fail with the deadline of the first one.
+    assertTrue(Arrays.equals(new byte[] {7}, second.get(5, TimeUnit.SECONDS)));
+    assertEquals(0, retried.getCount());
+
+    StringWriter out = new StringWriter();
+    metrics.writePrometheusText(out);
+    assertFalse(out.toString().contains("appengine_api_deduplicated_calls_total{"));
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+import com.google.appengine.repackaged.com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ApiCallHedger} and hedged calls of {@link VmApiProxyDelegate}.
+ *
+ */
+public class ApiCallHedgerTest extends TestCase {
+
+  public void testFromList() {
+    assertNull(ApiCallHedger.fromList(null));
+    assertNull(ApiCallHedger.fromList(" "));
+    ApiCallHedger hedger = ApiCallHedger.fromList("datastore_v3.Get, memcache.Get");
+    assertTrue(hedger.isHedged("datastore_v3", "Get"));
+    assertTrue(hedger.isHedged("memcache", "Get"));
+    assertFalse(hedger.isHedged("datastore_v3", "Put"));
+  }
+
+  public void testHedgeDelayIsP95() {
+    ApiCallHedger hedger = ApiCallHedger.fromList("memcache.Get");
+    assertEquals(-1, hedger.startCall("memcache", "Get"));
+    for (int i = 1; i <= ApiCallHedger.WINDOW_SIZE; i++) {
+      hedger.record("memcache", "Get", TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(95), hedger.startCall("memcache", "Get"));
+  }
+
+  public void testFastMethodsAreNotHedgedRightAway() {
+    ApiCallHedger hedger = ApiCallHedger.fromList("memcache.Get");
+    for (int i = 1; i <= ApiCallHedger.WINDOW_SIZE; i++) {
+      hedger.record("memcache", "Get", TimeUnit.MICROSECONDS.toNanos(i));
+    }
+    assertEquals(ApiCallHedger.MIN_HEDGE_DELAY_NANOS, hedger.startCall("memcache", "Get"));
+  }
+
+  public void testBudget() {
+    ApiCallHedger hedger = ApiCallHedger.fromList("memcache.Get");
+    assertFalse(hedger.tryAcquireHedge());
+    for (int i = 0; i < ApiCallHedger.CALLS_PER_HEDGE; i++) {
+      hedger.startCall("memcache", "Get");
+    }
+    assertTrue(hedger.tryAcquireHedge());
+    assertFalse(hedger.tryAcquireHedge());
+    // The budget is capped.
+    for (int i = 0; i < 1000; i++) {
+      hedger.startCall("memcache", "Get");
+    }
+    for (int i = 0; i < ApiCallHedger.MAX_SAVED_HEDGES; i++) {
+      assertTrue(hedger.tryAcquireHedge());
+    }
+    assertFalse(hedger.tryAcquireHedge());
+  }
+
+  public void testSlowCallIsHedged() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext(VmApiProxyDelegate.REQUEST_ENDPOINT, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        RemoteApiPb.Request request = new RemoteApiPb.Request();
+        request.parseFrom(ByteStreams.toByteArray(exchange.getRequestBody()));
+        if (requests.incrementAndGet() == 1) {
+          // The first attempt hangs well past the hedge delay.
+          try {
+            Thread.sleep(5000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        RemoteApiPb.Response response = new RemoteApiPb.Response();
+        response.setResponseAsBytes(request.getRequestAsBytes());
+        byte[] body = response.toByteArray();
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      }
+    });
+    server.start();
+    System.setProperty(VmApiProxyDelegate.HEDGED_METHODS_PROPERTY, "memcache.Get");
+    VmApiProxyDelegate delegate;
+    try {
+      delegate = new VmApiProxyDelegate();
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.HEDGED_METHODS_PROPERTY);
+    }
+    try {
+      for (int i = 0; i < ApiCallHedger.WINDOW_SIZE; i++) {
+        delegate.hedger.record("memcache", "Get", TimeUnit.MILLISECONDS.toNanos(20));
+        delegate.hedger.startCall("memcache", "Get");
+      }
+      VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+      when(environment.getServer()).thenReturn("localhost:" + server.getAddress().getPort());
+      when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+      when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+      when(environment.getApiStats()).thenReturn(new RequestApiStats());
+
+      long start = System.currentTimeMillis();
+      byte[] result = delegate.makeSyncCall(environment, "memcache", "Get", new byte[] {1, 2});
+      assertTrue(Arrays.equals(new byte[] {1, 2}, result));
+      assertEquals(2, requests.get());
+      assertTrue(System.currentTimeMillis() - start < 4000);
+    } finally {
+      delegate.monitorThread.interrupt();
+      server.stop(0);
+    }
+  }
+}
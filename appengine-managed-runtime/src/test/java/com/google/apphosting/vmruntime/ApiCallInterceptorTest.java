@@ -0,0 +1,164 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.utils.config.AppEngineConfigException;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.Futures;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the {@link ApiCallInterceptor} chain of the {@link VmApiProxyDelegate}.
+ *
+ */
+public class ApiCallInterceptorTest extends TestCase {
+  private VmApiProxyDelegate delegate;
+  private VmApiProxyEnvironment environment;
+  private final List<String> trace = Collections.synchronizedList(new ArrayList<String>());
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    HttpClient httpClient = mock(HttpClient.class);
+    when(httpClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    delegate = new VmApiProxyDelegate(httpClient) {
+      // Echoes the request instead of calling the API server.
+      @Override
+      protected byte[] runSyncCall(VmApiProxyEnvironment environment, String packageName,
+          String methodName, byte[] requestData, int timeoutMs) {
+        trace.add("call " + packageName + "." + methodName);
+        return requestData;
+      }
+    };
+    environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delegate.monitorThread.interrupt();
+    super.tearDown();
+  }
+
+  /**
+   * Records the calls passing through it, and rewrites the method name if requested.
+   */
+  public static class TracingInterceptor implements ApiCallInterceptor {
+    private final String name;
+    private final List<String> trace;
+
+    public TracingInterceptor() {
+      this("default", new ArrayList<String>());
+    }
+
+    TracingInterceptor(String name, List<String> trace) {
+      this.name = name;
+      this.trace = trace;
+    }
+
+    @Override
+    public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName,
+        String methodName, byte[] requestData, Chain next) {
+      trace.add(name + " sync");
+      return next.makeSyncCall(environment, packageName, methodName + "_" + name, requestData);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName,
+        String methodName, byte[] requestData, ApiConfig apiConfig, Chain next) {
+      trace.add(name + " async");
+      return next.makeAsyncCall(
+          environment, packageName, methodName + "_" + name, requestData, apiConfig);
+    }
+  }
+
+  public void testInterceptorsWrapCallsInOrder() throws Exception {
+    delegate.setInterceptors(Arrays.asList(
+        new TracingInterceptor("a", trace), new TracingInterceptor("b", trace)));
+    byte[] request = new byte[] {1, 2};
+    assertTrue(Arrays.equals(request, delegate.makeSyncCall(environment, "pkg", "M", request)));
+    assertTrue(Arrays.equals(request,
+        delegate.makeAsyncCall(environment, "pkg", "M", request, null).get(5, TimeUnit.SECONDS)));
+    assertEquals(Arrays.asList("a sync", "b sync", "call pkg.M_a_b",
+        "a async", "b async", "call pkg.M_a_b"), trace);
+  }
+
+  public void testInterceptorCanAnswerCalls() throws Exception {
+    delegate.setInterceptors(Collections.singletonList(new ApiCallInterceptor() {
+      @Override
+      public byte[] makeSyncCall(VmApiProxyEnvironment environment, String packageName,
+          String methodName, byte[] requestData, Chain next) {
+        return new byte[] {42};
+      }
+
+      @Override
+      public Future<byte[]> makeAsyncCall(VmApiProxyEnvironment environment, String packageName,
+          String methodName, byte[] requestData, ApiConfig apiConfig, Chain next) {
+        return Futures.immediateFuture(new byte[] {43});
+      }
+    }));
+    assertTrue(Arrays.equals(new byte[] {42},
+        delegate.makeSyncCall(environment, "pkg", "M", new byte[0])));
+    assertTrue(Arrays.equals(new byte[] {43},
+        delegate.makeAsyncCall(environment, "pkg", "M", new byte[0], null).get()));
+    assertTrue(trace.isEmpty());
+
+    // Removing the interceptors restores the plain calls.
+    delegate.setInterceptors(Collections.<ApiCallInterceptor>emptyList());
+    delegate.makeSyncCall(environment, "pkg", "M", new byte[0]);
+    assertEquals(Arrays.asList("call pkg.M"), trace);
+  }
+
+  public void testCreateInterceptors() {
+    ClassLoader classLoader = getClass().getClassLoader();
+    assertTrue(VmApiProxyDelegate.createInterceptors(null, classLoader).isEmpty());
+    List<ApiCallInterceptor> interceptors = VmApiProxyDelegate.createInterceptors(
+        TracingInterceptor.class.getName() + ", " + TracingInterceptor.class.getName(),
+        classLoader);
+    assertEquals(2, interceptors.size());
+    assertTrue(interceptors.get(0) instanceof TracingInterceptor);
+    try {
+      VmApiProxyDelegate.createInterceptors(String.class.getName(), classLoader);
+      fail("Expected AppEngineConfigException");
+    } catch (AppEngineConfigException e) {
+      // Expected.
+    }
+    try {
+      VmApiProxyDelegate.createInterceptors("com.example.MissingInterceptor", classLoader);
+      fail("Expected AppEngineConfigException");
+    } catch (AppEngineConfigException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.mockito.Mockito;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ApiCallLane} and the log flush lane of the {@link VmApiProxyDelegate}.
+ *
+ */
+public class ApiCallLaneTest extends TestCase {
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private HttpClient createMockHttpClient() {
+    HttpClient httpClient = mock(HttpClient.class);
+    when(httpClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    return httpClient;
+  }
+
+  private Callable<byte[]> createBlockingCall() {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        release.await();
+        return new byte[] {1};
+      }
+    };
+  }
+
+  public void testCallsBeyondCapacityAreRejected() throws Exception {
+    ApiCallMetrics metrics = new ApiCallMetrics();
+    ApiCallLane lane = new ApiCallLane("TestLane", createMockHttpClient(), 1, 1, metrics);
+    Future<byte[]> running = lane.submit("logservice", "Flush", createBlockingCall());
+    Future<byte[]> queued = lane.submit("logservice", "Flush", createBlockingCall());
+    Future<byte[]> rejected = lane.submit("logservice", "Flush", createBlockingCall());
+    try {
+      rejected.get();
+      fail("Expected RejectedExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    release.countDown();
+    assertTrue(Arrays.equals(new byte[] {1}, running.get(5, TimeUnit.SECONDS)));
+    assertTrue(Arrays.equals(new byte[] {1}, queued.get(5, TimeUnit.SECONDS)));
+
+    StringWriter out = new StringWriter();
+    metrics.writePrometheusText(out);
+    assertTrue(out.toString().contains(
+        "appengine_api_queue_wait_seconds_count{package=\"logservice\",method=\"Flush\"} 2\n"));
+  }
+
+  public void testLogFlushesDoNotWaitForOtherCalls() throws Exception {
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(createMockHttpClient()) {
+      // Blocks the calls other than log flushes until released.
+      @Override
+      protected byte[] runSyncCall(VmApiProxyEnvironment environment, String packageName,
+          String methodName, byte[] requestData, int timeoutMs) {
+        if (!"logservice".equals(packageName)) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return requestData;
+      }
+    };
+    VmApiProxyEnvironment userEnvironment = mock(VmApiProxyEnvironment.class);
+    when(userEnvironment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(userEnvironment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+    when(userEnvironment.getApiStats()).thenReturn(new RequestApiStats());
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+    RequestApiStats apiStats = new RequestApiStats();
+    when(environment.getApiStats()).thenReturn(apiStats);
+    try {
+      assertNotNull(delegate.logFlushLane);
+      Future<byte[]> userCall =
+          delegate.makeAsyncCall(userEnvironment, "datastore_v3", "Get", new byte[] {1}, null);
+      Future<byte[]> flush =
+          delegate.makeAsyncCall(environment, "logservice", "Flush", new byte[] {2}, null);
+      assertTrue(Arrays.equals(new byte[] {2}, flush.get(5, TimeUnit.SECONDS)));
+      assertFalse(userCall.isDone());
+      // Log flushes do not count against the API calls of the request.
+      verify(environment, never()).aSyncApiCallAdded(Mockito.anyLong());
+      verify(environment, never()).apiCallStarted(Mockito.anyLong(), Mockito.anyBoolean());
+      delegate.makeSyncCall(environment, "logservice", "Flush", new byte[] {3});
+      assertEquals(0, apiStats.getCalls());
+    } finally {
+      release.countDown();
+      delegate.monitorThread.interrupt();
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ApiCallLimiter}.
+ *
+ */
+public class ApiCallLimiterTest extends TestCase {
+  private final BlockingQueue<String> admitted = new LinkedBlockingQueue<>();
+
+  private static VmApiProxyEnvironment createEnvironment(long remainingMillis) {
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getRemainingMillis()).thenReturn(remainingMillis);
+    return environment;
+  }
+
+  /**
+   * Starts a thread waiting for the limiter, once it is queued.
+   */
+  private void startWaiting(final ApiCallLimiter limiter, final VmApiProxyEnvironment environment,
+      final String name) throws InterruptedException {
+    int queued = limiter.getQueued();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        limiter.acquire(environment, 5000);
+        admitted.add(name);
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    while (limiter.getQueued() == queued) {
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * Releases the limiter until all waiting calls were admitted, one at a time.
+   *
+   * @return The names of the admitted calls in admission order.
+   */
+  private List<String> admitAll(ApiCallLimiter limiter, int count) throws InterruptedException {
+    List<String> order = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      limiter.release("pkg", "M", System.nanoTime(), false);
+      order.add(admitted.poll(5, TimeUnit.SECONDS));
+    }
+    return order;
+  }
+
+  public void testParse() {
+    assertNull(ApiCallLimiter.parse(null, 100));
+    assertNull(ApiCallLimiter.parse("", 100));
+    assertNull(ApiCallLimiter.parse("lifo", 100));
+    assertNotNull(ApiCallLimiter.parse("fair", 100));
+    assertEquals(ApiCallLimiter.INITIAL_LIMIT, ApiCallLimiter.parse("Deadline", 100).getLimit());
+    assertEquals(5, ApiCallLimiter.parse("fair", 5).getLimit());
+  }
+
+  public void testRequestsTakeTurns() throws Exception {
+    ApiCallLimiter limiter = new ApiCallLimiter(1, ApiCallLimiter.Ordering.FAIR);
+    VmApiProxyEnvironment first = createEnvironment(0);
+    VmApiProxyEnvironment second = createEnvironment(0);
+    limiter.acquire(first, 0);
+    startWaiting(limiter, first, "first 1");
+    startWaiting(limiter, first, "first 2");
+    startWaiting(limiter, first, "first 3");
+    startWaiting(limiter, second, "second 1");
+    assertEquals(1, limiter.getInFlight());
+    assertEquals(Arrays.asList("first 1", "second 1", "first 2", "first 3"),
+        admitAll(limiter, 4));
+    assertEquals(0, limiter.getQueued());
+  }
+
+  public void testEarliestDeadlineFirst() throws Exception {
+    ApiCallLimiter limiter = new ApiCallLimiter(1, ApiCallLimiter.Ordering.DEADLINE);
+    limiter.acquire(createEnvironment(0), 0);
+    startWaiting(limiter, createEnvironment(50000), "late");
+    startWaiting(limiter, createEnvironment(10000), "early");
+    startWaiting(limiter, createEnvironment(30000), "middle");
+    startWaiting(limiter, createEnvironment(Long.MAX_VALUE), "no deadline");
+    assertEquals(Arrays.asList("early", "middle", "late", "no deadline"), admitAll(limiter, 4));
+  }
+
+  public void testTimeout() {
+    ApiCallLimiter limiter = new ApiCallLimiter(1, ApiCallLimiter.Ordering.FAIR);
+    limiter.acquire(createEnvironment(0), 0);
+    try {
+      limiter.acquire(createEnvironment(0), 10);
+      fail("Expected ApiProxyException");
+    } catch (ApiProxyException e) {
+      // Expected.
+    }
+    assertEquals(0, limiter.getQueued());
+    assertEquals(1, limiter.getTimeouts());
+  }
+
+  public void testInterruptIsPreserved() {
+    ApiCallLimiter limiter = new ApiCallLimiter(1, ApiCallLimiter.Ordering.FAIR);
+    limiter.acquire(createEnvironment(0), 0);
+    Thread.currentThread().interrupt();
+    try {
+      limiter.acquire(createEnvironment(0), 5000);
+      fail("Expected ApiProxyException");
+    } catch (ApiProxyException e) {
+      // Expected.
+    }
+    assertTrue(Thread.interrupted());
+    assertEquals(0, limiter.getQueued());
+    assertEquals(1, limiter.getInFlight());
+  }
+
+  public void testLimitAdaptsToOverload() {
+    ApiCallLimiter limiter = new ApiCallLimiter(100, ApiCallLimiter.Ordering.FAIR);
+    VmApiProxyEnvironment environment = createEnvironment(0);
+    long earlierStart = limiter.acquire(environment, 0);
+    long start = limiter.acquire(environment, 0);
+    limiter.release("pkg", "M", start, true);
+    assertEquals(18, limiter.getLimit());
+    // A call started before the decrease does not decrease the limit again.
+    limiter.release("pkg", "M", earlierStart, true);
+    assertEquals(18, limiter.getLimit());
+
+    // Fast calls using the whole limit grow it again.
+    for (int round = 0; round < 150; round++) {
+      int limit = limiter.getLimit();
+      long[] starts = new long[limit];
+      for (int i = 0; i < limit; i++) {
+        starts[i] = limiter.acquire(environment, 0);
+      }
+      for (int i = 0; i < limit; i++) {
+        limiter.release("pkg", "M", starts[i], false);
+      }
+    }
+    assertTrue(limiter.getLimit() > ApiCallLimiter.INITIAL_LIMIT);
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  public void testUnmeasuredReleaseKeepsTheLimit() {
+    ApiCallLimiter limiter = new ApiCallLimiter(100, ApiCallLimiter.Ordering.FAIR);
+    VmApiProxyEnvironment environment = createEnvironment(0);
+    limiter.acquire(environment, 0);
+    limiter.releaseUnmeasured();
+    assertEquals(ApiCallLimiter.INITIAL_LIMIT, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  public void testMetrics() throws Exception {
+    ApiCallMetrics metrics = new ApiCallMetrics();
+    ApiCallLimiter limiter = new ApiCallLimiter(100, ApiCallLimiter.Ordering.FAIR);
+    metrics.setLimiter(limiter);
+    limiter.acquire(createEnvironment(0), 0);
+    StringWriter out = new StringWriter();
+    metrics.writePrometheusText(out);
+    assertTrue(out.toString().contains("appengine_api_concurrency_limit 20\n"));
+    assertTrue(out.toString().contains("appengine_api_calls_in_flight 1\n"));
+    assertTrue(out.toString().contains("appengine_api_calls_queued 0\n"));
+  }
+
+  public void testDelegateOnlyIgnoresDeadlinesClampedToTheRequest() throws Exception {
+    HttpClient mockClient = mock(HttpClient.class);
+    when(mockClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenAnswer(new Answer<HttpResponse>() {
+          @Override
+          public HttpResponse answer(InvocationOnMock invocation) {
+            RemoteApiPb.RpcError rpcError = new RemoteApiPb.RpcError();
+            rpcError.setCode(RemoteApiPb.RpcError.ErrorCode.DEADLINE_EXCEEDED.getValue());
+            RemoteApiPb.Response response = new RemoteApiPb.Response();
+            response.setRpcError(rpcError);
+            HttpResponse httpResponse =
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            httpResponse.setEntity(new ByteArrayEntity(response.toByteArray()));
+            return httpResponse;
+          }
+        });
+    VmApiProxyEnvironment environment = createEnvironment(5000);
+    when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
+
+    System.setProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY, "true");
+    System.setProperty(VmApiProxyDelegate.CONCURRENCY_LIMITER_PROPERTY, "fair");
+    VmApiProxyDelegate delegate;
+    try {
+      delegate = new VmApiProxyDelegate(mockClient);
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.CIRCUIT_BREAKER_PROPERTY);
+      System.clearProperty(VmApiProxyDelegate.CONCURRENCY_LIMITER_PROPERTY);
+    }
+    // Running out of the time left to the request says nothing about the load.
+    try {
+      delegate.makeSyncCall(environment, "search", "Search", new byte[0]);
+      fail("Expected an ApiDeadlineExceededException");
+    } catch (ApiProxy.ApiDeadlineExceededException expected) {
+    }
+    assertEquals(ApiCallLimiter.INITIAL_LIMIT, delegate.limiter.getLimit());
+
+    // Running out of the adaptive timeout of the circuit breaker is a sign of overload.
+    ApiCallCircuitBreaker.Circuit circuit =
+        delegate.circuitBreaker.getCircuit("search", "Search");
+    for (int i = 0; i < ApiCallCircuitBreaker.MIN_CALLS; i++) {
+      circuit.record(circuit.admit(), true, 10);
+    }
+    when(environment.getRemainingMillis()).thenReturn(1000000L);
+    try {
+      delegate.makeSyncCall(environment, "search", "Search", new byte[0]);
+      fail("Expected an ApiDeadlineExceededException");
+    } catch (ApiProxy.ApiDeadlineExceededException expected) {
+    }
+    assertTrue(delegate.limiter.getLimit() < ApiCallLimiter.INITIAL_LIMIT);
+    assertEquals(0, delegate.limiter.getInFlight());
+    delegate.monitorThread.interrupt();
+  }
+}
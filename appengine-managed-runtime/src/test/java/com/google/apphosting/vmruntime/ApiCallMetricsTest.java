@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ApiCallMetrics}.
+ *
+ */
+public class ApiCallMetricsTest extends TestCase {
+
+  private static List<String> export(ApiCallMetrics metrics) throws Exception {
+    StringWriter out = new StringWriter();
+    metrics.writePrometheusText(out);
+    return Arrays.asList(out.toString().split("\n"));
+  }
+
+  public void testHistogram() throws Exception {
+    ApiCallMetrics metrics = new ApiCallMetrics();
+    metrics.record("memcache", "Get", 10, 100, null, TimeUnit.MICROSECONDS.toNanos(1500));
+    metrics.record("memcache", "Get", 10, 200, null, TimeUnit.MILLISECONDS.toNanos(30));
+    metrics.record("memcache", "Get", 10, 0, null, TimeUnit.SECONDS.toNanos(120));
+
+    List<String> lines = export(metrics);
+    String labels = "package=\"memcache\",method=\"Get\"";
+    assertTrue(lines.contains("# TYPE appengine_api_call_latency_seconds histogram"));
+    assertTrue(lines.contains("appengine_api_call_latency_seconds_bucket{" + labels
+        + ",le=\"0.001\"} 0"));
+    assertTrue(lines.contains("appengine_api_call_latency_seconds_bucket{" + labels
+        + ",le=\"0.002\"} 1"));
+    assertTrue(lines.contains("appengine_api_call_latency_seconds_bucket{" + labels
+        + ",le=\"0.05\"} 2"));
+    assertTrue(lines.contains("appengine_api_call_latency_seconds_bucket{" + labels
+        + ",le=\"60.0\"} 2"));
+    assertTrue(lines.contains("appengine_api_call_latency_seconds_bucket{" + labels
+        + ",le=\"+Inf\"} 3"));
+    assertTrue(lines.contains("appengine_api_call_latency_seconds_sum{" + labels + "} 120.0315"));
+    assertTrue(lines.contains("appengine_api_call_latency_seconds_count{" + labels + "} 3"));
+    assertTrue(lines.contains("appengine_api_request_bytes_total{" + labels + "} 30"));
+    assertTrue(lines.contains("appengine_api_response_bytes_total{" + labels + "} 300"));
+  }
+
+  public void testErrors() throws Exception {
+    ApiCallMetrics metrics = new ApiCallMetrics();
+    metrics.record("datastore_v3", "Put", 5, 0,
+        new ApiProxy.ApplicationException(5, "timeout"), 1000);
+    metrics.record("datastore_v3", "Put", 5, 0,
+        new ApiProxy.ApplicationException(5, "timeout"), 1000);
+    metrics.record("datastore_v3", "Put", 5, 0,
+        new ApiProxy.ApiDeadlineExceededException("datastore_v3", "Put"), 1000);
+
+    List<String> lines = export(metrics);
+    String labels = "package=\"datastore_v3\",method=\"Put\"";
+    assertTrue(lines.contains("appengine_api_call_errors_total{" + labels
+        + ",code=\"APPLICATION_ERROR_5\"} 2"));
+    assertTrue(lines.contains("appengine_api_call_errors_total{" + labels
+        + ",code=\"ApiDeadlineExceededException\"} 1"));
+    assertTrue(lines.contains("appengine_api_request_bytes_total{" + labels + "} 15"));
+    assertTrue(lines.contains("appengine_api_response_bytes_total{" + labels + "} 0"));
+  }
+}
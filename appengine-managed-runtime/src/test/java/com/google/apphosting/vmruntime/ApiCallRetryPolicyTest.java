@@ -0,0 +1,254 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.search.SearchException;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link ApiCallRetryPolicy} and retries of {@link VmApiProxyDelegate}.
+ *
+ */
+public class ApiCallRetryPolicyTest extends TestCase {
+
+  public void testParse() {
+    assertNull(ApiCallRetryPolicy.parse(""));
+    assertNull(ApiCallRetryPolicy.parse(" , "));
+    ApiCallRetryPolicy policy = ApiCallRetryPolicy.parse("memcache=2, datastore_v3.Get=5, search");
+    assertEquals(2, policy.getMaxAttempts("memcache", "Set", false));
+    assertEquals(5, policy.getMaxAttempts("datastore_v3", "Get", false));
+    assertEquals(ApiCallRetryPolicy.DEFAULT_MAX_ATTEMPTS,
+        policy.getMaxAttempts("search", "Search", false));
+    assertEquals(1, policy.getMaxAttempts("datastore_v3", "Put", false));
+    assertEquals(ApiCallRetryPolicy.DEFAULT_MAX_ATTEMPTS,
+        policy.getMaxAttempts("datastore_v3", "Put", true));
+  }
+
+  public void testMethodEntryOverridesPackageEntry() {
+    ApiCallRetryPolicy policy = ApiCallRetryPolicy.parse("memcache=4,memcache.Increment=1");
+    assertEquals(4, policy.getMaxAttempts("memcache", "Get", false));
+    assertEquals(1, policy.getMaxAttempts("memcache", "Increment", true));
+  }
+
+  public void testDefaultPolicyOnlyRetriesReads() {
+    ApiCallRetryPolicy policy = ApiCallRetryPolicy.parse(ApiCallRetryPolicy.DEFAULT_POLICY);
+    assertEquals(3, policy.getMaxAttempts("datastore_v3", "Get", false));
+    assertEquals(3, policy.getMaxAttempts("memcache", "Get", false));
+    assertEquals(1, policy.getMaxAttempts("memcache", "Set", false));
+  }
+
+  public void testBackoffIsJitteredAndBounded() {
+    ApiCallRetryPolicy policy = ApiCallRetryPolicy.parse(ApiCallRetryPolicy.DEFAULT_POLICY);
+    for (int i = 0; i < 100; i++) {
+      long first = policy.getBackoffMs(1);
+      assertTrue(first >= ApiCallRetryPolicy.INITIAL_BACKOFF_MS / 2);
+      assertTrue(first <= ApiCallRetryPolicy.INITIAL_BACKOFF_MS);
+      long second = policy.getBackoffMs(2);
+      assertTrue(second >= ApiCallRetryPolicy.INITIAL_BACKOFF_MS);
+      assertTrue(second <= ApiCallRetryPolicy.INITIAL_BACKOFF_MS * 2);
+      long last = policy.getBackoffMs(100);
+      assertTrue(last >= ApiCallRetryPolicy.MAX_BACKOFF_MS / 2);
+      assertTrue(last <= ApiCallRetryPolicy.MAX_BACKOFF_MS);
+    }
+  }
+
+  private static HttpResponse createResponse(byte[] responseData) {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    response.setResponseAsBytes(responseData);
+    HttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+    httpResponse.setEntity(new ByteArrayEntity(response.toByteArray()));
+    return httpResponse;
+  }
+
+  private static VmApiProxyEnvironment createEnvironment(long remainingMillis,
+      Map<String, Object> attributes) {
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getRemainingMillis()).thenReturn(remainingMillis);
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
+    when(environment.getAttributes()).thenReturn(attributes);
+    return environment;
+  }
+
+  private static HttpClient createFailingClient(byte[] responseData) throws Exception {
+    HttpClient mockClient = mock(HttpClient.class);
+    when(mockClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenThrow(new IOException("Connection reset"))
+        .thenReturn(createResponse(responseData));
+    return mockClient;
+  }
+
+  public void testTransientFailureIsRetried() throws Exception {
+    byte[] responseData = new byte[] {1, 2, 3};
+    HttpClient mockClient = createFailingClient(responseData);
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    VmApiProxyEnvironment environment =
+        createEnvironment(60000, new HashMap<String, Object>());
+
+    byte[] result = delegate.makeSyncCall(environment, "datastore_v3", "Get", new byte[0]);
+    assertTrue(Arrays.equals(responseData, result));
+    verify(mockClient, times(2))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    delegate.monitorThread.interrupt();
+  }
+
+  public void testNoRetryPastTheRequestDeadline() throws Exception {
+    HttpClient mockClient = createFailingClient(new byte[0]);
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    VmApiProxyEnvironment environment = createEnvironment(
+        VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS + 10, new HashMap<String, Object>());
+
+    try {
+      delegate.makeSyncCall(environment, "datastore_v3", "Get", new byte[0]);
+      fail("Expected a DatastoreFailureException");
+    } catch (DatastoreFailureException expected) {
+    }
+    verify(mockClient, times(1))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    delegate.monitorThread.interrupt();
+  }
+
+  public void testUnlistedMethodIsNotRetried() throws Exception {
+    HttpClient mockClient = createFailingClient(new byte[0]);
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    VmApiProxyEnvironment environment =
+        createEnvironment(60000, new HashMap<String, Object>());
+
+    try {
+      delegate.makeSyncCall(environment, "search", "IndexDocument", new byte[0]);
+      fail("Expected a SearchException");
+    } catch (SearchException expected) {
+    }
+    verify(mockClient, times(1))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    delegate.monitorThread.interrupt();
+  }
+
+  public void testCallMarkedIdempotentIsRetried() throws Exception {
+    HttpClient mockClient = createFailingClient(new byte[0]);
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    VmApiProxyEnvironment environment =
+        createEnvironment(60000, new HashMap<String, Object>());
+
+    assertFalse(VmApiProxyDelegate.setIdempotentCalls(true));
+    try {
+      delegate.makeSyncCall(environment, "search", "IndexDocument", new byte[0]);
+    } finally {
+      assertTrue(VmApiProxyDelegate.setIdempotentCalls(false));
+    }
+    verify(mockClient, times(2))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    delegate.monitorThread.interrupt();
+  }
+
+  public void testCallsOfOtherThreadsAreNotMarkedIdempotent() throws Exception {
+    HttpClient mockClient = createFailingClient(new byte[0]);
+    final VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    final VmApiProxyEnvironment environment =
+        createEnvironment(60000, new HashMap<String, Object>());
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    VmApiProxyDelegate.setIdempotentCalls(true);
+    try {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            delegate.makeSyncCall(environment, "search", "IndexDocument", new byte[0]);
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      thread.start();
+      thread.join();
+    } finally {
+      VmApiProxyDelegate.setIdempotentCalls(false);
+    }
+    assertTrue(failure.get() instanceof SearchException);
+    verify(mockClient, times(1))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    delegate.monitorThread.interrupt();
+  }
+
+  public void testAsyncCallMarkedIdempotentIsRetriedWithTransport() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    VmApiProxyTransport transport = mock(VmApiProxyTransport.class);
+    when(transport.execute(Mockito.any(HttpPost.class), Mockito.anyInt(),
+        Mockito.<FutureCallback<HttpResponse>>any())).thenAnswer(new Answer<Future<HttpResponse>>() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public Future<HttpResponse> answer(InvocationOnMock invocation) {
+            FutureCallback<HttpResponse> callback =
+                (FutureCallback<HttpResponse>) invocation.getArguments()[2];
+            if (attempts.incrementAndGet() == 1) {
+              callback.failed(new IOException("Connection reset"));
+            } else {
+              callback.completed(createResponse(new byte[] {1}));
+            }
+            return mock(Future.class);
+          }
+        });
+    HttpClient mockClient = mock(HttpClient.class);
+    when(mockClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient, transport);
+    VmApiProxyEnvironment environment =
+        createEnvironment(60000, new HashMap<String, Object>());
+
+    Future<byte[]> call;
+    VmApiProxyDelegate.setIdempotentCalls(true);
+    try {
+      call = delegate.makeAsyncCall(environment, "datastore_v3", "Put", new byte[0], null);
+    } finally {
+      VmApiProxyDelegate.setIdempotentCalls(false);
+    }
+    assertTrue(Arrays.equals(new byte[] {1}, call.get()));
+    assertEquals(2, attempts.get());
+    delegate.shutdown();
+  }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.appengine.api.appidentity.AppIdentityServicePb;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ApiResponseCache}.
+ *
+ */
+public class ApiResponseCacheTest extends TestCase {
+  private ApiCallMetrics metrics;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    metrics = new ApiCallMetrics();
+  }
+
+  /**
+   * A loader counting its calls and returning a fixed response.
+   */
+  private static class CountingLoader implements ApiCallDeduplicator.Loader {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final byte[] response;
+
+    CountingLoader(byte[] response) {
+      this.response = response;
+    }
+
+    @Override
+    public byte[] load() {
+      calls.incrementAndGet();
+      return response.clone();
+    }
+  }
+
+  private static byte[] get(ApiResponseCache cache, String packageName, String methodName,
+      byte[] requestData, ApiCallDeduplicator.Loader loader) {
+    byte[] response = cache.getIfPresent(packageName, methodName, requestData);
+    return response != null
+        ? response : cache.load(packageName, methodName, requestData, 5000, loader);
+  }
+
+  public void testParse() {
+    assertNull(ApiResponseCache.parse("", metrics));
+    assertNull(ApiResponseCache.parse("modules.GetVersions", metrics));
+    ApiResponseCache cache =
+        ApiResponseCache.parse(ApiResponseCache.DEFAULT_CACHED_METHODS, metrics);
+    assertTrue(cache.isCached("app_identity_service", "GetServiceAccountName"));
+    assertTrue(cache.isCached("modules", "GetVersions"));
+    assertFalse(cache.isCached("datastore_v3", "Get"));
+  }
+
+  public void testHitAndMiss() throws Exception {
+    ApiResponseCache cache = ApiResponseCache.parse("modules.GetVersions=60", metrics);
+    CountingLoader loader = new CountingLoader(new byte[] {1, 2});
+    assertTrue(Arrays.equals(new byte[] {1, 2},
+        get(cache, "modules", "GetVersions", new byte[] {7}, loader)));
+    assertTrue(Arrays.equals(new byte[] {1, 2},
+        get(cache, "modules", "GetVersions", new byte[] {7}, loader)));
+    assertEquals(1, loader.calls.get());
+    // Another request is another key.
+    get(cache, "modules", "GetVersions", new byte[] {8}, loader);
+    assertEquals(2, loader.calls.get());
+
+    StringWriter out = new StringWriter();
+    metrics.writePrometheusText(out);
+    String labels = "package=\"modules\",method=\"GetVersions\"";
+    assertTrue(out.toString().contains("appengine_api_cache_hits_total{" + labels + "} 1\n"));
+    assertTrue(out.toString().contains("appengine_api_cache_misses_total{" + labels + "} 2\n"));
+  }
+
+  public void testCallersCannotModifyCachedResponses() {
+    ApiResponseCache cache = ApiResponseCache.parse("modules.GetVersions=60", metrics);
+    CountingLoader loader = new CountingLoader(new byte[] {1, 2});
+    get(cache, "modules", "GetVersions", new byte[0], loader)[0] = 9;
+    get(cache, "modules", "GetVersions", new byte[0], loader)[0] = 9;
+    assertTrue(Arrays.equals(new byte[] {1, 2},
+        get(cache, "modules", "GetVersions", new byte[0], loader)));
+  }
+
+  public void testZeroTtlIsNotCached() {
+    ApiResponseCache cache = ApiResponseCache.parse("modules.GetVersions=0", metrics);
+    CountingLoader loader = new CountingLoader(new byte[] {1});
+    get(cache, "modules", "GetVersions", new byte[0], loader);
+    get(cache, "modules", "GetVersions", new byte[0], loader);
+    assertEquals(2, loader.calls.get());
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() {
+    ApiResponseCache cache = ApiResponseCache.parse("modules.GetVersions=60", metrics);
+    CountingLoader loader = new CountingLoader(new byte[] {1});
+    for (int i = 0; i <= ApiResponseCache.MAX_ENTRIES; i++) {
+      get(cache, "modules", "GetVersions", new byte[] {(byte) i, (byte) (i >> 8)}, loader);
+      // Keep the first entry recently used.
+      get(cache, "modules", "GetVersions", new byte[] {0, 0}, loader);
+    }
+    assertEquals(ApiResponseCache.MAX_ENTRIES + 1, loader.calls.get());
+    assertNotNull(cache.getIfPresent("modules", "GetVersions", new byte[] {0, 0}));
+    assertNull(cache.getIfPresent("modules", "GetVersions", new byte[] {1, 0}));
+  }
+
+  public void testAccessTokenExpiration() {
+    ApiResponseCache cache =
+        ApiResponseCache.parse("app_identity_service.GetAccessToken=3600", metrics);
+    long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    CountingLoader expiringLoader = new CountingLoader(
+        AppIdentityServicePb.GetAccessTokenResponse.newBuilder()
+            .setAccessToken("expiring")
+            .setExpirationTime(nowSeconds + 30)
+            .build()
+            .toByteArray());
+    get(cache, "app_identity_service", "GetAccessToken", new byte[] {1}, expiringLoader);
+    get(cache, "app_identity_service", "GetAccessToken", new byte[] {1}, expiringLoader);
+    assertEquals(2, expiringLoader.calls.get());
+
+    CountingLoader validLoader = new CountingLoader(
+        AppIdentityServicePb.GetAccessTokenResponse.newBuilder()
+            .setAccessToken("valid")
+            .setExpirationTime(nowSeconds + 3600)
+            .build()
+            .toByteArray());
+    get(cache, "app_identity_service", "GetAccessToken", new byte[] {2}, validLoader);
+    get(cache, "app_identity_service", "GetAccessToken", new byte[] {2}, validLoader);
+    assertEquals(1, validLoader.calls.get());
+  }
+
+  public void testConcurrentMissesShareOneCall() throws Exception {
+    final ApiResponseCache cache = ApiResponseCache.parse("modules.GetVersions=60", metrics);
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final ApiCallDeduplicator.Loader loader = new ApiCallDeduplicator.Loader() {
+      @Override
+      public byte[] load() {
+        calls.incrementAndGet();
+        loading.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return new byte[] {3};
+      }
+    };
+    Callable<byte[]> call = new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return cache.load("modules", "GetVersions", new byte[0], 5000, loader);
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<byte[]> first = executor.submit(call);
+      assertTrue(loading.await(5, TimeUnit.SECONDS));
+      Future<byte[]> second = executor.submit(call);
+      Thread.sleep(50);
+      release.countDown();
+      assertTrue(Arrays.equals(new byte[] {3}, first.get(5, TimeUnit.SECONDS)));
+      assertTrue(Arrays.equals(new byte[] {3}, second.get(5, TimeUnit.SECONDS)));
+      assertEquals(1, calls.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
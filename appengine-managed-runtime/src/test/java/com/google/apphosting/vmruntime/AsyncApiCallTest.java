@@ -0,0 +1,167 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests the tracking and cancellation of the async API calls of a request.
+ *
+ */
+public class AsyncApiCallTest extends TestCase {
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final BlockingQueue<HttpPost> requests = new LinkedBlockingQueue<>();
+  private VmApiProxyDelegate delegate;
+  private VmApiProxyEnvironment environment;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Map<String, String> envMap = new HashMap<>();
+    envMap.put("GAE_LONG_APP_ID", "test-app");
+    envMap.put("GAE_PARTITION", "s");
+    envMap.put("GAE_MODULE_NAME", "default");
+    envMap.put("GAE_MODULE_VERSION", "v1");
+    envMap.put("GAE_MINOR_VERSION", "1");
+    envMap.put("GAE_MODULE_INSTANCE", "0");
+    envMap.put("GAE_AFFINITY", "false");
+    envMap.put("GAE_APPENGINE_HOSTNAME", "test-app.appspot.com");
+    envMap.put("USE_MVM_AGENT", "false");
+    environment = VmApiProxyEnvironment.createDefaultContext(
+        envMap, new VmMetadataCache(), "localhost:10001", null, null, "");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    if (delegate != null) {
+      delegate.monitorThread.interrupt();
+    }
+    super.tearDown();
+  }
+
+  /**
+   * Creates a delegate whose HTTP calls block until released, failing if they were aborted.
+   */
+  private VmApiProxyDelegate createDelegate(boolean cancelUnreadCalls) throws Exception {
+    HttpClient httpClient = mock(HttpClient.class);
+    when(httpClient.getConnectionManager()).thenReturn(new PoolingClientConnectionManager());
+    when(httpClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenAnswer(new Answer<HttpResponse>() {
+          @Override
+          public HttpResponse answer(InvocationOnMock invocation) throws Exception {
+            HttpPost request = (HttpPost) invocation.getArguments()[0];
+            requests.add(request);
+            while (!request.isAborted()) {
+              if (release.await(1, TimeUnit.MILLISECONDS)) {
+                break;
+              }
+            }
+            throw new IOException("Request aborted");
+          }
+        });
+    System.setProperty(VmApiProxyDelegate.CANCEL_UNREAD_CALLS_PROPERTY,
+        Boolean.toString(cancelUnreadCalls));
+    try {
+      return new VmApiProxyDelegate(httpClient);
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.CANCEL_UNREAD_CALLS_PROPERTY);
+    }
+  }
+
+  public void testWaitForAllApiCallsToComplete() throws Exception {
+    assertTrue(environment.waitForAllApiCallsToComplete(0));
+    environment.aSyncApiCallAdded(0);
+    assertFalse(environment.waitForAllApiCallsToComplete(10));
+    environment.apiCallStarted(0, true);
+    assertFalse(environment.waitForAllApiCallsToComplete(10));
+    environment.apiCallCompleted();
+    assertTrue(environment.waitForAllApiCallsToComplete(0));
+
+    // A call cancelled before it started is no longer waited for.
+    environment.aSyncApiCallAdded(0);
+    environment.aSyncApiCallRemoved();
+    assertTrue(environment.waitForAllApiCallsToComplete(0));
+  }
+
+  public void testUnreadCallIsCancelledAndAborted() throws Exception {
+    delegate = createDelegate(true);
+    Future<byte[]> call =
+        delegate.makeAsyncCall(environment, "datastore_v3", "Put", new byte[0], null);
+    HttpPost request = requests.poll(5, TimeUnit.SECONDS);
+    assertNotNull(request);
+    assertFalse(environment.waitForAllApiCallsToComplete(10));
+
+    assertEquals(1, environment.cancelUnreadApiCalls());
+    assertTrue(call.isCancelled());
+    assertTrue(request.isAborted());
+    assertTrue(environment.waitForAllApiCallsToComplete(5000));
+  }
+
+  public void testReadCallIsNotCancelledIfUnread() throws Exception {
+    delegate = createDelegate(true);
+    Future<byte[]> call =
+        delegate.makeAsyncCall(environment, "datastore_v3", "Put", new byte[0], null);
+    HttpPost request = requests.poll(5, TimeUnit.SECONDS);
+    try {
+      call.get(1, TimeUnit.MILLISECONDS);
+      fail("Expected TimeoutException");
+    } catch (TimeoutException e) {
+      // Expected.
+    }
+    assertEquals(0, environment.cancelUnreadApiCalls());
+    assertFalse(request.isAborted());
+
+    // Calls still running once the request gave up waiting are always cancelled.
+    assertEquals(1, environment.cancelApiCalls());
+    assertTrue(request.isAborted());
+    assertTrue(environment.waitForAllApiCallsToComplete(5000));
+  }
+
+  public void testUnreadCallsAreKeptByDefault() throws Exception {
+    delegate = createDelegate(false);
+    delegate.makeAsyncCall(environment, "datastore_v3", "Put", new byte[0], null);
+    HttpPost request = requests.poll(5, TimeUnit.SECONDS);
+    assertEquals(0, environment.cancelUnreadApiCalls());
+    assertFalse(request.isAborted());
+    release.countDown();
+    assertTrue(environment.waitForAllApiCallsToComplete(5000));
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.vmruntime.AsyncFileLogHandler.OverflowPolicy;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Tests for {@link AsyncFileLogHandler}.
+ *
+ */
+public class AsyncFileLogHandlerTest extends TestCase {
+  private Path directory;
+  private String pattern;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = Files.createTempDirectory("AsyncFileLogHandlerTest");
+    pattern = directory + File.separator + "app.%g.log";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File file : directory.toFile().listFiles()) {
+      file.delete();
+    }
+    Files.delete(directory);
+    super.tearDown();
+  }
+
+  private AsyncFileLogHandler handler(long limit, int capacity, OverflowPolicy policy)
+      throws IOException {
+    AsyncFileLogHandler handler = new AsyncFileLogHandler(pattern, limit, 3, capacity, policy);
+    handler.setFormatter(new Formatter() {
+      @Override
+      public String format(LogRecord record) {
+        return record.getMessage() + "\n";
+      }
+    });
+    return handler;
+  }
+
+  private List<String> lines(int generation) throws IOException {
+    Path file = directory.resolve("app." + generation + ".log");
+    return Files.exists(file)
+        ? Files.readAllLines(file, StandardCharsets.UTF_8) : new ArrayList<String>();
+  }
+
+  public void testWritesRecordsInOrder() throws Exception {
+    AsyncFileLogHandler handler = handler(0, 16, OverflowPolicy.BLOCK);
+    handler.start();
+    for (int i = 0; i < 1000; i++) {
+      handler.publish(new LogRecord(Level.INFO, "record " + i + " \u00e9\u20ac"));
+    }
+    handler.flush();
+    List<String> lines = lines(0);
+    assertEquals(1000, lines.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("record " + i + " \u00e9\u20ac", lines.get(i));
+    }
+    assertEquals(0, handler.getQueueDepth());
+    assertTrue(handler.getMaxQueueDepth() <= 16);
+    assertEquals(0, handler.getDroppedCount());
+    handler.close();
+  }
+
+  public void testRotatesFiles() throws Exception {
+    AsyncFileLogHandler handler = handler(100, 16, OverflowPolicy.BLOCK);
+    handler.start();
+    // Each record takes 10 bytes, so each file holds 10 records.
+    for (int i = 0; i < 35; i++) {
+      handler.publish(new LogRecord(Level.INFO, String.format("record%03d", i)));
+    }
+    handler.close();
+    assertEquals("record030", lines(0).get(0));
+    assertEquals(5, lines(0).size());
+    assertEquals("record020", lines(1).get(0));
+    assertEquals(10, lines(1).size());
+    assertEquals("record010", lines(2).get(0));
+    assertEquals(10, lines(2).size());
+    assertFalse(Files.exists(directory.resolve("app.3.log")));
+  }
+
+  public void testAppendsToTheExistingFile() throws Exception {
+    AsyncFileLogHandler handler = handler(0, 16, OverflowPolicy.BLOCK);
+    handler.publish(new LogRecord(Level.INFO, "first"));
+    handler.close();
+    handler = handler(0, 16, OverflowPolicy.BLOCK);
+    handler.start();
+    handler.publish(new LogRecord(Level.INFO, "second"));
+    handler.close();
+    assertEquals(2, lines(0).size());
+  }
+
+  public void testDropsRecordsWhenFull() throws Exception {
+    AsyncFileLogHandler handler = handler(0, 4, OverflowPolicy.DROP);
+    for (int i = 0; i < 10; i++) {
+      handler.publish(new LogRecord(Level.INFO, "record " + i));
+    }
+    assertEquals(4, handler.getQueueDepth());
+    assertEquals(4, handler.getMaxQueueDepth());
+    assertEquals(6, handler.getDroppedCount());
+    handler.start();
+    handler.flush();
+    assertEquals(0, handler.getQueueDepth());
+    assertEquals(4, lines(0).size());
+    handler.close();
+  }
+
+  public void testSummarizesDroppedRecords() throws Exception {
+    AsyncFileLogHandler handler = handler(0, 4, OverflowPolicy.SUMMARIZE);
+    handler.setFormatter(new Formatter() {
+      @Override
+      public String format(LogRecord record) {
+        return record.getLevel() + " " + record.getMessage() + "\n";
+      }
+    });
+    for (int i = 0; i < 10; i++) {
+      handler.publish(new LogRecord(Level.INFO, "record " + i));
+    }
+    handler.start();
+    handler.close();
+    List<String> lines = lines(0);
+    assertEquals(5, lines.size());
+    assertEquals("INFO record 3", lines.get(3));
+    assertEquals("WARNING Dropped 6 log records because the log queue was full.", lines.get(4));
+  }
+
+  public void testIgnoresRecordsPublishedWhileClosing() throws Exception {
+    final AsyncFileLogHandler handler = handler(0, 16, OverflowPolicy.BLOCK);
+    handler.setFormatter(new Formatter() {
+      @Override
+      public String format(LogRecord record) {
+        if (record.getMessage().equals("closing")) {
+          // Closes the handler after publish checked it was open.
+          handler.close();
+        }
+        return record.getMessage() + "\n";
+      }
+    });
+    handler.start();
+    handler.publish(new LogRecord(Level.INFO, "first"));
+    handler.publish(new LogRecord(Level.INFO, "closing"));
+    assertEquals(0, handler.getQueueDepth());
+    handler.flush();
+    assertEquals(1, lines(0).size());
+  }
+
+  public void testMetrics() throws Exception {
+    AsyncFileLogHandler handler = handler(0, 4, OverflowPolicy.DROP);
+    for (int i = 0; i < 10; i++) {
+      handler.publish(new LogRecord(Level.INFO, "record " + i));
+    }
+    ApiCallMetrics metrics = new ApiCallMetrics();
+    metrics.setLogHandler(handler);
+    StringWriter out = new StringWriter();
+    metrics.writePrometheusText(out);
+    String text = out.toString();
+    assertTrue(text, text.contains("appengine_log_queue_depth 4\n"));
+    assertTrue(text, text.contains("appengine_log_queue_max_depth 4\n"));
+    assertTrue(text, text.contains("appengine_log_records_dropped_total 6\n"));
+    handler.close();
+  }
+
+  public void testFileName() {
+    assertEquals("/var/log/app.2.log.json",
+        AsyncFileLogHandler.fileName("/var/log/app.%g.log.json", 2, 3));
+    assertEquals("/var/log/app%.log.1", AsyncFileLogHandler.fileName("/var/log/app%%.log", 1, 3));
+    assertEquals("/var/log/app.log", AsyncFileLogHandler.fileName("/var/log/app.log", 0, 1));
+  }
+
+  public void testOverflowPolicy() {
+    assertEquals(OverflowPolicy.BLOCK, VmRuntimeFileLogHandler.overflowPolicy(null));
+    assertEquals(OverflowPolicy.DROP, VmRuntimeFileLogHandler.overflowPolicy(" drop "));
+    assertEquals(OverflowPolicy.SUMMARIZE, VmRuntimeFileLogHandler.overflowPolicy("summarize"));
+    assertEquals(OverflowPolicy.BLOCK, VmRuntimeFileLogHandler.overflowPolicy("lose"));
+  }
+}
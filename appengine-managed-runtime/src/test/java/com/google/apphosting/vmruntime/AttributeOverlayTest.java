@@ -0,0 +1,106 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import com.google.apphosting.api.ApiProxy;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link AttributeOverlay}.
+ *
+ */
+public class AttributeOverlayTest extends TestCase {
+
+  public void testWritesStayInTheOverlay() {
+    Map<String, Object> base = new RequestAttributes();
+    base.put("a", 1);
+    base.put("b", 2);
+    Map<String, Object> overlay = new AttributeOverlay(base);
+    assertEquals(base, overlay);
+
+    assertEquals(1, overlay.put("a", 3));
+    assertEquals(2, overlay.remove("b"));
+    assertNull(overlay.remove("b"));
+    assertNull(overlay.put("c", null));
+    assertEquals(3, overlay.get("a"));
+    assertFalse(overlay.containsKey("b"));
+    assertTrue(overlay.containsKey("c"));
+    assertEquals(2, overlay.size());
+
+    Map<String, Object> expected = new HashMap<>();
+    expected.put("a", 3);
+    expected.put("c", null);
+    assertEquals(expected, overlay);
+    assertEquals(1, base.get("a"));
+    assertEquals(2, base.get("b"));
+    assertFalse(base.containsKey("c"));
+  }
+
+  public void testIteratorWritesThrough() {
+    Map<String, Object> base = new RequestAttributes();
+    base.put("a", 1);
+    base.put("b", 2);
+    Map<String, Object> overlay = new AttributeOverlay(base);
+    Iterator<Map.Entry<String, Object>> entries = overlay.entrySet().iterator();
+    Map.Entry<String, Object> first = entries.next();
+    entries.remove();
+    Map.Entry<String, Object> second = entries.next();
+    second.setValue(5);
+    assertFalse(overlay.containsKey(first.getKey()));
+    assertEquals(5, overlay.get(second.getKey()));
+    assertEquals(2, base.size());
+
+    overlay.clear();
+    assertTrue(overlay.isEmpty());
+    assertEquals(2, base.size());
+  }
+
+  public void testBackgroundThreadsHaveTheirOwnAttributes() throws Exception {
+    Map<String, String> envMap = new HashMap<>();
+    envMap.put("GAE_LONG_APP_ID", "test-app");
+    envMap.put("GAE_PARTITION", "s");
+    envMap.put("GAE_MODULE_NAME", "default");
+    envMap.put("GAE_MODULE_VERSION", "v1");
+    envMap.put("GAE_MINOR_VERSION", "1");
+    envMap.put("GAE_MODULE_INSTANCE", "0");
+    envMap.put("GAE_AFFINITY", "false");
+    envMap.put("GAE_APPENGINE_HOSTNAME", "test-app.appspot.com");
+    envMap.put("USE_MVM_AGENT", "false");
+    final VmApiProxyEnvironment environment = VmApiProxyEnvironment.createDefaultContext(
+        envMap, new VmMetadataCache(), "localhost:10001", null, null, "");
+    final ApiProxy.EnvironmentFactory factory = new VmEnvironmentFactory(environment);
+    final AtomicReference<Object> seen = new AtomicReference<>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        ApiProxy.Environment threadEnvironment = factory.newEnvironment();
+        threadEnvironment.getAttributes().put("key", "thread");
+        seen.set(threadEnvironment.getAttributes().get("key"));
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals("thread", seen.get());
+    assertFalse(environment.getAttributes().containsKey("key"));
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.utils.http.HttpResponse;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mockito;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link RequestApiStats}.
+ *
+ */
+public class RequestApiStatsTest extends TestCase {
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  public void testSummary() {
+    RequestApiStats stats = new RequestApiStats();
+    stats.record("memcache", 10, 20, millis(2));
+    stats.record("datastore_v3", 100, 200, millis(5));
+    stats.record("datastore_v3", 50, 0, millis(15));
+    stats.recordSemaphoreWait(millis(3));
+
+    assertEquals(3, stats.getCalls());
+    assertEquals(160, stats.getBytesSent());
+    assertEquals(220, stats.getBytesReceived());
+    assertEquals(millis(3), stats.getSemaphoreWaitNanos());
+    assertEquals("api-datastore_v3;dur=20.0;desc=\"2 calls, max 15.0ms\", "
+        + "api-memcache;dur=2.0;desc=\"1 calls, max 2.0ms\", api-wait;dur=3.0",
+        stats.toServerTiming());
+    assertEquals("API calls summary: calls=3 bytesSent=160 bytesReceived=220 semaphoreWaitMs=3.0"
+        + " datastore_v3.calls=2 datastore_v3.totalMs=20.0 datastore_v3.maxMs=15.0"
+        + " memcache.calls=1 memcache.totalMs=2.0 memcache.maxMs=2.0",
+        stats.toLogLine());
+  }
+
+  public void testServerTimingHeaderIsOptIn() {
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    RequestApiStats stats = new RequestApiStats();
+    stats.record("memcache", 10, 20, millis(2));
+    when(environment.getApiStats()).thenReturn(stats);
+    HttpResponse response = mock(HttpResponse.class);
+
+    VmRuntimeUtils.reportApiCalls(response, environment);
+    verify(response, never()).setHeader(Mockito.anyString(), Mockito.anyString());
+
+    System.setProperty(VmRuntimeUtils.SERVER_TIMING_PROPERTY, "true");
+    try {
+      VmRuntimeUtils.reportApiCalls(response, environment);
+    } finally {
+      System.clearProperty(VmRuntimeUtils.SERVER_TIMING_PROPERTY);
+    }
+    verify(response).setHeader(VmRuntimeUtils.SERVER_TIMING_HEADER, stats.toServerTiming());
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link RequestAttributes}.
+ *
+ */
+public class RequestAttributesTest extends TestCase {
+
+  public void testPutGetRemove() {
+    Map<String, Object> attributes = new RequestAttributes(4);
+    // "Aa" and "BB" have the same hash code.
+    assertNull(attributes.put("Aa", 1));
+    assertNull(attributes.put("BB", 2));
+    assertNull(attributes.put("key", null));
+    assertEquals(1, attributes.put("Aa", 3));
+    assertEquals(3, attributes.size());
+    assertEquals(3, attributes.get("Aa"));
+    assertEquals(2, attributes.get("BB"));
+    assertTrue(attributes.containsKey("key"));
+    assertNull(attributes.get("key"));
+    assertFalse(attributes.containsKey("missing"));
+    assertNull(attributes.get(null));
+
+    assertEquals(3, attributes.remove("Aa"));
+    assertEquals(2, attributes.get("BB"));
+    assertNull(attributes.remove("Aa"));
+    assertEquals(2, attributes.size());
+    try {
+      attributes.put(null, 1);
+      fail("Expected NullPointerException");
+    } catch (NullPointerException e) {
+      // Expected.
+    }
+  }
+
+  public void testMatchesHashMap() {
+    Random random = new Random(42);
+    Map<String, Object> attributes = new RequestAttributes(2);
+    Map<String, Object> expected = new HashMap<>();
+    for (int i = 0; i < 10000; i++) {
+      String key = "key" + random.nextInt(100);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), attributes.remove(key));
+      } else {
+        assertEquals(expected.put(key, i), attributes.put(key, i));
+      }
+      assertEquals(expected.size(), attributes.size());
+    }
+    assertEquals(expected, attributes);
+    assertEquals(expected, new HashMap<>(attributes));
+  }
+
+  public void testIteratorRemove() {
+    Map<String, Object> attributes = new RequestAttributes();
+    attributes.put("a", 1);
+    attributes.put("b", 2);
+    Iterator<Map.Entry<String, Object>> entries = attributes.entrySet().iterator();
+    Map.Entry<String, Object> first = entries.next();
+    entries.remove();
+    assertFalse(attributes.containsKey(first.getKey()));
+    entries.next().setValue(3);
+    assertEquals(1, attributes.size());
+    assertEquals(3, attributes.values().iterator().next());
+  }
+
+  public void testConcurrentReadsSeeConsistentValues() throws Exception {
+    final Map<String, Object> attributes = new RequestAttributes(2);
+    attributes.put("stable", "value");
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Object> wrong = new AtomicReference<>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          Object value = attributes.get("stable");
+          if (!"value".equals(value)) {
+            wrong.set(value);
+          }
+        }
+      }
+    };
+    reader.start();
+    for (int i = 0; i < 100000; i++) {
+      String key = "key" + (i % 200);
+      if (i % 3 == 0) {
+        attributes.remove(key);
+      } else {
+        attributes.put(key, i);
+      }
+    }
+    done.set(true);
+    reader.join();
+    assertNull(wrong.get());
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+
+import jnr.unixsocket.UnixServerSocketChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+
+import junit.framework.TestCase;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests API calls to an API server listening on a Unix domain socket.
+ *
+ */
+public class UnixSocketSocketFactoryTest extends TestCase {
+  private File socketFile;
+  private UnixServerSocketChannel serverChannel;
+  private Thread serverThread;
+  private final AtomicInteger connections = new AtomicInteger();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    socketFile = File.createTempFile("api", ".sock");
+    socketFile.delete();
+    serverChannel = UnixServerSocketChannel.open();
+    serverChannel.socket().bind(new UnixSocketAddress(socketFile));
+    serverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        serve();
+      }
+    });
+    serverThread.setDaemon(true);
+    serverThread.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    serverChannel.close();
+    serverThread.interrupt();
+    socketFile.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Accepts connections and answers each /rpc_http request with its own payload.
+   */
+  private void serve() {
+    while (serverChannel.isOpen()) {
+      final UnixSocketChannel channel;
+      try {
+        channel = serverChannel.accept();
+      } catch (IOException e) {
+        return;
+      }
+      connections.incrementAndGet();
+      Thread handler = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try (UnixSocketChannel c = channel) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(c));
+            OutputStream out = Channels.newOutputStream(c);
+            while (handleRequest(in, out)) {
+            }
+          } catch (IOException e) {
+            // Connection closed by the client.
+          }
+        }
+      });
+      handler.setDaemon(true);
+      handler.start();
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0) {
+        return null;
+      }
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  private static boolean handleRequest(DataInputStream in, OutputStream out) throws IOException {
+    String requestLine = readLine(in);
+    if (requestLine == null) {
+      return false;
+    }
+    assertEquals("POST " + VmApiProxyDelegate.REQUEST_ENDPOINT + " HTTP/1.1", requestLine);
+    int contentLength = 0;
+    String header;
+    while (!(header = readLine(in)).isEmpty()) {
+      if (header.toLowerCase(Locale.US).startsWith("content-length:")) {
+        contentLength = Integer.parseInt(header.substring("content-length:".length()).trim());
+      }
+    }
+    byte[] body = new byte[contentLength];
+    in.readFully(body);
+    RemoteApiPb.Request request = new RemoteApiPb.Request();
+    request.parseFrom(body);
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    response.setResponseAsBytes(request.getRequestAsBytes());
+    byte[] responseBody = response.toByteArray();
+    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + responseBody.length + "\r\n\r\n")
+        .getBytes(StandardCharsets.US_ASCII));
+    out.write(responseBody);
+    out.flush();
+    return true;
+  }
+
+  public void testCallsGoThroughTheSocket() throws Exception {
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(new DefaultHttpClient(
+        VmApiProxyDelegate.createConnectionManager(socketFile.getPath())));
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    // Nothing listens on this address, calls only succeed through the socket.
+    when(environment.getServer()).thenReturn("unreachable.invalid:10001");
+    when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
+    try {
+      for (int i = 0; i < 10; i++) {
+        byte[] requestData = new byte[] {(byte) i, 2, 3};
+        assertTrue(Arrays.equals(requestData,
+            delegate.makeSyncCall(environment, "memcache", "Get", requestData)));
+      }
+      // Connections are kept alive and reused.
+      assertEquals(1, connections.get());
+    } finally {
+      delegate.monitorThread.interrupt();
+    }
+  }
+}
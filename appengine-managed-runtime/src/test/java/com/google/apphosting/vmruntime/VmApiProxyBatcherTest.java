@@ -0,0 +1,258 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.utils.remoteapi.RemoteApiPb;
+import com.google.appengine.repackaged.com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests batching of async API calls against a stand-in API proxy understanding the batch envelope.
+ *
+ */
+public class VmApiProxyBatcherTest extends TestCase {
+  private static final String FAILING_METHOD = "OverQuota";
+  private static final String SLOW_METHOD = "Slow";
+  private static final long SLOW_METHOD_DELAY_MS = 1000;
+
+  private HttpServer server;
+  private final AtomicInteger singleCalls = new AtomicInteger();
+  private final AtomicInteger batchCalls = new AtomicInteger();
+  private VmApiProxyDelegate delegate;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(VmApiProxyDelegate.REQUEST_ENDPOINT, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        singleCalls.incrementAndGet();
+        RemoteApiPb.Request request = new RemoteApiPb.Request();
+        request.parseFrom(ByteStreams.toByteArray(exchange.getRequestBody()));
+        reply(exchange, answer(request).toByteArray());
+      }
+    });
+    server.createContext(VmApiProxyBatcher.BATCH_ENDPOINT, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        batchCalls.incrementAndGet();
+        ByteBuffer envelope = ByteBuffer.wrap(ByteStreams.toByteArray(exchange.getRequestBody()));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        while (envelope.hasRemaining()) {
+          int length = envelope.getInt();
+          RemoteApiPb.Request request = new RemoteApiPb.Request();
+          request.parseFrom(envelope.array(), envelope.position(), length);
+          envelope.position(envelope.position() + length);
+          byte[] response = answer(request).toByteArray();
+          out.writeInt(response.length);
+          out.write(response);
+        }
+        reply(exchange, body.toByteArray());
+      }
+    });
+    server.start();
+    System.setProperty(VmApiProxyDelegate.BATCH_WINDOW_PROPERTY, "50");
+    // Calls that may be retried bypass the batcher.
+    System.setProperty(VmApiProxyDelegate.RETRY_POLICY_PROPERTY, "");
+    try {
+      delegate = new VmApiProxyDelegate();
+    } finally {
+      System.clearProperty(VmApiProxyDelegate.BATCH_WINDOW_PROPERTY);
+      System.clearProperty(VmApiProxyDelegate.RETRY_POLICY_PROPERTY);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delegate.monitorThread.interrupt();
+    server.stop(0);
+    super.tearDown();
+  }
+
+  /**
+   * Echoes the request payload, or fails with an RPC error for {@link #FAILING_METHOD}. Calls to
+   * {@link #SLOW_METHOD} take {@link #SLOW_METHOD_DELAY_MS}.
+   */
+  private static RemoteApiPb.Response answer(RemoteApiPb.Request request) {
+    if (SLOW_METHOD.equals(request.getMethod())) {
+      try {
+        Thread.sleep(SLOW_METHOD_DELAY_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    if (FAILING_METHOD.equals(request.getMethod())) {
+      RemoteApiPb.RpcError rpcError = new RemoteApiPb.RpcError();
+      rpcError.setCode(RemoteApiPb.RpcError.ErrorCode.OVER_QUOTA.getValue());
+      rpcError.setDetail("quota");
+      response.setRpcError(rpcError);
+    } else {
+      response.setResponseAsBytes(request.getRequestAsBytes());
+    }
+    return response;
+  }
+
+  private static void reply(HttpExchange exchange, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private VmApiProxyEnvironment createMockEnvironment() {
+    VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
+    when(environment.getTicket()).thenReturn("test-ticket");
+    when(environment.getServer()).thenReturn("localhost:" + server.getAddress().getPort());
+    when(environment.getAttributes()).thenReturn(new HashMap<String, Object>());
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
+    return environment;
+  }
+
+  public void testBurstIsSentAsOneBatch() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    List<Future<byte[]>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      futures.add(delegate.makeAsyncCall(
+          environment, "memcache", "Get", new byte[] {(byte) i}, new ApiConfig()));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      assertTrue(Arrays.equals(new byte[] {(byte) i}, futures.get(i).get()));
+    }
+    assertEquals(1, batchCalls.get());
+    assertEquals(0, singleCalls.get());
+    // Listeners run right after the futures complete, possibly on another thread.
+    verify(environment, timeout(1000).times(5)).apiCallCompleted();
+  }
+
+  public void testPerCallErrorsAreConverted() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    Future<byte[]> first = delegate.makeAsyncCall(
+        environment, "memcache", "Get", new byte[] {1}, new ApiConfig());
+    Future<byte[]> failing = delegate.makeAsyncCall(
+        environment, "memcache", FAILING_METHOD, new byte[] {2}, new ApiConfig());
+    assertTrue(Arrays.equals(new byte[] {1}, first.get()));
+    try {
+      failing.get();
+      fail("Expected an OverQuotaException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ApiProxy.OverQuotaException);
+    }
+    assertEquals(1, batchCalls.get());
+  }
+
+  public void testSingleCallIsNotBatched() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    byte[] result = delegate.makeAsyncCall(
+        environment, "memcache", "Get", new byte[] {7}, new ApiConfig()).get();
+    assertTrue(Arrays.equals(new byte[] {7}, result));
+    assertEquals(0, batchCalls.get());
+    assertEquals(1, singleCalls.get());
+  }
+
+  public void testSyncCallsBypassTheBatcher() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    byte[] result = delegate.makeSyncCall(environment, "memcache", "Get", new byte[] {3});
+    assertTrue(Arrays.equals(new byte[] {3}, result));
+    assertEquals(1, singleCalls.get());
+  }
+
+  public void testUnexpectedFailureCompletesEveryCall() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    // Sending fails with an IllegalStateException once the connection pool is shut down.
+    delegate.httpclient.getConnectionManager().shutdown();
+    List<Future<byte[]>> futures = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      futures.add(delegate.makeAsyncCall(
+          environment, "memcache", "Get", new byte[] {(byte) i}, new ApiConfig()));
+    }
+    for (Future<byte[]> future : futures) {
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("Expected an RPCFailedException");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof ApiProxy.RPCFailedException);
+      }
+    }
+    verify(environment, timeout(1000).times(3)).apiCallCompleted();
+  }
+
+  public void testCallFailsOnItsOwnDeadline() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    ApiConfig shortDeadline = new ApiConfig();
+    shortDeadline.setDeadlineInSeconds(0.2);
+    long startNanos = System.nanoTime();
+    Future<byte[]> slow = delegate.makeAsyncCall(
+        environment, "memcache", SLOW_METHOD, new byte[] {1}, new ApiConfig());
+    Future<byte[]> fast = delegate.makeAsyncCall(
+        environment, "memcache", "Get", new byte[] {2}, shortDeadline);
+    try {
+      fast.get();
+      fail("Expected an ApiDeadlineExceededException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ApiProxy.ApiDeadlineExceededException);
+    }
+    // The call did not wait for the slow call batched with it.
+    assertTrue(System.nanoTime() - startNanos
+        < TimeUnit.MILLISECONDS.toNanos(SLOW_METHOD_DELAY_MS));
+    assertTrue(Arrays.equals(new byte[] {1}, slow.get()));
+    assertEquals(1, batchCalls.get());
+  }
+
+  public void testCallsAfterShutdownDoNotWait() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    delegate.shutdown();
+    Future<byte[]> future = delegate.makeAsyncCall(
+        environment, "memcache", "Get", new byte[] {1}, new ApiConfig());
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Expected an RPCFailedException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ApiProxy.RPCFailedException);
+    }
+  }
+}
@@ -17,6 +17,8 @@
 package com.google.apphosting.vmruntime;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.appengine.api.datastore.DatastoreFailureException;
@@ -36,17 +38,24 @@ import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.protocol.HttpContext;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Tests the delegate for making AppEngine API calls in a Google Compute Engine VM.
@@ -116,12 +125,39 @@ public class VmApiProxyDelegateTest extends TestCase {
     return resp;
   }
 
+  /**
+   * Creates a transport that completes each exchange inline, either with {@code response} or, if
+   * it is null, with {@code failure}.
+   */
+  private VmApiProxyTransport createMockTransport(final HttpResponse response,
+      final Exception failure) {
+    VmApiProxyTransport transport = mock(VmApiProxyTransport.class);
+    when(transport.execute(Mockito.any(HttpPost.class), Mockito.anyInt(),
+        Mockito.<FutureCallback<HttpResponse>>any())).thenAnswer(new Answer<Future<HttpResponse>>() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public Future<HttpResponse> answer(InvocationOnMock invocation) {
+            FutureCallback<HttpResponse> callback =
+                (FutureCallback<HttpResponse>) invocation.getArguments()[2];
+            if (response != null) {
+              callback.completed(response);
+            } else {
+              callback.failed(failure);
+            }
+            return mock(Future.class);
+          }
+        });
+    return transport;
+  }
+
   private VmApiProxyEnvironment createMockEnvironment() {
     VmApiProxyEnvironment environment = mock(VmApiProxyEnvironment.class);
     when(environment.getTicket()).thenReturn(TICKET);
 
     Map<String, Object> attributes = new HashMap<>();
     when(environment.getAttributes()).thenReturn(attributes);
+    when(environment.getRemainingMillis()).thenReturn(Long.MAX_VALUE);
+    when(environment.getApiStats()).thenReturn(new RequestApiStats());
     return environment;
   }
 
@@ -340,10 +376,62 @@ public class VmApiProxyDelegateTest extends TestCase {
     delegate.monitorThread.join();
   }
 
+  public void testMakeAsyncCall_NonBlockingTransportSuccess() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    byte[] pbData = new byte[] {0, 1, 2, 3, 4, 5};
+    response.setResponseAsBytes(pbData);
+    VmApiProxyTransport transport = createMockTransport(
+        createMockHttpResponse(response.toByteArray(), HttpURLConnection.HTTP_OK), null);
+
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(createMockHttpClient(), transport);
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    byte[] result = delegate.makeAsyncCall(environment, TEST_PACKAGE_NAME, TEST_METHOD_NAME,
+        pbData, new ApiConfig()).get();
+    assertTrue(Arrays.equals(pbData, result));
+    verify(environment, times(1)).aSyncApiCallAdded(Mockito.anyLong());
+    verify(environment, times(1)).apiCallStarted(Mockito.anyLong(), Mockito.eq(true));
+    verify(environment, times(1)).apiCallCompleted();
+  }
+
+  public void testMakeAsyncCall_NonBlockingTransportConnectionError() throws Exception {
+    VmApiProxyTransport transport =
+        createMockTransport(null, new IOException("Connection refused"));
+
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(createMockHttpClient(), transport);
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    try {
+      delegate.makeAsyncCall(environment, TEST_PACKAGE_NAME, TEST_METHOD_NAME, new byte[0],
+          new ApiConfig()).get();
+      fail();
+    } catch (ExecutionException exception) {
+      assertEquals(ApiProxy.RPCFailedException.class, exception.getCause().getClass());
+    }
+    verify(environment, times(1)).apiCallCompleted();
+  }
+
   public void testMakeSyncCall_Success() throws Exception {
     callDelegateWithSuccess(true);
   }
 
+  public void testMakeSyncCall_LargeResponseWithoutContentLength() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    byte[] pbData = new byte[3 * ResponseBufferPool.DEFAULT_BUFFER_SIZE + 17];
+    Arrays.fill(pbData, (byte) 42);
+    response.setResponseAsBytes(pbData);
+
+    HttpClient mockClient = createMockHttpClient();
+    HttpResponse mockHttpResponse =
+        createMockHttpResponse(response.toByteArray(), HttpURLConnection.HTTP_OK);
+    when(mockHttpResponse.getEntity().getContentLength()).thenReturn(-1L);
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenReturn(mockHttpResponse);
+
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    byte[] result = delegate.makeSyncCall(
+        createMockEnvironment(), TEST_PACKAGE_NAME, TEST_METHOD_NAME, new byte[0]);
+    assertTrue(Arrays.equals(pbData, result));
+  }
+
   public void testMakeAsyncCall_Success() throws Exception {
     callDelegateWithSuccess(false);
   }
@@ -441,6 +529,26 @@ public class VmApiProxyDelegateTest extends TestCase {
     assertNull(request.getFirstHeader("Connection"));
   }*/
 
+  public void testCreateRequest_EncodingMatchesRemoteApiRequest() throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    byte[] apiRequestData = new byte[100000];
+    Arrays.fill(apiRequestData, (byte) 7);
+    HttpPost request = VmApiProxyDelegate.createRequest(environment, TEST_PACKAGE_NAME,
+        TEST_METHOD_NAME, apiRequestData, 1000);
+
+    RemoteApiPb.Request rmtRequest = new RemoteApiPb.Request();
+    rmtRequest.setServiceName(TEST_PACKAGE_NAME);
+    rmtRequest.setMethod(TEST_METHOD_NAME);
+    rmtRequest.setRequestId(TICKET);
+    rmtRequest.setRequestAsBytes(apiRequestData);
+    byte[] expected = rmtRequest.toByteArray();
+
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    request.getEntity().writeTo(written);
+    assertEquals(expected.length, request.getEntity().getContentLength());
+    assertTrue(Arrays.equals(expected, written.toByteArray()));
+  }
+
   public void testCreateRequest_DapperHeaderForwarding() throws Exception {
     VmApiProxyEnvironment environment = createMockEnvironment();
     environment.getAttributes().put(VmApiProxyEnvironment.AttributeMapping.DAPPER_ID.attributeKey,
@@ -462,6 +570,69 @@ public class VmApiProxyDelegateTest extends TestCase {
         Double.toString(deadline));
   }
 
+  public void testCreateRequest_DeadlineFromEnvironmentClampedToRequestDeadline()
+      throws Exception {
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    when(environment.getRemainingMillis())
+        .thenReturn(VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS + 2000L);
+    environment.getAttributes().put(VmApiProxyDelegate.API_DEADLINE_KEY, 10.0);
+
+    HttpPost request = VmApiProxyDelegate.createRequest(environment, TEST_PACKAGE_NAME,
+        TEST_METHOD_NAME, new byte[0], 0);
+    assertEquals(request.getFirstHeader(VmApiProxyDelegate.RPC_DEADLINE_HEADER).getValue(),
+        Double.toString(2.0));
+  }
+
+  public void testMakeSyncCall_TimeoutClampedToRequestDeadline() throws Exception {
+    RemoteApiPb.Response response = new RemoteApiPb.Response();
+    response.setResponseAsBytes(new byte[0]);
+    HttpClient mockClient = createMockHttpClient();
+    HttpResponse mockHttpResponse =
+        createMockHttpResponse(response.toByteArray(), HttpURLConnection.HTTP_OK);
+    when(mockClient.execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class)))
+        .thenReturn(mockHttpResponse);
+
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    when(environment.getRemainingMillis())
+        .thenReturn(VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS + 5000L);
+    delegate.makeSyncCall(environment, TEST_PACKAGE_NAME, TEST_METHOD_NAME, new byte[0]);
+
+    ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+    verify(mockClient).execute(request.capture(), Mockito.any(HttpContext.class));
+    assertEquals(Double.toString(5.0),
+        request.getValue().getFirstHeader(VmApiProxyDelegate.RPC_DEADLINE_HEADER).getValue());
+    assertEquals(5000 + VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS,
+        request.getValue().getParams().getIntParameter(CoreConnectionPNames.SO_TIMEOUT, 0));
+    delegate.monitorThread.interrupt();
+  }
+
+  public void testCallsAfterRequestDeadlineFailImmediately() throws Exception {
+    HttpClient mockClient = createMockHttpClient();
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(mockClient);
+    VmApiProxyEnvironment environment = createMockEnvironment();
+    when(environment.getRemainingMillis())
+        .thenReturn((long) VmApiProxyDelegate.ADDITIONAL_HTTP_TIMEOUT_BUFFER_MS);
+    try {
+      delegate.makeSyncCall(environment, TEST_PACKAGE_NAME, TEST_METHOD_NAME, new byte[0]);
+      fail("Expected ApiDeadlineExceededException");
+    } catch (ApiProxy.ApiDeadlineExceededException e) {
+      // Expected.
+    }
+    Future<byte[]> result = delegate.makeAsyncCall(
+        environment, TEST_PACKAGE_NAME, TEST_METHOD_NAME, new byte[0], new ApiConfig());
+    assertTrue(result.isDone());
+    try {
+      result.get();
+      fail("Expected ApiDeadlineExceededException");
+    } catch (ExecutionException e) {
+      assertEquals(ApiProxy.ApiDeadlineExceededException.class, e.getCause().getClass());
+    }
+    verify(mockClient, times(0))
+        .execute(Mockito.any(HttpUriRequest.class), Mockito.any(HttpContext.class));
+    delegate.monitorThread.interrupt();
+  }
+
   public void testAPIExceptionWrapping() {
     VmApiProxyDelegate delegate = new VmApiProxyDelegate(createMockHttpClient());
     RuntimeException exception = delegate.constructApiException("logservice", "a");
@@ -480,4 +651,14 @@ public class VmApiProxyDelegateTest extends TestCase {
         "The remote RPC to the application server failed for the call barf.d().",
         exception.getMessage());
   }
+
+  public void testAPIExceptionClass() {
+    VmApiProxyDelegate delegate = new VmApiProxyDelegate(createMockHttpClient());
+    for (String packageName : new String[] {"taskqueue", "app_identity_service", "blobstore",
+        "channel", "images", "logservice", "memcache", "modules", "search", "user", "xmpp",
+        "datastore_v3", "datastore_v4", "barf"}) {
+      assertEquals(packageName, delegate.constructApiException(packageName, "a").getClass(),
+          VmApiProxyDelegate.apiExceptionClass(packageName));
+    }
+  }
 }
\ No newline at end of file
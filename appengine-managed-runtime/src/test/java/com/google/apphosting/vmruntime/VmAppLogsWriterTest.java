@@ -0,0 +1,338 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.vmruntime;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.logservice.LogServicePb.FlushRequest;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogGroup;
+import com.google.apphosting.api.logservice.LogServicePb.UserAppLogLine;
+
+import com.google.appengine.repackaged.com.google.common.base.Strings;
+import com.google.appengine.repackaged.com.google.common.base.Ticker;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.Futures;
+import com.google.appengine.repackaged.com.google.common.util.concurrent.SettableFuture;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for {@link VmAppLogsWriter}.
+ *
+ */
+public class VmAppLogsWriterTest extends TestCase {
+  private final List<UserAppLogGroup> flushes = new CopyOnWriteArrayList<>();
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApiProxy.Delegate<ApiProxy.Environment> delegate = mock(ApiProxy.Delegate.class);
+    when(delegate.makeAsyncCall(Mockito.any(ApiProxy.Environment.class), Mockito.eq("logservice"),
+        Mockito.eq("Flush"), Mockito.any(byte[].class), Mockito.any(ApiConfig.class)))
+        .thenAnswer(new Answer<Future<byte[]>>() {
+          @Override
+          public Future<byte[]> answer(InvocationOnMock invocation) {
+            FlushRequest request = new FlushRequest();
+            assertTrue(request.parseFrom((byte[]) invocation.getArguments()[3]));
+            UserAppLogGroup group = new UserAppLogGroup();
+            assertTrue(group.parseFrom(request.getLogsAsBytes()));
+            flushes.add(group);
+            return Futures.immediateFuture(new byte[0]);
+          }
+        });
+    ApiProxy.setDelegate(delegate);
+    ApiProxy.setEnvironmentForCurrentThread(mock(ApiProxy.Environment.class));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ApiProxy.clearEnvironmentForCurrentThread();
+    ApiProxy.setDelegate(null);
+    super.tearDown();
+  }
+
+  private static LogRecord record(String message) {
+    return new LogRecord(LogRecord.Level.info, 1000L, message);
+  }
+
+  public void testFlushesBeforeExceedingTheByteLimit() {
+    VmAppLogsWriter writer = new VmAppLogsWriter(2048, 1024, 0);
+    // Each line takes 28 + 100 bytes, so 16 lines fill the limit exactly.
+    String message = Strings.repeat("x", 100);
+    for (int i = 0; i < 16; i++) {
+      writer.addLogRecordAndMaybeFlush(record(message));
+    }
+    assertTrue(flushes.isEmpty());
+    writer.addLogRecordAndMaybeFlush(record(message));
+    assertEquals(1, flushes.size());
+    assertEquals(16, flushes.get(0).logLineSize());
+    UserAppLogLine line = flushes.get(0).getLogLine(0);
+    assertEquals(LogRecord.Level.info.ordinal(), line.getLevel());
+    assertEquals(1000L, line.getTimestampUsec());
+    assertEquals(message, line.getMessage());
+
+    assertEquals(2, writer.flushAndWait());
+    assertEquals(1, flushes.get(1).logLineSize());
+    assertEquals(2, writer.flushAndWait());
+  }
+
+  public void testFlushesLinesOlderThanTheMaximumAge() {
+    VmAppLogsWriter writer = new VmAppLogsWriter(1024 * 1024, 1024, 60);
+    final AtomicLong nanos = new AtomicLong();
+    writer.setTicker(new Ticker() {
+      @Override
+      public long read() {
+        return nanos.get();
+      }
+    });
+    writer.addLogRecordAndMaybeFlush(record("first"));
+    nanos.set(59 * 1000000000L);
+    writer.addLogRecordAndMaybeFlush(record("second"));
+    assertTrue(flushes.isEmpty());
+    nanos.set(60 * 1000000000L);
+    writer.addLogRecordAndMaybeFlush(record("third"));
+    assertEquals(1, flushes.size());
+    assertEquals(3, flushes.get(0).logLineSize());
+  }
+
+  public void testFlushesAgedLinesInTheBackground() throws Exception {
+    VmAppLogsWriter writer =
+        new VmAppLogsWriter(mock(ApiProxy.Environment.class), 1024 * 1024, 1024, 1);
+    writer.addLogRecordAndMaybeFlush(record("first"));
+    writer.addLogRecordAndMaybeFlush(record("second"));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (flushes.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, flushes.size());
+    assertEquals(2, flushes.get(0).logLineSize());
+    // Nothing is left for the end of the request.
+    assertEquals(1, writer.flushAndWait());
+    assertEquals(1, flushes.size());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testBackgroundFlushDoesNotWaitForOtherFlushes() throws Exception {
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch sent = new CountDownLatch(1);
+    final SettableFuture<byte[]> pending = SettableFuture.create();
+    ApiProxy.Delegate<ApiProxy.Environment> delegate = mock(ApiProxy.Delegate.class);
+    when(delegate.makeAsyncCall(Mockito.any(ApiProxy.Environment.class), Mockito.eq("logservice"),
+        Mockito.eq("Flush"), Mockito.any(byte[].class), Mockito.any(ApiConfig.class)))
+        .thenAnswer(new Answer<Future<byte[]>>() {
+          @Override
+          public Future<byte[]> answer(InvocationOnMock invocation) throws Exception {
+            // The first flush is slow to start, the second one is slow to complete.
+            if (sending.getCount() > 0) {
+              sending.countDown();
+              sent.await(5, TimeUnit.SECONDS);
+              return Futures.immediateFuture(new byte[0]);
+            }
+            return pending;
+          }
+        });
+    ApiProxy.setDelegate(delegate);
+    final VmAppLogsWriter writer =
+        new VmAppLogsWriter(mock(ApiProxy.Environment.class), 1024 * 1024, 1024, 60);
+    final AtomicLong nanos = new AtomicLong();
+    writer.setTicker(new Ticker() {
+      @Override
+      public long read() {
+        return nanos.get();
+      }
+    });
+    writer.addLogRecordAndMaybeFlush(record("first"));
+    Thread flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writer.waitForCurrentFlushAndStartNewFlush();
+      }
+    });
+    flusher.start();
+    assertTrue(sending.await(5, TimeUnit.SECONDS));
+    writer.addLogRecordAndMaybeFlush(record("second"));
+    nanos.set(TimeUnit.SECONDS.toNanos(30));
+
+    // Another thread is starting a flush.
+    long start = System.nanoTime();
+    writer.flushAgedLines();
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    sent.countDown();
+    flusher.join();
+
+    // A flush is pending.
+    assertEquals(2, writer.waitForCurrentFlushAndStartNewFlush());
+    writer.addLogRecordAndMaybeFlush(record("third"));
+    start = System.nanoTime();
+    writer.flushAgedLines();
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+    pending.set(new byte[0]);
+    writer.flushAgedLines();
+    assertEquals(3, writer.flushAndWait());
+  }
+
+  public void testFlushDelayFollowsTheFlushLatency() {
+    AppLogFlushScheduler scheduler = new AppLogFlushScheduler();
+    long maxDelayNanos = TimeUnit.SECONDS.toNanos(60);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(AppLogFlushScheduler.MIN_FLUSH_DELAY_MS),
+        scheduler.getFlushDelayNanos(maxDelayNanos));
+    scheduler.recordFlushLatency(TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(AppLogFlushScheduler.LATENCY_MULTIPLE * TimeUnit.MILLISECONDS.toNanos(100),
+        scheduler.getFlushDelayNanos(maxDelayNanos));
+    scheduler.recordFlushLatency(TimeUnit.SECONDS.toNanos(10));
+    assertEquals(maxDelayNanos, scheduler.getFlushDelayNanos(maxDelayNanos));
+  }
+
+  public void testConcurrentLinesAreFlushedInOrder() throws Exception {
+    final VmAppLogsWriter writer = new VmAppLogsWriter(4096, 1024, 0);
+    final int linesPerThread = 2000;
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          ApiProxy.setEnvironmentForCurrentThread(mock(ApiProxy.Environment.class));
+          for (int i = 0; i < linesPerThread; i++) {
+            writer.addLogRecordAndMaybeFlush(record(thread + ":" + i));
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    writer.flushAndWait();
+
+    int[] next = new int[threads.size()];
+    for (UserAppLogGroup group : flushes) {
+      int bytes = 0;
+      for (UserAppLogLine line : group.logLines()) {
+        bytes += line.maxEncodingSize();
+        String[] parts = line.getMessage().split(":");
+        int thread = Integer.parseInt(parts[0]);
+        assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+      }
+      assertTrue(bytes <= 4096);
+    }
+    for (int count : next) {
+      assertEquals(linesPerThread, count);
+    }
+  }
+
+  public void testFlushRequestEncoding() {
+    String[] messages = {"", "ascii", "\u00e9t\u00e9 \u20ac \ud83d\ude00", "\ud83d lone",
+        Strings.repeat("long line ", 100)};
+    AppLogBuffer buffer = new AppLogBuffer(1024 * 1024);
+    UserAppLogGroup group = new UserAppLogGroup();
+    for (int i = 0; i < messages.length; i++) {
+      long timestampUsec = i == 0 ? -1 : 1234567890123456L * i;
+      buffer.add(i, timestampUsec, messages[i]);
+      group.addLogLine().setLevel(i).setTimestampUsec(timestampUsec).setMessage(messages[i]);
+    }
+    assertTrue(buffer.sealCurrent());
+    FlushRequest expected = new FlushRequest();
+    expected.setLogsAsBytes(group.toByteArray());
+    assertTrue(Arrays.equals(expected.toByteArray(), buffer.takeSealed().toFlushRequest()));
+    assertNull(buffer.takeSealed());
+  }
+
+  public void testSplitsLongMessages() {
+    VmAppLogsWriter writer = new VmAppLogsWriter(1024 * 1024, 1024, 0);
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; lines.length() < 5000; i++) {
+      lines.append("line ").append(i).append(": ").append(Strings.repeat("\u00e9", i % 150))
+          .append('\n');
+    }
+    String[] messages = {Strings.repeat("x", 1024), Strings.repeat("x", 1025),
+        Strings.repeat("x", 3000), lines.toString(), Strings.repeat("\ud83d\ude00", 700)};
+    for (String message : messages) {
+      List<LogRecord> fragments = writer.split(record(message));
+      StringBuilder joined = new StringBuilder();
+      for (int i = 0; i < fragments.size(); i++) {
+        String fragment = fragments.get(i).getMessage();
+        assertTrue(fragment.length() <= 1024);
+        if (fragment.startsWith(VmAppLogsWriter.LOG_CONTINUATION_PREFIX)) {
+          assertTrue(i > 0);
+          fragment = fragment.substring(VmAppLogsWriter.LOG_CONTINUATION_PREFIX_LENGTH);
+        }
+        if (i < fragments.size() - 1) {
+          assertTrue(fragment.endsWith(VmAppLogsWriter.LOG_CONTINUATION_SUFFIX));
+          fragment = fragment.substring(0,
+              fragment.length() - VmAppLogsWriter.LOG_CONTINUATION_SUFFIX_LENGTH);
+          // Messages with lines are cut after a line, dropping its newline.
+          if (message.charAt(joined.length() + fragment.length()) == '\n') {
+            fragment += '\n';
+          }
+        }
+        joined.append(fragment);
+      }
+      assertEquals(message, joined.toString());
+      assertEquals(message.length() <= 1024, fragments.size() == 1);
+
+      // The buffer encodes the same fragments without building them.
+      flushes.clear();
+      writer.addLogRecordAndMaybeFlush(record(message));
+      writer.flushAndWait();
+      assertEquals(1, flushes.size());
+      assertEquals(fragments.size(), flushes.get(0).logLineSize());
+      for (int i = 0; i < fragments.size(); i++) {
+        assertEquals(fragments.get(i).getMessage(), flushes.get(0).getLogLine(i).getMessage());
+      }
+    }
+  }
+
+  public void testSplitsAtNewlines() {
+    VmAppLogsWriter writer = new VmAppLogsWriter(1024 * 1024, 1024, 0);
+    String first = Strings.repeat("a", 500);
+    String second = Strings.repeat("b", 800);
+    List<LogRecord> fragments = writer.split(record(first + "\n" + second));
+    assertEquals(2, fragments.size());
+    assertEquals(first + VmAppLogsWriter.LOG_CONTINUATION_SUFFIX, fragments.get(0).getMessage());
+    assertEquals(VmAppLogsWriter.LOG_CONTINUATION_PREFIX + second, fragments.get(1).getMessage());
+  }
+
+  public void testUtf8Length() {
+    for (String value : new String[] {"", "ascii", "\u00e9t\u00e9", "\u20ac", "\ud83d\ude00",
+        "\ud83d", "\ude00x"}) {
+      assertEquals(value, value.getBytes(StandardCharsets.UTF_8).length,
+          AppLogBuffer.utf8Length(value));
+    }
+  }
+}